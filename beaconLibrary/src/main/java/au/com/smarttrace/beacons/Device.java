@@ -27,6 +27,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothGatt;
@@ -35,6 +36,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.AsyncTask;
@@ -88,8 +90,14 @@ public class Device extends BluetoothGattCallback implements Comparable<Device>
 	/** Raw scan data bytes */ 
 	protected byte[] bytes; 
 	
-	/** Raw scan data in hex format */
+	/** Raw scan data in hex format, null until needed */
 	protected String scanData; 
+
+	/** Scan result received and not applied yet, see {@link DeviceManager} */
+	final AtomicReference<ScanResult> pendingScan = new AtomicReference<>();
+
+	/** Task applying the pending scan result, set when the device is managed */
+	Runnable scanTask;
 	
 	/** Last time device interacted */ 
 	protected long lastTime;
@@ -200,12 +208,25 @@ public class Device extends BluetoothGattCallback implements Comparable<Device>
 	public synchronized void setScanResult(ScanResult deviceResult) {
 		if (deviceResult!=null) {
 			this.deviceResult = deviceResult;
-			bytes = deviceResult.getScanRecord().getBytes();
-			scanData = Utils.bytesToHex(bytes);
+			ScanRecord record = deviceResult.getScanRecord();
+			bytes = record==null ? null : record.getBytes();
+			scanData = null;
 			lastTime = deviceResult.getTimestampNanos();
 		}
 	}
 
+	/**
+	 * Get the raw data of the last scan result, in hex format
+	 *
+	 * @return
+	 * 			the hex string, computed on demand
+	 */
+	public synchronized String getScanData() {
+		if (scanData==null)
+			scanData = Utils.bytesToHex(bytes);
+		return scanData;
+	}
+
     public Context getContext() {
         return context;
     }
@@ -358,7 +379,7 @@ public class Device extends BluetoothGattCallback implements Comparable<Device>
 		TextView tv = (TextView) content.findViewById(R.id.device_id);
 		tv.setText(getId());
 		tv = (TextView) content.findViewById(R.id.device_scan);
-		tv.setText(scanData);
+		tv.setText(getScanData());
 	}
 	
 // |
@@ -626,6 +647,129 @@ public class Device extends BluetoothGattCallback implements Comparable<Device>
 			tracking.addSample(time, sampleKey, sampleValue);
 	}
 
+	/**
+	 * Add a numeric sample to the current trackingOn (if the device is being tracked)
+	 * at the current time (now), without boxing
+	 *
+	 * @param sampleKey
+	 * 				the data key
+	 * @param sampleValue
+	 * 				the data
+	 */
+	protected synchronized void addSample(String sampleKey, float sampleValue) {
+		if (tracking!=null)
+			tracking.addSample(sampleKey, sampleValue);
+	}
+
+	/**
+	 * Add an integer sample to the current trackingOn (if the device is being tracked)
+	 * at the current time (now), without boxing
+	 *
+	 * @param sampleKey
+	 * 				the data key
+	 * @param sampleValue
+	 * 				the data
+	 */
+	protected synchronized void addSample(String sampleKey, int sampleValue) {
+		if (tracking!=null)
+			tracking.addSample(sampleKey, sampleValue);
+	}
+
+	/**
+	 * Add an integer sample to the current trackingOn (if the device is being tracked)
+	 * at the specified time, without boxing
+	 *
+	 * @param time
+	 * 				the time
+	 * @param sampleKey
+	 * 				the data key
+	 * @param sampleValue
+	 * 				the data
+	 */
+	protected synchronized void addSample(long time, String sampleKey, int sampleValue) {
+		if (tracking!=null)
+			tracking.addSample(time, sampleKey, sampleValue);
+	}
+
+	/**
+	 * Add the numeric readings of two keys, read together, to the current trackingOn
+	 * (if the device is being tracked): the keys share the same timeline
+	 *
+	 * @param time
+	 * 				the time of the reading
+	 * @param key1
+	 * 				the first data key
+	 * @param value1
+	 * 				the first data
+	 * @param key2
+	 * 				the second data key
+	 * @param value2
+	 * 				the second data
+	 * @return
+	 * 			true if the record was actually added
+	 */
+	protected synchronized boolean addRecord(long time, String key1, float value1, String key2, float value2) {
+		return tracking!=null && tracking.addRecord(time, key1, value1, key2, value2);
+	}
+
+	/**
+	 * Add the readings of three keys, read together, to the current trackingOn
+	 * (if the device is being tracked), the last one an integer
+	 *
+	 * @see #addRecord(long, String, float, String, float)
+	 */
+	protected synchronized boolean addRecord(long time, String key1, float value1, String key2, float value2,
+											 String key3, int value3) {
+		return tracking!=null && tracking.addRecord(time, key1, value1, key2, value2, key3, value3);
+	}
+
+	/**
+	 * Add a location to the current trackingOn (if the device is being tracked),
+	 * without creating a sample object
+	 *
+	 * @param time
+	 * 				the time of the fix
+	 * @param sampleKey
+	 * 				the data key
+	 * @param lat
+	 * 				the latitude
+	 * @param lng
+	 * 				the longitude
+	 * @param acc
+	 * 				the accuracy in meters
+	 * @return
+	 * 			true if the location was actually added
+	 */
+	protected synchronized boolean addRecord(long time, String sampleKey, double lat, double lng, float acc) {
+		return tracking!=null && tracking.addRecord(time, sampleKey, lat, lng, acc);
+	}
+
+	/**
+	 * Check the current trackingOn for a sample in a time range
+	 *
+	 * @param sampleKey
+	 * 				the data key
+	 * @param from
+	 * 				the begin of the range in ms, inclusive
+	 * @param to
+	 * 				the end of the range in ms, inclusive
+	 * @return
+	 * 			true if the device is being tracked, and a sample is stored in the range
+	 */
+	protected synchronized boolean hasSample(String sampleKey, long from, long to) {
+		Tracking.Data data = tracking==null ? null : tracking.getSamples(sampleKey, from, to);
+		return data!=null && data.size()>0;
+	}
+
+	/**
+	 * Merge the records added out of order (e.g. downloaded from the memory of the device)
+	 * in the current trackingOn, without waiting for more of them
+	 */
+	protected synchronized void flushRecords() {
+		if (tracking!=null)
+			tracking.flush();
+	}
+
 	/**
 	 * Called when the trackingOn is started
 	 */
@@ -64,7 +64,7 @@ public class DeviceActivity extends Activity implements DeviceListener {
 		
 		super.onResume();
 		
-		DeviceManager.getInstance().addDeviceListener(this);
+		DeviceManager.getInstance().addDeviceListener(this, device.getId(), DeviceEvent.MASK_ALL);
 		
 		synchronized (device) {
 			previousState = device.getConnectionState();
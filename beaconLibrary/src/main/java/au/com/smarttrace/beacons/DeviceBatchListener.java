@@ -0,0 +1,21 @@
+package au.com.smarttrace.beacons;
+
+import java.util.List;
+
+/**
+ * Listens for changes in the devices, receiving all the events of a delivery at once
+ *
+ * @see DeviceEventDispatcher
+ */
+public interface DeviceBatchListener extends DeviceListener {
+
+	/**
+	 * Called with the changes detected since the last delivery, instead of
+	 * {@link #onDeviceChange(DeviceEvent)} for each of them
+	 *
+	 * @param events
+	 * 			the events in order, valid only during the call
+	 */
+	public void onDeviceChanges(List<DeviceEvent> events);
+
+}
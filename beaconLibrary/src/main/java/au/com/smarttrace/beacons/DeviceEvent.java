@@ -43,6 +43,9 @@ public class DeviceEvent extends EventObject {
 	public static final int TYPE_DEVICE_PROGRESS = 7;	
 	/** Device error */
 	public static final int TYPE_DEVICE_ERROR = 9;
+
+	/** Mask of all the types of event */
+	public static final int MASK_ALL = -1;
 	
 	/** Event type */
 	protected int type;
@@ -50,6 +53,9 @@ public class DeviceEvent extends EventObject {
 	/** Event data */
 	protected Object data;
 
+	/** Time when the event was fired, in ns, for the dispatch latency */
+	transient long time;
+
 	/**
 	 * A device event
 	 * 
@@ -90,6 +96,23 @@ public class DeviceEvent extends EventObject {
 		this.data = data;
 	}
 	
+	/**
+	 * Mask of some types of event, to subscribe a {@link DeviceListener}
+	 *
+	 * @param types
+	 * 			the types of event
+	 * @return
+	 * 			the mask
+	 *
+	 * @see DeviceManager#addDeviceListener(DeviceListener, String, int)
+	 */
+	public static int mask(int... types) {
+		int ret = 0;
+		for (int type : types)
+			ret |= 1 << type;
+		return ret;
+	}
+
 	/**
 	 * The device that originated the event
 	 * 
@@ -0,0 +1,321 @@
+package au.com.smarttrace.beacons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import au.com.smarttrace.beacons.DeviceSubscriptions.Subscription;
+
+/**
+ * Delivery of the {@link DeviceEvent}s to the listeners on the main thread, in batches.
+ * <p>
+ * The events fired from any thread are queued, unless no listener is subscribed to
+ * them, and the queue is delivered once per frame, or after a fixed interval if set.
+ * No frame is drawn while the screen is off: then the queue is delivered by the handler
+ * after {@link #MAX_FRAME_WAIT} ms, so the listeners not drawing anything (a recording)
+ * still receive the events.
+ * While a {@link DeviceEvent#TYPE_DEVICE_UPDATED} of a device is waiting, the following
+ * updates of the same device are merged in it (the data is the last one): a device is
+ * updated at most once per batch, however fast it advertises. The other events are
+ * never merged and are delivered in order, and an update is never merged across them.
+ * Above {@link #MAX_QUEUE_DEPTH} events waiting, the updates of the other devices are
+ * dropped until the next delivery.
+ * <p>
+ * Each event is delivered only to the listeners subscribed to its device and type, once
+ * even if a listener is subscribed both to all the devices and to its device.
+ * The depth of the queue and the latency from firing to delivery are measured.
+ */
+public class DeviceEventDispatcher {
+
+	/** Longest wait for a frame before delivering from the handler, in ms */
+	final static long MAX_FRAME_WAIT = 100;
+
+	/** Events waiting above which the new updates are dropped */
+	final static int MAX_QUEUE_DEPTH = 1024;
+
+	private final Handler mainHandler;
+
+	private final DeviceSubscriptions subscriptions;
+
+	/** Interval between the batches in ms, 0 for every frame */
+	private volatile long interval;
+
+	/** Events waiting for delivery, in order */
+	private List<DeviceEvent> queue = new ArrayList<>();
+
+	/** The queue being delivered, reused */
+	private List<DeviceEvent> batch = new ArrayList<>();
+
+	/** Updates waiting that can still be merged, by device */
+	private final Map<Device, DeviceEvent> updates = new IdentityHashMap<>();
+
+	/** Events of the batch listeners being delivered */
+	private final Map<DeviceBatchListener, List<DeviceEvent>> batchEvents = new IdentityHashMap<>();
+
+	/** A delivery is scheduled */
+	private boolean scheduled;
+
+	private long fired, merged, dropped, delivered, batches;
+	private int maxDepth;
+	private long totalLatency, maxLatency;
+
+	private final Runnable deliver = new Runnable() {
+		@Override
+		public void run() {
+			// no frame came in time, if waiting for one
+			Choreographer.getInstance().removeFrameCallback(frame);
+			flush();
+		}
+	};
+
+	private final Choreographer.FrameCallback frame = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			mainHandler.removeCallbacks(deliver);
+			flush();
+		}
+	};
+
+	/** Wait for the next frame, on the main thread */
+	private final Runnable nextFrame = new Runnable() {
+		@Override
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(frame);
+		}
+	};
+
+	/**
+	 * @param mainHandler
+	 * 				the handler of the main thread
+	 * @param subscriptions
+	 * 				the subscriptions of the listeners
+	 */
+	DeviceEventDispatcher(Handler mainHandler, DeviceSubscriptions subscriptions) {
+		this.mainHandler = mainHandler;
+		this.subscriptions = subscriptions;
+	}
+
+	/**
+	 * Set the interval between the deliveries
+	 *
+	 * @param interval
+	 * 				the interval in ms, 0 to deliver at every frame
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Queue an event
+	 *
+	 * @param source
+	 * 				the device source of the event
+	 * @param type
+	 * 				the type of event
+	 * @param data
+	 * 				the data of the event
+	 */
+	void fire(Device source, int type, Object data) {
+		boolean subscribed = subscriptions.isSubscribed(source, type);
+		long now = System.nanoTime();
+		synchronized (this) {
+			fired++;
+			if (!subscribed)
+				return;
+			if (type==DeviceEvent.TYPE_DEVICE_UPDATED) {
+				DeviceEvent pending = updates.get(source);
+				if (pending!=null) {
+					pending.data = data;
+					merged++;
+					return;
+				}
+				if (queue.size()>=MAX_QUEUE_DEPTH) {
+					dropped++;
+					return;
+				}
+			} else
+				// the next updates come after this event
+				updates.remove(source);
+
+			DeviceEvent event = new DeviceEvent(source, type, data);
+			event.time = now;
+			if (type==DeviceEvent.TYPE_DEVICE_UPDATED)
+				updates.put(source, event);
+			queue.add(event);
+			maxDepth = Math.max(maxDepth, queue.size());
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		long delay = interval;
+		if (delay>0)
+			mainHandler.postDelayed(deliver, delay);
+		else {
+			mainHandler.post(nextFrame);
+			mainHandler.postDelayed(deliver, MAX_FRAME_WAIT);
+		}
+	}
+
+	/**
+	 * Deliver the events queued, on the main thread
+	 */
+	void flush() {
+		List<DeviceEvent> events;
+		synchronized (this) {
+			events = queue;
+			queue = batch;
+			batch = events;
+			updates.clear();
+			scheduled = false;
+		}
+		if (events.isEmpty())
+			return;
+
+		long now = System.nanoTime();
+		long latency = 0, max = 0;
+		for (DeviceEvent event : events) {
+			latency += now - event.time;
+			max = Math.max(max, now - event.time);
+		}
+
+		for (DeviceEvent event : events) {
+			Subscription[] global = subscriptions.getGlobal();
+			deliver(global, null, event);
+			deliver(subscriptions.get(event.getDevice().getId()), global, event);
+		}
+		for (Map.Entry<DeviceBatchListener, List<DeviceEvent>> e : batchEvents.entrySet())
+			e.getKey().onDeviceChanges(Collections.unmodifiableList(e.getValue()));
+		batchEvents.clear();
+
+		synchronized (this) {
+			delivered += events.size();
+			batches++;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, max);
+		}
+		events.clear();
+	}
+
+	/**
+	 * Deliver an event to the matching subscriptions, skipping the listeners already
+	 * delivered by a matching subscription of the others, if any
+	 */
+	private void deliver(Subscription[] subscriptions, Subscription[] delivered, DeviceEvent event) {
+		for (Subscription s : subscriptions) {
+			if (!s.matches(event.type) || delivered!=null && matches(delivered, s.listener, event.type))
+				continue;
+			if (s.listener instanceof DeviceBatchListener) {
+				DeviceBatchListener listener = (DeviceBatchListener) s.listener;
+				List<DeviceEvent> events = batchEvents.get(listener);
+				if (events==null) {
+					events = new ArrayList<>();
+					batchEvents.put(listener, events);
+				}
+				events.add(event);
+			} else
+				s.listener.onDeviceChange(event);
+		}
+	}
+
+	private static boolean matches(Subscription[] subscriptions, DeviceListener listener, int type) {
+		for (Subscription s : subscriptions)
+			if (s.listener==listener && s.matches(type))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return
+	 * 			the number of events waiting for delivery
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return
+	 * 			the maximum number of events waiting for delivery
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return
+	 * 			the number of events fired
+	 */
+	public synchronized long getFired() {
+		return fired;
+	}
+
+	/**
+	 * @return
+	 * 			the number of updates merged in a waiting one
+	 */
+	public synchronized long getMerged() {
+		return merged;
+	}
+
+	/**
+	 * @return
+	 * 			the number of updates dropped because the queue was full
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return
+	 * 			the number of events delivered
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return
+	 * 			the number of batches delivered
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return
+	 * 			the average time from the firing of an event to its delivery, in ms
+	 */
+	public synchronized double getAverageLatency() {
+		return delivered==0 ? 0 : totalLatency / 1e6 / delivered;
+	}
+
+	/**
+	 * @return
+	 * 			the maximum time from the firing of an event to its delivery, in ms
+	 */
+	public synchronized double getMaxLatency() {
+		return maxLatency / 1e6;
+	}
+
+	/**
+	 * Reset the measures
+	 */
+	public synchronized void resetStats() {
+		fired = merged = dropped = delivered = batches = 0;
+		maxDepth = queue.size();
+		totalLatency = maxLatency = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d events fired, %d merged, %d dropped, %d delivered in %d batches; "
+						+ "queue %d (max %d), latency %.1fms (max %.1fms)",
+				fired, merged, dropped, delivered, batches, queue.size(), maxDepth,
+				getAverageLatency(), getMaxLatency());
+	}
+
+}
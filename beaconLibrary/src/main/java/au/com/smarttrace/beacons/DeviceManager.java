@@ -20,11 +20,7 @@
  ******************************************************************************/
 package au.com.smarttrace.beacons;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanResult;
@@ -37,8 +33,14 @@ import android.util.Log;
 import au.com.smarttrace.beacons.tracker.Recording;
 
 /**
- * Manage scanned devices in an ordered list and notify listeners for changes
- * happening in any of these devices.
+ * Manage scanned devices in a registry indexed by identifier and notify listeners
+ * for changes happening in any of these devices.
+ * <p>
+ * There is no lock on the manager: the scan results and the evictions are applied
+ * in order on the bluetooth thread, while the registry of the devices, the listeners
+ * and the current recording are read through immutable snapshots, so the UI and the
+ * recordings never wait for the scans. The state of each device is guarded by the
+ * device itself.
  *
  * @see DeviceListener
  * @see DeviceEvent
@@ -51,125 +53,115 @@ public class DeviceManager {
 	private final static long DELAY_CHECK = 10000l;//10 sec -> TODO: configure
 	private final static long TIME_LIMIT = 18 * DELAY_CHECK;//3 min -> TODO: configure
 	
-	/** The singleton instance */
-	private static DeviceManager instance;
+	/** The singleton instance, created when first used */
+	private static class Holder {
+		private final static DeviceManager INSTANCE = new DeviceManager();
+	}
+	
+	/** The devices, by identifier and ordered */
+	private final DeviceRegistry registry;
 	
-	/** The list of devices */
-	private ArrayList<Device> list;
+	/** Guard of the bluetooth thread, when bluetooth is turned on and off */
+	private final Object btLock = new Object();
 	
 	/** A thread for the timer */
 	private HandlerThread btThread;
 	
 	/** Handler for the event firing on the separate event thread */
-	private Handler btHandler;
+	private volatile Handler btHandler;
 		
 	/** The main handler (main thread) */
-	private Handler mainHandler;
+	private final Handler mainHandler;
 
-	/** Listeners for changes in the devices */
-	private List<DeviceListener> listenersList;
-	
-	/** 
-	 * Synchronise a task on this DeviceManager lock 
-	 */
-	private abstract class SynchronizedTask implements Runnable {
-		
-		/** The device involved in the task, if any */
-		protected Device device;
-		
-		/**
-		 * Default constructor
-		 */
-		public SynchronizedTask() {}
-		
-		/**
-		 * Device construcor
-		 * 
-		 * @param d
-		 * 			the device
-		 */
-		protected SynchronizedTask(Device d) {this.device = d;}
-		
-		@Override
-		public void run() {
-			synchronized (DeviceManager.this) {syncRun();}
-		}
-		
-		/**
-		 * Override to implement synchronised operations 
-		 */
-		protected abstract void syncRun();
-	}
+	/** Listeners for changes in the devices, by device and type of event */
+	private final DeviceSubscriptions subscriptions;
+
+	/** Delivery of the events to the listeners */
+	private final DeviceEventDispatcher dispatcher;
 
 	/**
 	 *  Check the devices at regular intervals (on the event thread!)
-	 *  synchronising the main thread on the manager instance.
 	 *  
 	 *  XXX: For now just removes too long inactive devices
 	 */
-	private Runnable timedCheck = new SynchronizedTask() {
+	private Runnable timedCheck = new Runnable() {
 		@Override
 		public void run() {
-			super.run();
-			btHandler.postDelayed(timedCheck, DELAY_CHECK);
-		}
-		@Override
-		protected void syncRun() {
-			for (Device d : list) {
+			Handler handler = btHandler;
+			if (handler==null)
+				return;
+			for (Device d : registry.devices()) {
 				if (d instanceof InternalDevice)
 					continue;
 				long diff = d.getElapsedTime();
 				if (diff > TIME_LIMIT) {
 					Log.i(TAG, "Device inactive for "+(diff/1000l)+"s (" + d.getTitle()+")");
-					btHandler.post(new Remover(d));
+					handler.post(new Remover(d));
 				}
 			}
+			handler.postDelayed(timedCheck, DELAY_CHECK);
 		}
 	};
 
 	/** 
-	 * Remove a device synchronising the main thread on the manager instance 
+	 * Remove a device (on the event thread)
 	 */
-	private class Remover extends SynchronizedTask {
-		Remover(Device d) {super(d);}
+	class Remover implements Runnable {
+		private final Device device;
+		Remover(Device d) {device = d;}
 		@Override
-		public void syncRun() {
+		public void run() {
             if (btOff)
                 return;
-			int pos = Collections.binarySearch(list, device);
-			if (pos>=0) {
-				list.remove(pos);
+			if (registry.remove(device)) {
 				fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_REMOVED);
-				Log.d(TAG, "Removed device (pos. "+pos+"): "+device);
+				Log.d(TAG, "Removed device: "+device);
 				device.onScanStop();
 			}
 		}
 	}
 	
+	/**
+	 * Apply the last scan result of a managed device (on the event thread)
+	 */
+	private class Updater implements Runnable {
+		private final Device device;
+		Updater(Device d) {device = d;}
+		@Override
+		public void run() {
+			ScanResult result = device.pendingScan.getAndSet(null);
+			if (btOff || result==null || registry.get(device.getId())!=device)
+				return;
+			device.setScanResult(result);
+			fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_UPDATED, "Scan");
+			device.onScan();
+		}
+	}
+
 	/** 
-	 * Add a device synchronising the main thread on the manager instance.
+	 * Add a device (on the event thread).
 	 * The device will only be updated if it is already present in the list 
 	 */
-	private class Adder extends SynchronizedTask {
-		Adder(Device d) {super(d);}		
+	class Adder implements Runnable {
+		private Device device;
+		Adder(Device d) {device = d;}
 		@Override
-		public void syncRun() {
+		public void run() {
 
             if (btOff)
                 return;
 
-			int pos = Collections.binarySearch(list, device);
+			Device old = registry.get(device.getId());
 			
 			// update a device already present
-			if (pos>=0) {
+			if (old!=null) {
 				
-				Device old = list.get(pos);
 				long elapsed = old.getElapsedTime()/1000l;
 				old.setScanResult(device.getScanResult());
 				device = old;
 				fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_UPDATED, "Scan");
 				Log.i(device.toString(),"signal = "+device.getSignal()+"dB");
-				Log.d(TAG, "Updated device (pos. "+pos+") after "
+				Log.d(TAG, "Updated device after "
 						+ elapsed + "s: " + device);
 				
 			// insert a new device 
@@ -178,11 +170,11 @@ public class DeviceManager {
 				try {
 					// replace the fake device used just for sorting purposes 
 					// with the actual device built by the "factory" 
-					device = DeviceFactory.getInstance().newDevice(device);
-					if(device.getClass()!=Device.class) {//TODO: configure in settings
-						list.add(-pos - 1, device);
-						fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_ADDED);
-						Log.d(TAG, "Added device (pos. " + (-pos - 1) + "): " + device);
+					if (device.getClass()==Device.class)
+						device = DeviceFactory.getInstance().newDevice(device);
+					if(device.getClass()!=Device.class //TODO: configure in settings
+							&& addScanned(device)) {
+						Log.d(TAG, "Added device: " + device);
 					}
 
 				} catch(NoSuchDeviceException e) {
@@ -200,10 +192,11 @@ public class DeviceManager {
 	 */
 	private DeviceManager() {
 		
-		listenersList = new LinkedList<DeviceListener>();
+		subscriptions = new DeviceSubscriptions();
 		
-		list = new ArrayList<Device>();
+		registry = new DeviceRegistry();
 		mainHandler = new Handler(Looper.getMainLooper());
+		dispatcher = new DeviceEventDispatcher(mainHandler, subscriptions);
 
 	}
 	
@@ -214,33 +207,45 @@ public class DeviceManager {
 	 * 			the instance
 	 */
 	public static DeviceManager getInstance() {
-		if (instance==null)
-			instance = new DeviceManager();
-		return instance; 
+		return Holder.INSTANCE;
 	}
 	
 	/**
-	 * Add a new {@link DeviceListener}, replacing an eventual old one
+	 * Add a new {@link DeviceListener} of all the events of all the devices,
+	 * replacing an eventual old one
+	 *
+	 * @param listener
+	 * 				the listener
+	 */
+	public void addDeviceListener(DeviceListener listener) {
+		addDeviceListener(listener, null, DeviceEvent.MASK_ALL);
+	}
+
+	/**
+	 * Add a new {@link DeviceListener} of some events of a device, replacing an eventual
+	 * old one of the same device. The subscriptions of a listener to different devices,
+	 * or to all of them, are independent, but an event matching both the subscription to
+	 * its device and the one to all the devices is delivered only once
 	 *
 	 * @param listener
 	 * 				the listener
+	 * @param deviceId
+	 * 				the identifier of the device, null for all the devices
+	 * @param typeMask
+	 * 				the types of event, see {@link DeviceEvent#mask(int...)}
 	 */
-	public synchronized void addDeviceListener(DeviceListener listener) {
-		int pos = listenersList.indexOf(listener);
-		if (pos>=0)
-			listenersList.set(pos, listener);
-		else
-			listenersList.add(listener);
+	public void addDeviceListener(DeviceListener listener, String deviceId, int typeMask) {
+		subscriptions.subscribe(listener, deviceId, typeMask);
 	}
 	
 	/**
-	 * Remove a {@link DeviceListener}
+	 * Remove a {@link DeviceListener}, from all the devices
 	 * 
 	 * @param listener
 	 * 				the listener
 	 */
-	public synchronized void removeDeviceListener(DeviceListener listener) {
-		listenersList.remove(listener);
+	public void removeDeviceListener(DeviceListener listener) {
+		subscriptions.unsubscribe(listener);
 	}
 	
 	/**
@@ -256,7 +261,7 @@ public class DeviceManager {
 	}
 
 	/**
-	 * Fire an event to all interested listeners
+	 * Fire an event to all interested listeners, in the next batch
 	 *
 	 * @param source
 	 * 				the device source of the event
@@ -264,58 +269,75 @@ public class DeviceManager {
 	 * 				the type of event
 	 * @param data
 	 * 				the data of the event
+	 *
+	 * @see DeviceEventDispatcher
 	 */
 	void fireDeviceEvent(Device source, int eventType, Object data) {
-		final DeviceEvent event = new DeviceEvent(source, eventType, data);
-		for (final DeviceListener listener : new LinkedList<>(listenersList))
-			mainHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					listener.onDeviceChange(event);
-				}
-			});
+		dispatcher.fire(source, eventType, data);
+	}
+
+	/**
+	 * Get the dispatcher of the events, to configure and monitor the deliveries
+	 *
+	 * @return
+	 * 			the dispatcher
+	 */
+	public DeviceEventDispatcher getEventDispatcher() {
+		return dispatcher;
 	}
 	
 	/**
 	 * Called when bluetooth is turned on
 	 * //TODO find a better solution
 	 */
-	public synchronized void onBluetoothOn() {
-		if (btHandler ==null) {
-            btOff = false;
-			btThread = new HandlerThread("BT Thread");
-			btThread.start();
-			btHandler = new Handler(btThread.getLooper());
-			btHandler.post(timedCheck);
+	public void onBluetoothOn() {
+		synchronized (btLock) {
+			if (btHandler ==null) {
+				btOff = false;
+				btThread = new HandlerThread("BT Thread");
+				btThread.start();
+				btHandler = new Handler(btThread.getLooper());
+				btHandler.post(timedCheck);
+			}
 		}
 	}
 
-    private boolean btOff;
+    private volatile boolean btOff;
 	
 	/**
 	 * Called when bluetooth is turned off
 	 * //TODO find a better solution
 	 */
-	public synchronized void onBluetoothOff() {
-		if (btHandler !=null) {
-            btOff = true;
-			btHandler.removeCallbacks(timedCheck);
-			for (ListIterator<Device> li = list.listIterator(); li.hasNext(); ) {
-				Device d = li.next();
-				if (!(d instanceof InternalDevice)) {
-					d.onScanStop();
-					d.fireEvent(DeviceEvent.TYPE_DEVICE_REMOVED);
-					li.remove();
-				}
+	public void onBluetoothOff() {
+		synchronized (btLock) {
+			if (btHandler !=null) {
+				btOff = true;
+				btHandler.removeCallbacks(timedCheck);
+				// after the scan results already being applied
+				btHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						for (Device d : registry.devices()) {
+							if (!(d instanceof InternalDevice) && registry.remove(d)) {
+								d.onScanStop();
+								d.fireEvent(DeviceEvent.TYPE_DEVICE_REMOVED);
+							}
+						}
+					}
+				});
+				btThread.quitSafely();
+				btThread = null;
+				btHandler = null;
 			}
-			btThread.quitSafely();
-			btThread = null;
-			btHandler = null;
 		}
 	}
 	
 	/**
-	 * Add a new managed device, synchronising on the main thread
+	 * Add a new managed device, on the event thread.
+	 * <p>
+	 * The scan results of the devices already managed are applied in place, without
+	 * creating any object: the last result is kept, and applied by a task of the device
+	 * unless one is already waiting.
 	 * 
 	 * @param context
 	 * 				the application context, needed for UI components
@@ -324,37 +346,72 @@ public class DeviceManager {
 	 * 
 	 * @see Device
 	 */
-	public synchronized void addDevice(Context context, ScanResult result) {
+	public void addDevice(Context context, ScanResult result) {
 
-		if (btHandler==null || result.getDevice().getType()!=BluetoothDevice.DEVICE_TYPE_LE)
+		Handler handler = btHandler;
+		if (handler==null || result.getDevice().getType()!=BluetoothDevice.DEVICE_TYPE_LE)
+			return;
+
+		if (offerScan(handler, result.getDevice().getAddress(), result))
 			return;
 		
-		btHandler.post(
+		handler.post(
 			new Adder(
 				new Device(context, result)));
 	}
 
-	public synchronized void addInternalDevice(Context context, Class<? extends InternalDevice> deviceClass) {
+	/**
+	 * Fast path of the scan results of the devices already managed
+	 *
+	 * @param handler
+	 * 				the handler of the event thread
+	 * @param identifier
+	 * 				the device identifier
+	 * @param result
+	 * 				the scan result
+	 * @return
+	 * 			false if the device is not managed yet
+	 */
+	boolean offerScan(Handler handler, String identifier, ScanResult result) {
+		Device known = registry.get(identifier);
+		if (known==null || known.scanTask==null)
+			return false;
+		if (known.pendingScan.getAndSet(result)==null)
+			handler.post(known.scanTask);
+		return true;
+	}
+
+	/**
+	 * Manage a new scanned device
+	 *
+	 * @param device
+	 * 				the device
+	 * @return
+	 * 			true if added, false if a device with the same identifier is present
+	 */
+	boolean addScanned(Device device) {
+		device.scanTask = new Updater(device);
+		if (registry.add(device)!=null)
+			return false;
+		fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_ADDED);
+		return true;
+	}
+
+	public void addInternalDevice(Context context, Class<? extends InternalDevice> deviceClass) {
 		try {
 			InternalDevice device = deviceClass.newInstance();
 			device.init(context, null);
-			int pos = Collections.binarySearch(list, device);
-			if (pos<0) {
-				list.add(-pos - 1, device);
+			if (registry.add(device)==null)
 				fireDeviceEvent(device, DeviceEvent.TYPE_DEVICE_ADDED);
-			}
 		} catch(Exception e) {
 			Log.e(TAG, "Cannot add device "+deviceClass.getSimpleName(), e);
 		}
 	}
 
-	public synchronized void removeInternalDevice(String identifier) {
-		InternalDevice temp = new InternalDevice(identifier);
-		int pos = Collections.binarySearch(list, temp);
-		if (pos>=0) {
-			Device removed = list.remove(pos);
+	public void removeInternalDevice(String identifier) {
+		Device removed = registry.remove(identifier);
+		if (removed!=null)
 			fireDeviceEvent(removed, DeviceEvent.TYPE_DEVICE_REMOVED);
-		}
 	}
 	
 	/**
@@ -363,12 +420,12 @@ public class DeviceManager {
 	 * @return
 	 * 			the number of devices 
 	 */
-	public synchronized int countDevices() {
-		return list.size();
+	public int countDevices() {
+		return registry.snapshot().length;
 	}
 	
 	/**
-	 * Get a device by position in the list  
+	 * Get a device by position in the list, sorted by identifier
 	 * 
 	 * @param position
 	 * 				the position in the sorted list
@@ -377,8 +434,8 @@ public class DeviceManager {
 	 * @throws
 	 * 			ArrayIndexOutOfBoundsException
 	 */
-	public synchronized Device getDevice(int position) {
-		return list.get(position);
+	public Device getDevice(int position) {
+		return registry.snapshot()[position];
 	}
 	
 	/**
@@ -391,18 +448,18 @@ public class DeviceManager {
 	 * @throws
 	 * 			NoSuchDeviceException if not found
 	 */
-	public synchronized Device getDevice(String identifier) throws NoSuchDeviceException {
-		for (Device device : list)
-			if (device.getId().equals(identifier))
-				return device;
-		throw new NoSuchDeviceException("ID="+identifier);
+	public Device getDevice(String identifier) throws NoSuchDeviceException {
+		Device ret = registry.get(identifier);
+		if (ret==null)
+			throw new NoSuchDeviceException("ID="+identifier);
+		return ret;
 	}
 
 	/** Current recording session */
-	private Recording recording;
+	private final AtomicReference<Recording> recording = new AtomicReference<>();
 
 	public boolean isRecording() {
-		return recording!=null;
+		return recording.get()!=null;
 	}
 
 	/**
@@ -413,26 +470,35 @@ public class DeviceManager {
 	 *
 	 * TODO: configure user based and config based devices
 	 */
-	public synchronized boolean startTracking() {
-		if (recording==null) {
-			Log.i(TAG, "Start recording");
-			recording = new Recording();
-			addDeviceListener(recording);
-			for (Device d : list)
-				recording.addDevice(d);
-			return true;
+	public boolean startTracking() {
+		if (recording.get()!=null)
+			return false;
+		Recording r = new Recording();
+		if (!recording.compareAndSet(null, r))
+			return false;
+		// the devices added meanwhile are notified to the recording
+		addDeviceListener(r, null, DeviceEvent.mask(
+				DeviceEvent.TYPE_DEVICE_ADDED, DeviceEvent.TYPE_DEVICE_REMOVED));
+		// stopped before the subscription, that would never be removed
+		if (recording.get()!=r) {
+			removeDeviceListener(r);
+			return false;
 		}
-		return false;
+		Log.i(TAG, "Start recording");
+		for (Device d : registry.snapshot())
+			r.addDevice(d);
+		return true;
 	}
 
 	/**
 	 * Cancel current recording
 	 */
-	public synchronized void cancelTracking() {
-		if (recording!=null) {
+	public void cancelTracking() {
+		Recording r = recording.getAndSet(null);
+		if (r!=null) {
 			Log.i(TAG, "Cancel recording");
-			removeDeviceListener(recording);
-			recording = null;
+			r.cancel();
+			removeDeviceListener(r);
 		}
 	}
 
@@ -442,12 +508,12 @@ public class DeviceManager {
 	 * @return
 	 * 			true if the current recording actually stops
      */
-	public synchronized boolean stopTracking() {
-		if (recording!=null) {
+	public boolean stopTracking() {
+		Recording r = recording.getAndSet(null);
+		if (r!=null) {
 			Log.i(TAG, "Stop recording");
-			recording.stop();
-			removeDeviceListener(recording);
-			recording = null;
+			r.stop();
+			removeDeviceListener(r);
 			return true;
 		}
 		return false;
@@ -0,0 +1,123 @@
+package au.com.smarttrace.beacons;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the managed devices, indexed by identifier (the MAC address of the
+ * bluetooth devices).
+ * <p>
+ * A device is found by identifier in constant time, and the devices are also available
+ * in order of identifier, for positional access by the UI, through a sorted snapshot
+ * rebuilt only when it is needed after a change. The readers never lock: the index is
+ * concurrent and the snapshot is immutable once published; the writers only lock to
+ * invalidate the snapshot.
+ */
+class DeviceRegistry {
+
+	private final static Device[] EMPTY = new Device[0];
+
+	/** The devices by identifier */
+	private final ConcurrentHashMap<String, Device> index = new ConcurrentHashMap<>();
+
+	/** The devices sorted by identifier, null if changed */
+	private volatile Device[] sorted = EMPTY;
+
+	/**
+	 * Get a device by identifier
+	 *
+	 * @param identifier
+	 * 				the identifier
+	 * @return
+	 * 			the device, null if not found
+	 */
+	Device get(String identifier) {
+		return identifier==null ? null : index.get(identifier);
+	}
+
+	/**
+	 * Add a device, unless a device with the same identifier is already present
+	 *
+	 * @param device
+	 * 				the device
+	 * @return
+	 * 			the device already present, null if added
+	 */
+	Device add(Device device) {
+		Device old = index.putIfAbsent(device.getId(), device);
+		if (old==null)
+			invalidate();
+		return old;
+	}
+
+	/**
+	 * Remove a device by identifier
+	 *
+	 * @param identifier
+	 * 				the identifier
+	 * @return
+	 * 			the device removed, null if not found
+	 */
+	Device remove(String identifier) {
+		Device ret = index.remove(identifier);
+		if (ret!=null)
+			invalidate();
+		return ret;
+	}
+
+	/**
+	 * Remove a device, only if it is the one registered with its identifier
+	 *
+	 * @param device
+	 * 				the device
+	 * @return
+	 * 			true if removed
+	 */
+	boolean remove(Device device) {
+		boolean ret = index.remove(device.getId(), device);
+		if (ret)
+			invalidate();
+		return ret;
+	}
+
+	private synchronized void invalidate() {
+		sorted = null;
+	}
+
+	/**
+	 * @return
+	 * 			the devices sorted by identifier, an immutable snapshot
+	 */
+	Device[] snapshot() {
+		Device[] ret = sorted;
+		if (ret!=null)
+			return ret;
+		synchronized (this) {
+			// rebuilt by another reader meanwhile
+			if (sorted==null) {
+				ret = index.values().toArray(EMPTY);
+				Arrays.sort(ret);
+				sorted = ret;
+			}
+			return sorted;
+		}
+	}
+
+	/**
+	 * @return
+	 * 			the devices, in no order
+	 */
+	Collection<Device> devices() {
+		return index.values();
+	}
+
+	/**
+	 * @return
+	 * 			the number of devices
+	 */
+	int size() {
+		return index.size();
+	}
+
+}
@@ -0,0 +1,166 @@
+package au.com.smarttrace.beacons;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Subscriptions of the {@link DeviceListener}s, scoped by device and by type of event.
+ * <p>
+ * The subscriptions are indexed by device identifier, plus the ones for all the devices,
+ * so finding the listeners of an event only looks at the subscriptions of its device and
+ * at the global ones, whatever the number of listeners of the other devices. The index is
+ * an immutable snapshot, replaced when a listener subscribes or unsubscribes: the
+ * dispatch never locks.
+ */
+class DeviceSubscriptions {
+
+	/**
+	 * A listener subscribed to some types of events of a device
+	 */
+	static class Subscription {
+
+		final DeviceListener listener;
+
+		/** The device identifier, null for all the devices */
+		final String deviceId;
+
+		/** The types of events, see {@link DeviceEvent#mask(int...)} */
+		final int mask;
+
+		Subscription(DeviceListener listener, String deviceId, int mask) {
+			this.listener = listener;
+			this.deviceId = deviceId;
+			this.mask = mask;
+		}
+
+		boolean matches(int type) {
+			return (mask & (1 << type))!=0;
+		}
+	}
+
+	/** Immutable index of the subscriptions */
+	private static class Index {
+
+		final Subscription[] global;
+
+		final Map<String, Subscription[]> byDevice;
+
+		/** All the types subscribed for all the devices */
+		final int globalMask;
+
+		Index(Subscription[] global, Map<String, Subscription[]> byDevice) {
+			this.global = global;
+			this.byDevice = byDevice;
+			int m = 0;
+			for (Subscription s : global)
+				m |= s.mask;
+			globalMask = m;
+		}
+	}
+
+	private final static Subscription[] NONE = new Subscription[0];
+
+	private volatile Index index = new Index(NONE, new HashMap<String, Subscription[]>());
+
+	/**
+	 * Subscribe a listener, replacing its subscription to the same device
+	 *
+	 * @param listener
+	 * 				the listener
+	 * @param deviceId
+	 * 				the device identifier, null for all the devices
+	 * @param mask
+	 * 				the types of events, see {@link DeviceEvent#mask(int...)}
+	 */
+	synchronized void subscribe(DeviceListener listener, String deviceId, int mask) {
+		Index old = index;
+		Subscription s = new Subscription(listener, deviceId, mask);
+		if (deviceId==null)
+			index = new Index(put(old.global, s), old.byDevice);
+		else {
+			Map<String, Subscription[]> byDevice = new HashMap<>(old.byDevice);
+			Subscription[] current = byDevice.get(deviceId);
+			byDevice.put(deviceId, put(current==null ? NONE : current, s));
+			index = new Index(old.global, byDevice);
+		}
+	}
+
+	private static Subscription[] put(Subscription[] subscriptions, Subscription s) {
+		for (int i=0; i<subscriptions.length; i++)
+			if (subscriptions[i].listener.equals(s.listener)) {
+				Subscription[] ret = subscriptions.clone();
+				ret[i] = s;
+				return ret;
+			}
+		Subscription[] ret = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+		ret[subscriptions.length] = s;
+		return ret;
+	}
+
+	/**
+	 * Remove all the subscriptions of a listener
+	 *
+	 * @param listener
+	 * 				the listener
+	 */
+	synchronized void unsubscribe(DeviceListener listener) {
+		Index old = index;
+		Map<String, Subscription[]> byDevice = new HashMap<>();
+		for (Map.Entry<String, Subscription[]> e : old.byDevice.entrySet()) {
+			Subscription[] s = remove(e.getValue(), listener);
+			if (s.length>0)
+				byDevice.put(e.getKey(), s);
+		}
+		index = new Index(remove(old.global, listener), byDevice);
+	}
+
+	private static Subscription[] remove(Subscription[] subscriptions, DeviceListener listener) {
+		Subscription[] ret = new Subscription[subscriptions.length];
+		int n = 0;
+		for (Subscription s : subscriptions)
+			if (!s.listener.equals(listener))
+				ret[n++] = s;
+		return n==subscriptions.length ? subscriptions : Arrays.copyOf(ret, n);
+	}
+
+	/**
+	 * @param device
+	 * 				the device source of an event
+	 * @param type
+	 * 				the type of the event
+	 * @return
+	 * 			true if any listener is subscribed to the event
+	 */
+	boolean isSubscribed(Device device, int type) {
+		Index i = index;
+		if ((i.globalMask & (1 << type))!=0)
+			return true;
+		Subscription[] s = i.byDevice.get(device.getId());
+		if (s!=null)
+			for (Subscription d : s)
+				if (d.matches(type))
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return
+	 * 			the subscriptions for all the devices
+	 */
+	Subscription[] getGlobal() {
+		return index.global;
+	}
+
+	/**
+	 * @param deviceId
+	 * 				the device identifier
+	 * @return
+	 * 			the subscriptions for the device only
+	 */
+	Subscription[] get(String deviceId) {
+		Subscription[] ret = index.byDevice.get(deviceId);
+		return ret==null ? NONE : ret;
+	}
+
+}
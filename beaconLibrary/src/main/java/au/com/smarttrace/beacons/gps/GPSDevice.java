@@ -16,6 +16,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.location.LocationListener;
+import com.google.gson.annotations.JsonAdapter;
 
 import au.com.smarttrace.beacons.Device;
 import au.com.smarttrace.beacons.InternalDevice;
@@ -30,13 +31,18 @@ public class GPSDevice extends InternalDevice implements LocationListener {
 
     public static final String IDENTIFIER = "01_internal_GPS";
 
+    /** Key of the simplified track, next to the raw fixes */
+    public static final String KEY_TRACK = "track";
+
     private int signal;
     private ResultReceiver receiver;
     private Location location;
     private Sample sample;
     private String address;
+    private TrackSimplifier simplifier;
     public static LocationCompacter COMPACTER = new LocationCompacter();
 
+    @JsonAdapter(SampleAdapter.class)
     public static class Sample {
         public double lat, lng;
         public float acc;
@@ -116,8 +122,11 @@ public class GPSDevice extends InternalDevice implements LocationListener {
                 address = "";
                 AddressService.start(context, location, receiver);
             }
-            if (isDistinct || isTime)
-                addSample(KEY_LOCATION, newSample);
+            if (isDistinct || isTime) {
+                addRecord(newSample.time, KEY_LOCATION, newSample.lat, newSample.lng, newSample.acc);
+                if (simplifier!=null)
+                    simplifier.update();
+            }
         }
     }
 
@@ -164,10 +173,19 @@ public class GPSDevice extends InternalDevice implements LocationListener {
     @Override
     public synchronized void onTrackingStart(Tracking tracking) {
         super.onTrackingStart(tracking);
+        simplifier = new TrackSimplifier(tracking);
         if (sample!=null) {
             address = "";
             AddressService.start(context, location, receiver);
             addSample(KEY_LOCATION, sample);
         }
     }
+
+    @Override
+    public synchronized void onTrackingStop() {
+        if (simplifier!=null)
+            simplifier.finish();
+        simplifier = null;
+        super.onTrackingStop();
+    }
 }
@@ -2,20 +2,25 @@ package au.com.smarttrace.beacons.gps;
 
 import android.location.Location;
 
-import au.com.smarttrace.beacons.tracker.TrackingCompacter;
+import au.com.smarttrace.beacons.tracker.GeoCompacter;
 
 /**
  *
  */
-public class LocationCompacter implements TrackingCompacter<GPSDevice.Sample> {
+public class LocationCompacter implements GeoCompacter {
 
     protected final static long MAX_TIME_LAG = 5 * 60000l;
     protected final static double LOCATION_TOLERANCE = 0.0001d;
 
+    @Override
+    public boolean inThreshold(double lat1, double lng1, double lat2, double lng2) {
+        return Math.abs(lat1-lat2) < LOCATION_TOLERANCE
+                && Math.abs(lng1-lng2) < LOCATION_TOLERANCE;
+    }
+
     @Override
     public boolean inThreshold(GPSDevice.Sample o1, GPSDevice.Sample o2) {
-        return Math.abs(o1.lat-o2.lat) < LOCATION_TOLERANCE
-                && Math.abs(o1.lng-o2.lng) < LOCATION_TOLERANCE;
+        return inThreshold(o1.lat, o1.lng, o2.lat, o2.lng);
     }
 
     @Override
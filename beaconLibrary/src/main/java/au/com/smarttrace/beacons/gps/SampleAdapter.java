@@ -0,0 +1,52 @@
+package au.com.smarttrace.beacons.gps;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streaming Json conversion of {@link GPSDevice.Sample}: <code>{"lat":..,"lng":..,"acc":..}</code>
+ */
+class SampleAdapter extends TypeAdapter<GPSDevice.Sample> {
+
+    @Override
+    public void write(JsonWriter out, GPSDevice.Sample s) throws IOException {
+        if (s==null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("lat").value(s.lat);
+        out.name("lng").value(s.lng);
+        out.name("acc").value(Float.valueOf(s.acc));
+        out.endObject();
+    }
+
+    @Override
+    public GPSDevice.Sample read(JsonReader in) throws IOException {
+        if (in.peek()==JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        double lat = 0, lng = 0;
+        float acc = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("lat".equals(name))
+                lat = in.nextDouble();
+            else if ("lng".equals(name))
+                lng = in.nextDouble();
+            else if ("acc".equals(name))
+                acc = (float) in.nextDouble();
+            else
+                in.skipValue();
+        }
+        in.endObject();
+        return new GPSDevice.Sample(lat, lng, acc);
+    }
+
+}
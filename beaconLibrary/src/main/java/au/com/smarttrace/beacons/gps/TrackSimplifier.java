@@ -0,0 +1,177 @@
+package au.com.smarttrace.beacons.gps;
+
+import au.com.smarttrace.beacons.tracker.Tracking;
+
+/**
+ * <p>
+ * Simplification of the track of a recording, with the Douglas-Peucker algorithm: the
+ * simplified polyline passes within a tolerance (in meters) of all the location fixes.
+ *
+ * <p>
+ * The fixes that start or end a gap in the track, and the ones where the accuracy changes
+ * noticeably, are always kept, so that the map still shows where the position was lost or
+ * uncertain.
+ *
+ * <p>
+ * During a recording the raw fixes are simplified in chunks, and the kept ones are added to
+ * the tracking under {@link GPSDevice#KEY_TRACK}; the raw fixes stay under
+ * {@link GPSDevice#KEY_LOCATION}.
+ */
+public class TrackSimplifier {
+
+    /** Maximum distance of a fix from the simplified track, in meters */
+    public final static double TOLERANCE = 10;
+
+    /** Relative change of accuracy that is always kept */
+    public final static float ACCURACY_CHANGE = 0.5f;
+
+    /** A fix is expected at least every {@link LocationCompacter#MAX_TIME_LAG} */
+    public final static long GAP = 2 * LocationCompacter.MAX_TIME_LAG;
+
+    /** Number of raw fixes simplified at once during a recording */
+    final static int CHUNK = 128;
+
+    /** Meters in a degree of latitude */
+    private final static double METERS_PER_DEGREE = 6378137 * Math.PI / 180;
+
+    private final Tracking tracking;
+
+    /** Time of the last raw fix simplified, the first of the next chunk */
+    private long anchorTime = Long.MIN_VALUE;
+
+    public TrackSimplifier(Tracking tracking) {
+        this.tracking = tracking;
+    }
+
+    /** Simplify the raw fixes received so far, if enough of them */
+    public void update() {
+        simplify(false);
+    }
+
+    /** Simplify all the remaining fixes, when the tracking stops */
+    public void finish() {
+        simplify(true);
+    }
+
+    private void simplify(boolean last) {
+        // on the writer side, the late fixes can be merged
+        tracking.flush();
+        Tracking.Data raw = tracking.getSamples(GPSDevice.KEY_LOCATION);
+        if (raw==null)
+            return;
+        int from = raw.indexOf(anchorTime);
+        if (from>=raw.size() || !last && raw.size() - from<=CHUNK)
+            return;
+        Tracking.Data chunk = raw.subData(from, raw.size());
+        int[] kept = simplify(chunk, TOLERANCE);
+        // the last fix of the chunk is added with the next one
+        int n = last ? kept.length : kept.length - 1;
+        for (int i=0; i<n; i++) {
+            int k = kept[i];
+            tracking.addSample(chunk.getTime(k), GPSDevice.KEY_TRACK, new GPSDevice.Sample(
+                    chunk.getLatitude(k), chunk.getLongitude(k), chunk.getAccuracy(k)));
+        }
+        anchorTime = last ? Long.MAX_VALUE : chunk.getTime(chunk.size() - 1);
+    }
+
+    /**
+     * Choose the fixes of a simplified track
+     *
+     * @param data
+     *              the location fixes, or a view on them
+     * @param tolerance
+     *              the maximum distance of a dropped fix from the track, in meters
+     * @return
+     *          the sorted indexes of the kept fixes in the data
+     */
+    public static int[] simplify(Tracking.Data data, double tolerance) {
+        int n = data.size();
+        if (n<=2) {
+            int[] ret = new int[n];
+            for (int i=0; i<n; i++)
+                ret[i] = i;
+            return ret;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n-1] = true;
+        float accuracy = data.getAccuracy(0);
+        for (int i=1; i<n; i++) {
+            if (data.getTime(i) - data.getTime(i-1)>GAP) {
+                keep[i-1] = true;
+                keep[i] = true;
+            }
+            float a = data.getAccuracy(i);
+            if (Math.abs(a - accuracy)>ACCURACY_CHANGE * Math.min(a, accuracy)) {
+                keep[i] = true;
+                accuracy = a;
+            }
+        }
+
+        // local projection in meters
+        double scale = Math.cos(Math.toRadians(data.getLatitude(0))) * METERS_PER_DEGREE;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i=0; i<n; i++) {
+            x[i] = data.getLongitude(i) * scale;
+            y[i] = data.getLatitude(i) * METERS_PER_DEGREE;
+        }
+
+        // Douglas-Peucker between the fixes kept so far, without recursion
+        int[] stack = new int[2 * n];
+        int top = 0;
+        for (int a=0, b=1; b<n; b++) {
+            if (!keep[b])
+                continue;
+            stack[top++] = a;
+            stack[top++] = b;
+            a = b;
+        }
+        double tolerance2 = tolerance * tolerance;
+        while (top>0) {
+            int b = stack[--top];
+            int a = stack[--top];
+            double max = tolerance2;
+            int farthest = -1;
+            for (int i=a+1; i<b; i++) {
+                double d = distance2(x[i], y[i], x[a], y[a], x[b], y[b]);
+                if (d>max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if (farthest<0)
+                continue;
+            keep[farthest] = true;
+            stack[top++] = a;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = b;
+        }
+
+        int count = 0;
+        for (boolean k : keep)
+            if (k)
+                count++;
+        int[] ret = new int[count];
+        count = 0;
+        for (int i=0; i<n; i++)
+            if (keep[i])
+                ret[count++] = i;
+        return ret;
+    }
+
+    /** Square of the distance of a point from a segment */
+    private static double distance2(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double l2 = dx * dx + dy * dy;
+        double t = l2==0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / l2;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - ax - t * dx;
+        double ey = py - ay - t * dy;
+        return ex * ex + ey * ey;
+    }
+
+}
@@ -14,6 +14,9 @@ public abstract class TemperatureDevice extends Device {
     public static final String KEY_TEMPERATURE		= "temperature";
     public static final String KEY_HUMIDITY			= "humidity";
 
+    /** Battery level of a reading that does not report it, never recorded */
+    public static final int BATTERY_UNKNOWN = -1;
+
 
     /** Disable polling... */
     protected final static int STATE_NULL = -1;
@@ -192,13 +195,51 @@ public abstract class TemperatureDevice extends Device {
         this.humidity = humidity;
         this.battery = battery;
 
-        //add samples if recording
-        addSample(KEY_TEMPERATURE, temperature);
-        addSample(KEY_HUMIDITY, humidity);
+        //add a record if recording, always with the same keys; the battery apart, if reported
+        long time = System.currentTimeMillis();
+        addRecord(time, KEY_TEMPERATURE, temperature, KEY_HUMIDITY, humidity);
         if (battery>=0)
-            addSample(KEY_BATTERY, battery);
+            addSample(time, KEY_BATTERY, battery);
 
         fireUpdate(message);
     }
 
+    /**
+     * Add a batch of past readings (e.g. downloaded from the data logger of the device) to the
+     * current trackingOn, with the same keys of the live updates and the battery only if
+     * reported. A reading is dropped if a temperature is already stored within the resolution
+     * of its time, since the clock of the device is coarser than the one of the live updates;
+     * the readings at the time of a stored sample are dropped anyway when the batch is merged.
+     *
+     * @param times
+     *              the times of the readings
+     * @param temperatures
+     *              the temperatures
+     * @param humidities
+     *              the humidities
+     * @param batteries
+     *              the battery levels, {@link #BATTERY_UNKNOWN} if not reported (not recorded)
+     * @param n
+     *              the number of readings
+     * @param resolution
+     *              the resolution of the times, in ms
+     * @return
+     *          the number of readings added
+     */
+    protected synchronized int addRecords(long[] times, float[] temperatures, float[] humidities,
+                                          int[] batteries, int n, long resolution) {
+        int ret = 0;
+        for (int i=0; i<n; i++) {
+            if (hasSample(KEY_TEMPERATURE, times[i], times[i] + resolution - 1))
+                continue;
+            if (!addRecord(times[i], KEY_TEMPERATURE, temperatures[i], KEY_HUMIDITY, humidities[i]))
+                continue;
+            if (batteries[i]>=0)
+                addSample(times[i], KEY_BATTERY, batteries[i]);
+            ret++;
+        }
+        flushRecords();
+        return ret;
+    }
+
 }
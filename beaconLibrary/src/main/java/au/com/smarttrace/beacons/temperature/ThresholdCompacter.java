@@ -1,16 +1,21 @@
 package au.com.smarttrace.beacons.temperature;
 
-import au.com.smarttrace.beacons.tracker.TrackingCompacter;
+import au.com.smarttrace.beacons.tracker.FloatCompacter;
 
-public class ThresholdCompacter implements TrackingCompacter<Float> {
+public class ThresholdCompacter implements FloatCompacter {
 
     public final static float THRESHOLD = 0.015f;
 
     public final static long TIME_THRESHOLD = 5 * 60000l;
 
+    @Override
+    public boolean inThreshold(float v1, float v2) {
+        return Math.abs(v1-v2) < THRESHOLD;
+    }
+
     @Override
     public boolean inThreshold(Float o1, Float o2) {
-        return Math.abs(o1-o2) < THRESHOLD;
+        return inThreshold(o1.floatValue(), o2.floatValue());
     }
 
     @Override
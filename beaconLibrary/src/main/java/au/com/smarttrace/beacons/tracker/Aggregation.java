@@ -0,0 +1,286 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Aggregate query over many stored recordings, run by
+ * {@link RecordingManager#aggregate(Aggregation, long, long)}.
+ *
+ * <p>
+ * Each recording is folded in its own partial aggregate, from the samples of the keys of the
+ * aggregation only; the partial aggregates are then merged. A partial aggregate is used by one
+ * thread at a time, but different recordings are folded concurrently, so an aggregation must not
+ * keep state outside of its partial aggregates.
+ *
+ * @param <A>
+ *          the type of the aggregate
+ */
+public abstract class Aggregation<A> {
+
+    private final Collection<String> keys;
+
+    /**
+     * @param keys
+     *              the keys of the samples to aggregate
+     */
+    protected Aggregation(String... keys) {
+        this.keys = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keys)));
+    }
+
+    /** The keys of the samples to aggregate */
+    public Collection<String> getKeys() {
+        return keys;
+    }
+
+    /** Create an empty partial aggregate */
+    public abstract A create();
+
+    /**
+     * Fold the samples of a device key in a partial aggregate
+     *
+     * @param partial
+     *              the partial aggregate
+     * @param deviceId
+     *              the device identifier
+     * @param key
+     *              the key of the samples
+     * @param samples
+     *              the samples in the time range of the query
+     */
+    public abstract void add(A partial, String deviceId, String key, Tracking.Data samples);
+
+    /**
+     * Merge two partial aggregates
+     *
+     * @return
+     *          the merged aggregate, possibly one of the two
+     */
+    public abstract A merge(A a1, A a2);
+
+    /**
+     * <p>
+     * Calendar periods (days, months...) of the samples in a time zone.
+     *
+     * <p>
+     * The bounds of the last period found are kept, so that the calendar is only used when a
+     * sample falls in a new period.
+     */
+    public static class Periods {
+
+        private final Calendar calendar;
+        private final int field;
+        private long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+
+        /**
+         * @param field
+         *              the {@link Calendar} field of the period, like {@link Calendar#DAY_OF_MONTH}
+         * @param zone
+         *              the time zone
+         */
+        public Periods(int field, TimeZone zone) {
+            this.calendar = Calendar.getInstance(zone);
+            this.field = field;
+        }
+
+        /**
+         * Start of the period of a time
+         *
+         * @param time
+         *              the time in ms
+         * @return
+         *          the start of the period in ms
+         */
+        public long start(long time) {
+            if (time<start || time>=end) {
+                calendar.setTimeInMillis(time);
+                // clear the fields finer than the period
+                switch (field) {
+                    case Calendar.YEAR:
+                        calendar.set(Calendar.MONTH, Calendar.JANUARY);
+                    case Calendar.MONTH:
+                        calendar.set(Calendar.DAY_OF_MONTH, 1);
+                    case Calendar.DAY_OF_MONTH:
+                        calendar.set(Calendar.HOUR_OF_DAY, 0);
+                    case Calendar.HOUR_OF_DAY:
+                        calendar.set(Calendar.MINUTE, 0);
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MILLISECOND, 0);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported period " + field);
+                }
+                start = calendar.getTimeInMillis();
+                calendar.add(field, 1);
+                end = calendar.getTimeInMillis();
+            }
+            return start;
+        }
+    }
+
+    /**
+     * Aggregate of a value for each device and period, by start of the period
+     *
+     * @param <V>
+     *          the type of the value
+     */
+    public static class ByPeriod<V> extends HashMap<String, SortedMap<Long, V>> {
+
+        /** The values of a device, created if missing */
+        public SortedMap<Long, V> get(String deviceId, boolean create) {
+            SortedMap<Long, V> ret = get(deviceId);
+            if (ret==null && create) {
+                ret = new TreeMap<>();
+                put(deviceId, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Maximum of a numeric key for each device and period
+     */
+    public static class Max extends Aggregation<ByPeriod<Float>> {
+
+        private final int field;
+        private final TimeZone zone;
+
+        /**
+         * @param key
+         *              the numeric key
+         * @param field
+         *              the {@link Calendar} field of the period, like {@link Calendar#DAY_OF_MONTH}
+         * @param zone
+         *              the time zone of the periods
+         */
+        public Max(String key, int field, TimeZone zone) {
+            super(key);
+            this.field = field;
+            this.zone = zone;
+        }
+
+        @Override
+        public ByPeriod<Float> create() {
+            return new ByPeriod<>();
+        }
+
+        @Override
+        public void add(ByPeriod<Float> partial, String deviceId, String key, Tracking.Data samples) {
+            if (samples.size()==0 || !samples.isNumeric())
+                return;
+            SortedMap<Long, Float> values = partial.get(deviceId, true);
+            Periods periods = new Periods(field, zone);
+            long period = periods.start(samples.getTime(0));
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i=0; i<samples.size(); i++) {
+                long p = periods.start(samples.getTime(i));
+                if (p!=period) {
+                    put(values, period, max);
+                    period = p;
+                    max = Float.NEGATIVE_INFINITY;
+                }
+                max = Math.max(max, samples.getFloat(i));
+            }
+            put(values, period, max);
+        }
+
+        private static void put(SortedMap<Long, Float> values, long period, float max) {
+            Float old = values.get(period);
+            if (old==null || old<max)
+                values.put(period, max);
+        }
+
+        @Override
+        public ByPeriod<Float> merge(ByPeriod<Float> a1, ByPeriod<Float> a2) {
+            for (Map.Entry<String, SortedMap<Long, Float>> e : a2.entrySet()) {
+                SortedMap<Long, Float> values = a1.get(e.getKey(), true);
+                for (Map.Entry<Long, Float> v : e.getValue().entrySet())
+                    put(values, v.getKey(), v.getValue());
+            }
+            return a1;
+        }
+    }
+
+    /**
+     * <p>
+     * Time spent by a numeric key out of a range, in ms, for each device and period.
+     *
+     * <p>
+     * A value holds until the next sample, but not longer than {@link #MAX_HOLD}: the compacters
+     * store a sample at least every few minutes, so a longer gap means that the device was not
+     * tracked. The time is counted in the period of the sample that starts it.
+     */
+    public static class OutOfRange extends Aggregation<ByPeriod<Long>> {
+
+        public final static long MAX_HOLD = 10 * 60000l;
+
+        private final float min, max;
+        private final int field;
+        private final TimeZone zone;
+
+        /**
+         * @param key
+         *              the numeric key
+         * @param min
+         *              the minimum of the range, inclusive
+         * @param max
+         *              the maximum of the range, inclusive
+         * @param field
+         *              the {@link Calendar} field of the period, like {@link Calendar#MONTH}
+         * @param zone
+         *              the time zone of the periods
+         */
+        public OutOfRange(String key, float min, float max, int field, TimeZone zone) {
+            super(key);
+            this.min = min;
+            this.max = max;
+            this.field = field;
+            this.zone = zone;
+        }
+
+        @Override
+        public ByPeriod<Long> create() {
+            return new ByPeriod<>();
+        }
+
+        @Override
+        public void add(ByPeriod<Long> partial, String deviceId, String key, Tracking.Data samples) {
+            if (samples.size()<2 || !samples.isNumeric())
+                return;
+            SortedMap<Long, Long> values = partial.get(deviceId, true);
+            Periods periods = new Periods(field, zone);
+            for (int i=0; i<samples.size()-1; i++) {
+                float v = samples.getFloat(i);
+                if (v>=min && v<=max)
+                    continue;
+                long time = samples.getTime(i);
+                add(values, periods.start(time), Math.min(samples.getTime(i+1) - time, MAX_HOLD));
+            }
+        }
+
+        private static void add(SortedMap<Long, Long> values, long period, long duration) {
+            Long old = values.get(period);
+            values.put(period, old==null ? duration : old + duration);
+        }
+
+        @Override
+        public ByPeriod<Long> merge(ByPeriod<Long> a1, ByPeriod<Long> a2) {
+            for (Map.Entry<String, SortedMap<Long, Long>> e : a2.entrySet()) {
+                SortedMap<Long, Long> values = a1.get(e.getKey(), true);
+                for (Map.Entry<Long, Long> v : e.getValue().entrySet())
+                    add(values, v.getKey(), v.getValue());
+            }
+            return a1;
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.util.Arrays;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Growable storage for the values of a {@link Tracking.Data} component.
+ *
+ * <p>
+ * Values are kept in primitive arrays when the type is known (floats, ints and locations),
+ * so that no object is allocated per sample. Positions and size are managed by the owning
+ * data, that keeps the timeline aligned with the column.
+ *
+ * @param <T>
+ *          the (boxed) type of the values
+ */
+abstract class Column<T> {
+
+    /**
+     * Choose the storage for a type of values
+     *
+     * @param dataClass
+     *              the class of the values, or null if unknown
+     * @param capacity
+     *              the initial capacity
+     * @return
+     *          a new empty column
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Column<T> forClass(Class<T> dataClass, int capacity) {
+        if (dataClass==Float.class)
+            return (Column<T>) new Floats(capacity);
+        if (dataClass==Integer.class)
+            return (Column<T>) new Ints(capacity);
+        if (dataClass==GPSDevice.Sample.class)
+            return (Column<T>) new Locations(capacity);
+        return new Objects<>(capacity);
+    }
+
+    /** Class of the values stored in this column */
+    abstract Class<?> getDataClass();
+
+    /** Reallocate the storage keeping the content */
+    abstract void grow(int capacity);
+
+    /** Move the values in <code>[index, size)</code> one position forward */
+    abstract void shift(int index, int size);
+
+    /** Set a value from a column of the same type, or from another position of this column */
+    abstract void copy(Column<T> src, int from, int to);
+
+    abstract T get(int i);
+
+    abstract void set(int i, T o);
+
+    /** Estimated heap size of the storage, in bytes */
+    abstract long estimateBytes();
+
+    boolean isNumeric() {
+        return false;
+    }
+
+    float getFloat(int i) {
+        throw new UnsupportedOperationException("Not a numeric column: " + getDataClass());
+    }
+
+    int getInt(int i) {
+        throw new UnsupportedOperationException("Not a numeric column: " + getDataClass());
+    }
+
+    @SuppressWarnings("unchecked")
+    void setFloat(int i, float v) {
+        set(i, (T) Float.valueOf(v));
+    }
+
+    @SuppressWarnings("unchecked")
+    void setInt(int i, int v) {
+        set(i, (T) Integer.valueOf(v));
+    }
+
+    double getLatitude(int i) {
+        throw new UnsupportedOperationException("Not a location column: " + getDataClass());
+    }
+
+    double getLongitude(int i) {
+        throw new UnsupportedOperationException("Not a location column: " + getDataClass());
+    }
+
+    float getAccuracy(int i) {
+        throw new UnsupportedOperationException("Not a location column: " + getDataClass());
+    }
+
+    void setLocation(int i, double lat, double lng, float acc) {
+        throw new UnsupportedOperationException("Not a location column: " + getDataClass());
+    }
+
+    static class Floats extends Column<Float> {
+        float[] values;
+        Floats(int capacity) {
+            values = new float[capacity];
+        }
+        @Override
+        Class<?> getDataClass() {
+            return Float.class;
+        }
+        @Override
+        long estimateBytes() {
+            return 4L * values.length;
+        }
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+        @Override
+        void shift(int index, int size) {
+            System.arraycopy(values, index, values, index+1, size-index);
+        }
+        @Override
+        void copy(Column<Float> src, int from, int to) {
+            values[to] = ((Floats) src).values[from];
+        }
+        @Override
+        Float get(int i) {
+            return values[i];
+        }
+        @Override
+        void set(int i, Float o) {
+            values[i] = o;
+        }
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+        @Override
+        float getFloat(int i) {
+            return values[i];
+        }
+        @Override
+        int getInt(int i) {
+            return (int) values[i];
+        }
+        @Override
+        void setFloat(int i, float v) {
+            values[i] = v;
+        }
+        @Override
+        void setInt(int i, int v) {
+            values[i] = v;
+        }
+    }
+
+    static class Ints extends Column<Integer> {
+        int[] values;
+        Ints(int capacity) {
+            values = new int[capacity];
+        }
+        @Override
+        Class<?> getDataClass() {
+            return Integer.class;
+        }
+        @Override
+        long estimateBytes() {
+            return 4L * values.length;
+        }
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+        @Override
+        void shift(int index, int size) {
+            System.arraycopy(values, index, values, index+1, size-index);
+        }
+        @Override
+        void copy(Column<Integer> src, int from, int to) {
+            values[to] = ((Ints) src).values[from];
+        }
+        @Override
+        Integer get(int i) {
+            return values[i];
+        }
+        @Override
+        void set(int i, Integer o) {
+            values[i] = o;
+        }
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+        @Override
+        float getFloat(int i) {
+            return values[i];
+        }
+        @Override
+        int getInt(int i) {
+            return values[i];
+        }
+        /** A float added to an integer key is rounded */
+        @Override
+        void setFloat(int i, float v) {
+            values[i] = Math.round(v);
+        }
+        @Override
+        void setInt(int i, int v) {
+            values[i] = v;
+        }
+    }
+
+    /** Struct of arrays for {@link GPSDevice.Sample} */
+    static class Locations extends Column<GPSDevice.Sample> {
+        double[] lat, lng;
+        float[] acc;
+        Locations(int capacity) {
+            lat = new double[capacity];
+            lng = new double[capacity];
+            acc = new float[capacity];
+        }
+        @Override
+        Class<?> getDataClass() {
+            return GPSDevice.Sample.class;
+        }
+        @Override
+        long estimateBytes() {
+            return 20L * lat.length;
+        }
+        @Override
+        void grow(int capacity) {
+            lat = Arrays.copyOf(lat, capacity);
+            lng = Arrays.copyOf(lng, capacity);
+            acc = Arrays.copyOf(acc, capacity);
+        }
+        @Override
+        void shift(int index, int size) {
+            System.arraycopy(lat, index, lat, index+1, size-index);
+            System.arraycopy(lng, index, lng, index+1, size-index);
+            System.arraycopy(acc, index, acc, index+1, size-index);
+        }
+        @Override
+        void copy(Column<GPSDevice.Sample> src, int from, int to) {
+            Locations l = (Locations) src;
+            setLocation(to, l.lat[from], l.lng[from], l.acc[from]);
+        }
+        @Override
+        GPSDevice.Sample get(int i) {
+            return new GPSDevice.Sample(lat[i], lng[i], acc[i]);
+        }
+        @Override
+        void set(int i, GPSDevice.Sample o) {
+            setLocation(i, o.lat, o.lng, o.acc);
+        }
+        @Override
+        double getLatitude(int i) {
+            return lat[i];
+        }
+        @Override
+        double getLongitude(int i) {
+            return lng[i];
+        }
+        @Override
+        float getAccuracy(int i) {
+            return acc[i];
+        }
+        @Override
+        void setLocation(int i, double lat, double lng, float acc) {
+            this.lat[i] = lat;
+            this.lng[i] = lng;
+            this.acc[i] = acc;
+        }
+        @Override
+        void setFloat(int i, float v) {
+            throw new UnsupportedOperationException("Not a numeric column: " + getDataClass());
+        }
+        @Override
+        void setInt(int i, int v) {
+            throw new UnsupportedOperationException("Not a numeric column: " + getDataClass());
+        }
+    }
+
+    /** Fallback for custom types (and untyped legacy data) */
+    static class Objects<T> extends Column<T> {
+        Object[] values;
+        Objects(int capacity) {
+            values = new Object[capacity];
+        }
+        @Override
+        Class<?> getDataClass() {
+            return Object.class;
+        }
+        @Override
+        long estimateBytes() {
+            // reference and a small boxed value
+            return 20L * values.length;
+        }
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+        @Override
+        void shift(int index, int size) {
+            System.arraycopy(values, index, values, index+1, size-index);
+        }
+        @Override
+        void copy(Column<T> src, int from, int to) {
+            values[to] = ((Objects<T>) src).values[from];
+        }
+        @Override
+        @SuppressWarnings("unchecked")
+        T get(int i) {
+            return (T) values[i];
+        }
+        @Override
+        void set(int i, T o) {
+            values[i] = o;
+        }
+        @Override
+        float getFloat(int i) {
+            return ((Number) values[i]).floatValue();
+        }
+        @Override
+        int getInt(int i) {
+            return ((Number) values[i]).intValue();
+        }
+    }
+
+}
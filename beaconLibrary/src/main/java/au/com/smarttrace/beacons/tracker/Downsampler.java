@@ -0,0 +1,119 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Reduction of a numeric series to a number of points that can actually be displayed, with
+ * the Largest-Triangle-Three-Buckets algorithm.
+ *
+ * <p>
+ * The samples between the first and the last one are split in buckets of equal count; from each
+ * bucket LTTB picks the point that forms the largest triangle with the point picked from the
+ * previous bucket and the average of the next one. The minimum and the maximum of each bucket are
+ * kept as well, so that no excursion is hidden by the reduction. Below 5 points there is no room
+ * for them: each bucket only gives its LTTB point.
+ */
+public class Downsampler {
+
+    /** Points kept from each bucket: the LTTB one, the minimum and the maximum */
+    private final static int POINTS_PER_BUCKET = 3;
+
+    private Downsampler() {}
+
+    /**
+     * Choose the samples to display
+     *
+     * @param data
+     *              the numeric samples, or a view on them
+     * @param threshold
+     *              the maximum number of points, usually the width in pixels
+     * @return
+     *          the sorted indexes of the chosen samples in the data, at most the threshold: the
+     *          first one alone for a threshold of 1, the first and the last one for 2
+     */
+    public static int[] downsample(Tracking.Data data, int threshold) {
+        int n = data.size();
+        if (threshold<=0)
+            return new int[0];
+        if (n<=threshold) {
+            int[] ret = new int[n];
+            for (int i=0; i<n; i++)
+                ret[i] = i;
+            return ret;
+        }
+        if (threshold==1)
+            return new int[] {0};
+        int perBucket = threshold - 2>=POINTS_PER_BUCKET ? POINTS_PER_BUCKET : 1;
+        int buckets = (threshold - 2) / perBucket;
+        double every = (double) (n - 2) / Math.max(1, buckets);
+
+        int[] ret = new int[buckets * perBucket + 2];
+        int count = 0;
+        ret[count++] = 0;
+        int a = 0;
+        int[] picked = new int[POINTS_PER_BUCKET];
+
+        for (int b=0; b<buckets; b++) {
+            int start = (int) (b * every) + 1;
+            int end = (int) ((b + 1) * every) + 1;
+
+            // average of the next bucket (the last point for the last bucket)
+            int nextStart = end;
+            int nextEnd = Math.min((int) ((b + 2) * every) + 1, n);
+            if (b==buckets-1) {
+                nextStart = n - 1;
+                nextEnd = n;
+            }
+            double avgX = 0, avgY = 0;
+            for (int i=nextStart; i<nextEnd; i++) {
+                avgX += data.getTime(i);
+                avgY += data.getFloat(i);
+            }
+            int m = nextEnd - nextStart;
+            avgX /= m;
+            avgY /= m;
+
+            double ax = data.getTime(a);
+            double ay = data.getFloat(a);
+            double maxArea = -1;
+            int lttb = start, min = start, max = start;
+            float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+            for (int i=start; i<end; i++) {
+                float y = data.getFloat(i);
+                double area = Math.abs((ax - avgX) * (y - ay) - (ax - data.getTime(i)) * (avgY - ay));
+                if (area>maxArea) {
+                    maxArea = area;
+                    lttb = i;
+                }
+                if (y<minY) {
+                    minY = y;
+                    min = i;
+                }
+                if (y>maxY) {
+                    maxY = y;
+                    max = i;
+                }
+            }
+
+            if (perBucket==1) {
+                ret[count++] = lttb;
+                a = lttb;
+                continue;
+            }
+            picked[0] = lttb;
+            picked[1] = min;
+            picked[2] = max;
+            Arrays.sort(picked);
+            for (int p : picked)
+                if (ret[count-1]!=p)
+                    ret[count++] = p;
+            a = lttb;
+        }
+
+        if (ret[count-1]!=n-1)
+            ret[count++] = n - 1;
+        return Arrays.copyOf(ret, count);
+    }
+
+}
@@ -0,0 +1,11 @@
+package au.com.smarttrace.beacons.tracker;
+
+/**
+ * A {@link TrackingCompacter} of float samples, called without boxing when the samples are
+ * stored in a float column
+ */
+public interface FloatCompacter extends TrackingCompacter<Float> {
+
+    public boolean inThreshold(float v1, float v2);
+
+}
@@ -0,0 +1,18 @@
+package au.com.smarttrace.beacons.tracker;
+
+/**
+ * A {@link SegmentCompacter} of float samples, offered the samples without boxing
+ */
+public interface FloatSegmentCompacter extends SegmentCompacter<Float>, FloatCompacter {
+
+    /**
+     * @see SegmentCompacter#wouldReplace(long, Object)
+     */
+    public boolean wouldReplace(long time, float v);
+
+    /**
+     * @see SegmentCompacter#commit(long, Object, boolean)
+     */
+    public void commit(long time, float v, boolean replaced);
+
+}
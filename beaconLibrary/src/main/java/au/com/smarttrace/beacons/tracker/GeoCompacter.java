@@ -0,0 +1,13 @@
+package au.com.smarttrace.beacons.tracker;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * A {@link TrackingCompacter} of locations, called with the coordinates instead of
+ * {@link GPSDevice.Sample} objects
+ */
+public interface GeoCompacter extends TrackingCompacter<GPSDevice.Sample> {
+
+    public boolean inThreshold(double lat1, double lng1, double lat2, double lng2);
+
+}
@@ -1,10 +1,15 @@
 package au.com.smarttrace.beacons.tracker;
 
-public class IntCompacter implements TrackingCompacter<Integer> {
+public class IntCompacter implements IntegerCompacter {
+
+    @Override
+    public boolean inThreshold(int v1, int v2) {
+        return v1==v2;
+    }
 
     @Override
     public boolean inThreshold(Integer o1, Integer o2) {
-        return o1.equals(o2);
+        return inThreshold(o1.intValue(), o2.intValue());
     }
 
     @Override
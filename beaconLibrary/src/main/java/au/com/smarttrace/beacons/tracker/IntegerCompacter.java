@@ -0,0 +1,11 @@
+package au.com.smarttrace.beacons.tracker;
+
+/**
+ * A {@link TrackingCompacter} of integer samples, called without boxing when the samples are
+ * stored in an integer column
+ */
+public interface IntegerCompacter extends TrackingCompacter<Integer> {
+
+    public boolean inThreshold(int v1, int v2);
+
+}
@@ -1,7 +1,11 @@
 package au.com.smarttrace.beacons.tracker;
 
+import com.google.gson.annotations.JsonAdapter;
+
 import java.text.DateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -15,6 +19,7 @@ import au.com.smarttrace.beacons.NoSuchDeviceException;
 /**
  *
  */
+@JsonAdapter(RecordingAdapter.Factory.class)
 public class Recording implements DeviceListener {
 
     public final static String TAG = Recording.class.getSimpleName();
@@ -24,6 +29,8 @@ public class Recording implements DeviceListener {
         Long begin;
         Long end;
         Integer readings;
+        /** Summaries of the series, empty for the recordings stored before them */
+        transient List<Summary> summaries = Collections.emptyList();
         Header() {}
         Header(Recording recording) {
             begin = recording.begin.getTime();
@@ -43,6 +50,21 @@ public class Recording implements DeviceListener {
             return readings;
         }
 
+        public List<Summary> getSummaries() {
+            return summaries;
+        }
+
+        /**
+         * @return
+         *          the summary of a device key, or null if not stored
+         */
+        public Summary getSummary(String deviceId, String key) {
+            for (Summary s : summaries)
+                if (s.deviceId.equals(deviceId) && s.key.equals(key))
+                    return s;
+            return null;
+        }
+
         @Override
         public int compareTo(Header h) {
             return h==null ? 1 : begin.compareTo(h.begin);
@@ -79,11 +101,27 @@ public class Recording implements DeviceListener {
      */
     private Map<String, Tracking> trackings;
 
+    /**
+     * Write-ahead log of the active recording
+     */
+    private transient RecordingLog log;
+
     public Recording() {
         begin = new Date();
         trackings = new TreeMap<>();
     }
 
+    /** Used when reading a stored recording */
+    Recording(Date begin, Date end) {
+        this.begin = begin;
+        this.end = end;
+        trackings = new TreeMap<>();
+    }
+
+    void putTracking(String deviceId, Tracking tracking) {
+        trackings.put(deviceId, tracking);
+    }
+
     public Date getBegin() {
         return begin;
     }
@@ -99,16 +137,51 @@ public class Recording implements DeviceListener {
         return ret;
     }
 
+    /** Estimated heap size of the samples, in bytes */
+    long estimateBytes() {
+        long ret = 0;
+        for (Tracking t : trackings.values())
+            ret += t.estimateBytes();
+        return ret;
+    }
+
     public Tracking getTracking(String deviceId) {
         return trackings.get(deviceId);
     }
 
+    /**
+     * Query the samples of a device key in a time range
+     *
+     * @param deviceId
+     *              the device identifier
+     * @param key
+     *              the key of the sample
+     * @param from
+     *              the begin of the range in ms, inclusive
+     * @param to
+     *              the end of the range in ms, inclusive
+     * @return
+     *          a read-only view on the samples, or null if not tracked
+     * @see RecordingManager#load(long, java.util.Collection, long, long)
+     */
+    public Tracking.Data samples(String deviceId, String key, long from, long to) {
+        Tracking t = trackings.get(deviceId);
+        return t==null ? null : t.getSamples(key, from, to);
+    }
+
     public synchronized void addDevice(Device device) {
+        // stopped while the devices were being added
+        if (!isActive())
+            return;
         Tracking t = trackings.get(device.getId());
         if (t==null) {
             t = new Tracking(device.getContext());
             trackings.put(device.getId(), t);
         }
+        if (log==null && isActive())
+            log = RecordingManager.getInstance().openLog(this);
+        if (log!=null)
+            t.setLog(log, device.getId());
         device.onTrackingStart(t);
     }
 
@@ -118,19 +191,36 @@ public class Recording implements DeviceListener {
 
     public synchronized void stop() {
         if (begin!=null && end==null) {
-            for (String id : trackings.keySet())
-                //stop only the devices that are actually present; the others must
-                //already have been stopped when removed from the manager
-                try {
-                    DeviceManager.getInstance().getDevice(id).onTrackingStop();
-                } catch(NoSuchDeviceException e) {
-//                    DeviceManager.getInstance().stopTracking(id);
-                }
+            stopDevices();
             end = new Date();
-            RecordingManager.getInstance().add(this);
+            for (Tracking t : trackings.values())
+                t.close();
+            RecordingManager.getInstance().add(this, log);
+            log = null;
         }
     }
 
+    /** Stop without storing anything, the log included */
+    public synchronized void cancel() {
+        if (begin!=null && end==null) {
+            stopDevices();
+            end = new Date();
+            RecordingManager.getInstance().cancel(this, log);
+            log = null;
+        }
+    }
+
+    private void stopDevices() {
+        for (String id : trackings.keySet())
+            //stop only the devices that are actually present; the others must
+            //already have been stopped when removed from the manager
+            try {
+                DeviceManager.getInstance().getDevice(id).onTrackingStop();
+            } catch(NoSuchDeviceException e) {
+//                DeviceManager.getInstance().stopTracking(id);
+            }
+    }
+
     public Set<String> getDeviceIds() {
         return trackings.keySet();
     }
@@ -0,0 +1,104 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * <p>
+ * Streaming Json conversion of {@link Recording}:
+ * <code>{"begin":..,"end":..,"trackings":{"deviceId":{...},...}}</code>
+ *
+ * <p>
+ * Times are written in ms; legacy recordings have them formatted as dates by Gson.
+ */
+class RecordingAdapter extends TypeAdapter<Recording> {
+
+    static class Factory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            return type.getRawType()==Recording.class
+                    ? (TypeAdapter<T>) new RecordingAdapter(gson) : null;
+        }
+    }
+
+    private final TypeAdapter<Tracking> trackingAdapter;
+
+    private final TypeAdapter<Date> dateAdapter;
+
+    RecordingAdapter(Gson gson) {
+        trackingAdapter = gson.getAdapter(Tracking.class);
+        dateAdapter = gson.getAdapter(Date.class);
+    }
+
+    @Override
+    public void write(JsonWriter out, Recording r) throws IOException {
+        if (r==null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("begin");
+        if (r.begin!=null)
+            out.value(r.begin.getTime());
+        else
+            out.nullValue();
+        out.name("end");
+        if (r.end!=null)
+            out.value(r.end.getTime());
+        else
+            out.nullValue();
+        out.name("trackings").beginObject();
+        for (String id : r.getDeviceIds()) {
+            out.name(id);
+            trackingAdapter.write(out, r.getTracking(id));
+        }
+        out.endObject();
+        out.endObject();
+    }
+
+    @Override
+    public Recording read(JsonReader in) throws IOException {
+        if (in.peek()==JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Recording ret = new Recording(null, null);
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("begin".equals(name))
+                ret.begin = readDate(in);
+            else if ("end".equals(name))
+                ret.end = readDate(in);
+            else if ("trackings".equals(name)) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String id = in.nextName();
+                    Tracking t = trackingAdapter.read(in);
+                    if (t!=null)
+                        ret.putTracking(id, t);
+                }
+                in.endObject();
+            } else
+                in.skipValue();
+        }
+        in.endObject();
+        return ret;
+    }
+
+    private Date readDate(JsonReader in) throws IOException {
+        if (in.peek()==JsonToken.NUMBER)
+            return new Date(in.nextLong());
+        return dateAdapter.read(in);
+    }
+
+}
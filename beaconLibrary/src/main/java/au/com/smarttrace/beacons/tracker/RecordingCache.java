@@ -0,0 +1,176 @@
+package au.com.smarttrace.beacons.tracker;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Cache of the recordings loaded in memory, bounded by their estimated size in bytes.
+ *
+ * <p>
+ * When the budget is exceeded the least recently used recordings are evicted, except the pinned
+ * ones (e.g. the recording currently displayed). The cache is also trimmed on the memory pressure
+ * levels of {@link ComponentCallbacks2#onTrimMemory(int)}.
+ */
+public class RecordingCache {
+
+    private final static String TAG = RecordingCache.class.getSimpleName();
+
+    private static class Entry {
+        final Recording recording;
+        final long bytes;
+        Entry(Recording recording) {
+            this.recording = recording;
+            this.bytes = recording.estimateBytes();
+        }
+    }
+
+    /** Entries in access order, the eldest first */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Pin count by begin time */
+    private final Map<Long, Integer> pinned = new HashMap<>();
+
+    private long budget;
+
+    private long bytes;
+
+    private int hits, misses, evictions;
+
+    RecordingCache(long budget) {
+        this.budget = budget;
+    }
+
+    synchronized Recording get(long begin) {
+        Entry e = entries.get(begin);
+        if (e==null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.recording;
+    }
+
+    synchronized void put(long begin, Recording recording) {
+        Entry e = new Entry(recording);
+        Entry old = entries.put(begin, e);
+        if (old!=null)
+            bytes -= old.bytes;
+        bytes += e.bytes;
+        trimTo(budget);
+    }
+
+    synchronized Recording remove(long begin) {
+        Entry e = entries.remove(begin);
+        if (e==null)
+            return null;
+        bytes -= e.bytes;
+        return e.recording;
+    }
+
+    /**
+     * Keep a recording in memory until {@link #unpin(long)}, regardless of the budget
+     *
+     * @param begin
+     *              the begin time of the recording, even if not loaded yet
+     */
+    public synchronized void pin(long begin) {
+        Integer n = pinned.get(begin);
+        pinned.put(begin, n==null ? 1 : n + 1);
+    }
+
+    public synchronized void unpin(long begin) {
+        Integer n = pinned.get(begin);
+        if (n==null)
+            return;
+        if (n>1)
+            pinned.put(begin, n - 1);
+        else {
+            pinned.remove(begin);
+            trimTo(budget);
+        }
+    }
+
+    /**
+     * Evict the least recently used recordings not pinned, until the size is within a limit
+     *
+     * @param limit
+     *              the limit in bytes
+     */
+    private void trimTo(long limit) {
+        Iterator<Map.Entry<Long, Entry>> i = entries.entrySet().iterator();
+        while (bytes>limit && i.hasNext()) {
+            Map.Entry<Long, Entry> e = i.next();
+            if (pinned.containsKey(e.getKey()))
+                continue;
+            i.remove();
+            bytes -= e.getValue().bytes;
+            evictions++;
+        }
+    }
+
+    /**
+     * React to a memory pressure level
+     *
+     * @param level
+     *              the level, as in {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    synchronized void trim(int level) {
+        long before = bytes;
+        if (level>=ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level==ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            trimTo(0);
+        else if (level>=ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level==ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            trimTo(Math.min(bytes, budget) / 2);
+        else
+            trimTo(Math.min(bytes, budget) * 3 / 4);
+        Log.d(TAG, "Trim level "+level+": "+before+" -> "+bytes+" bytes");
+    }
+
+    /**
+     * @param budget
+     *              the maximum estimated size of the unpinned recordings, in bytes
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trimTo(budget);
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /** Estimated size of the cached recordings, in bytes */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d recordings, %d/%d bytes, %d hits, %d misses, %d evictions",
+                entries.size(), bytes, budget, hits, misses, evictions);
+    }
+
+}
@@ -0,0 +1,417 @@
+package au.com.smarttrace.beacons.tracker;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Append-only catalog of the {@link Recording.Header}s of the stored recordings.
+ *
+ * <p>
+ * The headers are binary records (begin, end, readings, flags, length of the summaries) followed
+ * by the {@link Summary}s of the recording, and the catalog ends with a small footer with the
+ * count of records; adding a header overwrites the footer with the new record and writes the
+ * footer again after it. The records are memory-mapped and their offsets are kept, so a header
+ * is read by position without parsing the whole catalog, and found by begin time through an
+ * index of the positions. A removed header is only marked as a
+ * tombstone, and the tombstones are dropped by {@link #compact()}.
+ *
+ * <p>
+ * If the footer is torn by a crash, the records are recovered scanning the marker in their flags.
+ * The catalogs of version 1, with fixed-size records and without summaries, are upgraded when
+ * opened.
+ */
+class RecordingCatalog {
+
+    private final static String TAG = RecordingCatalog.class.getSimpleName();
+
+    /** Size of a record without its summaries */
+    final static int RECORD_SIZE = 28;
+
+    final static int FOOTER_SIZE = 16;
+
+    private final static int FOOTER_MAGIC = 0x53545249; // STRI
+
+    final static int VERSION = 2;
+
+    /** Size of the records of version 1 */
+    private final static int V1_RECORD_SIZE = 24;
+
+    /** Marker in the flags of a valid record */
+    private final static int RECORD_MARKER = 0x53540000;
+
+    private final static int FLAG_TOMBSTONE = 1;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /** Read-only mapping of the records */
+    private MappedByteBuffer map;
+
+    /** Number of records, tombstones included */
+    private int count;
+
+    /** End of the records, where the footer starts */
+    private long end;
+
+    /** Offsets of the live headers, in order of position */
+    private int[] live = new int[64];
+    private int size;
+
+    /** Positions of the live headers, by begin time */
+    private final Map<Long, Integer> positions = new HashMap<>();
+
+    private RecordingCatalog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a catalog, creating it if needed
+     *
+     * @param file
+     *              the catalog file
+     * @return
+     *          the catalog
+     * @throws IOException
+     *          for I/O problems
+     */
+    static RecordingCatalog open(File file) throws IOException {
+        RecordingCatalog ret = new RecordingCatalog(file);
+        ret.init();
+        return ret;
+    }
+
+    private void init() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long length = channel.size();
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+        boolean recovered = true;
+        if (length>=FOOTER_SIZE) {
+            int offset = (int) (length - FOOTER_SIZE);
+            int version = map.getInt(offset + 4);
+            int n = map.getInt(offset + 8);
+            if (map.getInt(offset)==FOOTER_MAGIC) {
+                if (version==VERSION && scan(length - FOOTER_SIZE, n)==length - FOOTER_SIZE
+                        && count==n) {
+                    end = length - FOOTER_SIZE;
+                    recovered = false;
+                } else if (version==1 && n==(length - FOOTER_SIZE) / V1_RECORD_SIZE
+                        && n * (long) V1_RECORD_SIZE==length - FOOTER_SIZE) {
+                    upgrade(n);
+                    return;
+                }
+            }
+        }
+        if (recovered) {
+            int n1 = recoverV1(length);
+            end = scan(length, Integer.MAX_VALUE);
+            if (n1 * (long) V1_RECORD_SIZE>end) {
+                upgrade(n1);
+                return;
+            }
+            channel.truncate(end);
+        }
+        remap();
+
+        size = 0;
+        positions.clear();
+        int offset = 0;
+        for (int i=0; i<count; i++) {
+            if ((map.getInt(offset + 20) & FLAG_TOMBSTONE)==0)
+                addLive(offset, map.getLong(offset));
+            offset += RECORD_SIZE + map.getInt(offset + 24);
+        }
+
+        if (recovered) {
+            Log.w(TAG, "Recovered " + count + " headers in " + file);
+            writeFooter();
+        }
+    }
+
+    /**
+     * Walk the valid records
+     *
+     * @param limit
+     *              the end of the records
+     * @param max
+     *              the maximum number of records
+     * @return
+     *          the end of the last valid record, the records are counted in {@link #count}
+     */
+    private long scan(long limit, int max) {
+        long offset = 0;
+        count = 0;
+        while (count<max && offset + RECORD_SIZE<=limit) {
+            int o = (int) offset;
+            int length = map.getInt(o + 24);
+            if ((map.getInt(o + 20) & 0xFFFF0000)!=RECORD_MARKER
+                    || length<0 || offset + RECORD_SIZE + length>limit)
+                break;
+            offset += RECORD_SIZE + length;
+            count++;
+        }
+        return offset;
+    }
+
+    /** Count the valid records of version 1 before a torn footer */
+    private int recoverV1(long length) {
+        int n = 0;
+        while ((n + 1) * (long) V1_RECORD_SIZE<=length
+                && (map.getInt(n * V1_RECORD_SIZE + 20) & 0xFFFF0000)==RECORD_MARKER)
+            n++;
+        return n;
+    }
+
+    /** Rewrite a catalog of version 1 */
+    private void upgrade(int n) throws IOException {
+        List<Recording.Header> headers = new ArrayList<>();
+        for (int i=0; i<n; i++) {
+            int offset = i * V1_RECORD_SIZE;
+            if ((map.getInt(offset + 20) & FLAG_TOMBSTONE)!=0)
+                continue;
+            Recording.Header h = new Recording.Header();
+            h.begin = map.getLong(offset);
+            h.end = map.getLong(offset + 8);
+            h.readings = map.getInt(offset + 16);
+            headers.add(h);
+        }
+        rewrite(headers);
+        Log.i(TAG, "Upgraded " + file + ": " + size + " headers");
+    }
+
+    private void writeFooter() throws IOException {
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putInt(FOOTER_MAGIC).putInt(VERSION).putInt(count).putInt(count - size);
+        footer.flip();
+        channel.write(footer, end);
+        channel.force(false);
+    }
+
+    private void remap() throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+    }
+
+    private void addLive(int offset, long begin) {
+        if (size==live.length)
+            live = Arrays.copyOf(live, size * 2);
+        // the first one wins, if ever duplicated
+        if (!positions.containsKey(begin))
+            positions.put(begin, size);
+        live[size++] = offset;
+    }
+
+    /**
+     * @return
+     *          the number of live headers
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return
+     *          the number of removed headers still in the file
+     */
+    synchronized int tombstones() {
+        return count - size;
+    }
+
+    /**
+     * Get a header by position
+     *
+     * @param position
+     *              the position among the live headers
+     * @return
+     *          the header, with its summaries
+     */
+    synchronized Recording.Header get(int position) {
+        if (position<0 || position>=size)
+            throw new IndexOutOfBoundsException("Header " + position + " of " + size);
+        int offset = live[position];
+        Recording.Header h = new Recording.Header();
+        h.begin = map.getLong(offset);
+        h.end = map.getLong(offset + 8);
+        h.readings = map.getInt(offset + 16);
+        int length = map.getInt(offset + 24);
+        if (length>0) {
+            ByteBuffer b = map.duplicate();
+            b.position(offset + RECORD_SIZE);
+            byte[] bytes = new byte[length];
+            b.get(bytes);
+            h.summaries = readSummaries(bytes);
+        }
+        return h;
+    }
+
+    /**
+     * @param begin
+     *              the begin time of a recording
+     * @return
+     *          the position of its header, -1 if not found
+     */
+    synchronized int indexOf(long begin) {
+        Integer ret = positions.get(begin);
+        return ret!=null ? ret : -1;
+    }
+
+    /**
+     * Append a new header
+     *
+     * @param h
+     *              the header
+     * @return
+     *          the position of the header
+     * @throws IOException
+     *          for I/O problems
+     */
+    synchronized int add(Recording.Header h) throws IOException {
+        byte[] summaries = writeSummaries(h.summaries);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE + summaries.length + FOOTER_SIZE);
+        putRecord(record, h, summaries);
+        record.putInt(FOOTER_MAGIC).putInt(VERSION).putInt(count + 1).putInt(count - size);
+        record.flip();
+        channel.write(record, end);
+        channel.force(false);
+        addLive((int) end, h.begin);
+        count++;
+        end += RECORD_SIZE + summaries.length;
+        remap();
+        return size - 1;
+    }
+
+    private static void putRecord(ByteBuffer b, Recording.Header h, byte[] summaries) {
+        b.putLong(h.begin).putLong(h.end).putInt(h.readings).putInt(RECORD_MARKER)
+                .putInt(summaries.length).put(summaries);
+    }
+
+    private static byte[] writeSummaries(List<Summary> summaries) throws IOException {
+        if (summaries.isEmpty())
+            return new byte[0];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(summaries.size());
+        for (Summary s : summaries)
+            s.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private List<Summary> readSummaries(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int n = in.readUnsignedShort();
+            List<Summary> ret = new ArrayList<>(n);
+            for (int i=0; i<n; i++)
+                ret.add(Summary.read(in));
+            return ret;
+        } catch (IOException e) {
+            Log.w(TAG, "Invalid summaries in " + file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Remove a header, leaving a tombstone in the file
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @return
+     *          true if the header was found
+     * @throws IOException
+     *          for I/O problems
+     */
+    synchronized boolean remove(long begin) throws IOException {
+        int position = indexOf(begin);
+        if (position<0)
+            return false;
+        ByteBuffer flags = ByteBuffer.allocate(4);
+        flags.putInt(RECORD_MARKER | FLAG_TOMBSTONE);
+        flags.flip();
+        channel.write(flags, live[position] + 20);
+        System.arraycopy(live, position + 1, live, position, size - position - 1);
+        size--;
+        positions.remove(begin);
+        for (int i=position; i<size; i++) {
+            long b = map.getLong(live[i]);
+            Integer p = positions.get(b);
+            if (p==null || p>i)
+                positions.put(b, i);
+        }
+        writeFooter();
+        return true;
+    }
+
+    /**
+     * Rewrite the catalog without the tombstones
+     *
+     * @throws IOException
+     *          for I/O problems
+     */
+    synchronized void compact() throws IOException {
+        if (count==size)
+            return;
+        List<Recording.Header> headers = new ArrayList<>(size);
+        for (int i=0; i<size; i++)
+            headers.add(get(i));
+        rewrite(headers);
+        Log.i(TAG, "Compacted " + file + ": " + size + " headers");
+    }
+
+    /** Replace the catalog with a new one of some headers */
+    private void rewrite(List<Recording.Header> headers) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel c = out.getChannel();
+            List<byte[]> summaries = new ArrayList<>(headers.size());
+            int length = FOOTER_SIZE;
+            for (Recording.Header h : headers) {
+                byte[] s = writeSummaries(h.summaries);
+                summaries.add(s);
+                length += RECORD_SIZE + s.length;
+            }
+            ByteBuffer b = ByteBuffer.allocate(length);
+            for (int i=0; i<headers.size(); i++)
+                putRecord(b, headers.get(i), summaries.get(i));
+            b.putInt(FOOTER_MAGIC).putInt(VERSION).putInt(headers.size()).putInt(0);
+            b.flip();
+            while (b.hasRemaining())
+                c.write(b);
+            c.force(true);
+        } finally {
+            out.close();
+        }
+        close();
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        init();
+    }
+
+    synchronized void close() throws IOException {
+        map = null;
+        raf.close();
+    }
+
+}
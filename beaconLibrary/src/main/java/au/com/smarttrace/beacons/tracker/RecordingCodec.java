@@ -0,0 +1,634 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Compact binary format of a {@link Recording} (the <code>.rec</code> files).
+ *
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, followed by a bit stream. Since
+ * version 2 the samples of each key are a byte aligned block, preceded by their time bounds and
+ * length, so that a partial read skips the keys and time ranges not requested. In the block:
+ * <ul>
+ *     <li>timelines are stored as delta-of-delta zigzag varints;</li>
+ *     <li>float values are stored as varint deltas when they are short decimals (the usual
+ *          sensor readings), otherwise XOR compressed against the previous value (Gorilla style);</li>
+ *     <li>int values are zigzag varint deltas;</li>
+ *     <li>locations are fixed point ({@link #LOCATION_SCALE}) varint deltas, with the accuracy
+ *          stored like any other series of floats;</li>
+ *     <li>custom values fall back to a Json array.</li>
+ * </ul>
+ *
+ * @see RecordingManager
+ */
+class RecordingCodec {
+
+    final static byte[] MAGIC = {'S', 'T', 'R', 'C'};
+
+    final static int VERSION = 2;
+
+    /** First version with skippable blocks of samples */
+    private final static int VERSION_BLOCKS = 2;
+
+    /** Fixed point scale of latitude and longitude (about 1cm) */
+    final static double LOCATION_SCALE = 1e7;
+
+    /** Largest scale tried to store floats as decimals */
+    final static int MAX_DECIMAL_SCALE = 10000;
+
+    /** Largest scaled decimal, to keep varints short */
+    private final static double MAX_DECIMAL = 1L << 40;
+
+    final static byte TYPE_FLOAT = 'F';
+    final static byte TYPE_INT = 'I';
+    final static byte TYPE_LOCATION = 'L';
+    final static byte TYPE_OBJECT = 'O';
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private RecordingCodec() {}
+
+    /**
+     * Check the file header, without consuming the stream
+     *
+     * @param in
+     *              the stream at the beginning of the file
+     * @return
+     *          true if the file is in this format, false if it is a legacy Json recording
+     */
+    static boolean isBinary(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC)
+                if (in.read()!=(b & 0xFF))
+                    return false;
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    static void write(Recording recording, OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        BitOutput bits = new BitOutput(out);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        bits.writeVarLong(recording.getBegin().getTime());
+        bits.writeVarLong(recording.getEnd()!=null ? recording.getEnd().getTime() : -1);
+        bits.writeVarLong(recording.getDeviceIds().size());
+        for (String id : recording.getDeviceIds()) {
+            Tracking t = recording.getTracking(id);
+            bits.writeString(id);
+            bits.writeVarLong(t.getKeys().size());
+            for (String key : t.getKeys()) {
+                bits.writeString(key);
+                writeData(t.getSamples(key), bits, block);
+            }
+        }
+        bits.flush();
+    }
+
+    static Recording read(InputStream in) throws IOException {
+        return read(in, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read a part of a recording: the blocks of samples of the other keys, or entirely out of
+     * the time range, are skipped without decoding them. Files of version 1 are read entirely
+     * and then filtered.
+     *
+     * @param in
+     *              the stream
+     * @param keys
+     *              the keys to read, null for all
+     * @param from
+     *              the begin of the time range in ms, inclusive
+     * @param to
+     *              the end of the time range in ms, inclusive
+     * @return
+     *          the recording, with the samples of the requested keys overlapping the time range
+     * @throws IOException
+     *          for I/O problems
+     */
+    static Recording read(InputStream in, Collection<String> keys, long from, long to) throws IOException {
+        for (byte b : MAGIC)
+            if (readByte(in)!=(b & 0xFF))
+                throw new IOException("Not a binary recording");
+        int version = readByte(in);
+        if (version<1 || version>VERSION)
+            throw new IOException("Unsupported recording format version: "+version);
+        BitInput bits = new BitInput(in);
+        long begin = bits.readVarLong();
+        long end = bits.readVarLong();
+        Recording ret = new Recording(new Date(begin), end>=0 ? new Date(end) : null);
+        int devices = (int) bits.readVarLong();
+        for (int d=0; d<devices; d++) {
+            String id = bits.readString();
+            Tracking t = new Tracking();
+            int count = (int) bits.readVarLong();
+            for (int k=0; k<count; k++) {
+                String key = bits.readString();
+                Tracking.Data data = version>=VERSION_BLOCKS
+                        ? readBlock(bits, keys==null || keys.contains(key), from, to)
+                        : readData(bits, readHeader(bits));
+                if (data!=null && (keys==null || keys.contains(key))
+                        && (data.size==0 || data.timeline[data.size-1]>=from && data.timeline[0]<=to))
+                    t.putSamples(key, data);
+            }
+            ret.putTracking(id, t);
+        }
+        return ret;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b<0)
+            throw new EOFException();
+        return b;
+    }
+
+    /**
+     * Write the samples of a key: type, count and time bounds, then the length and the content
+     * of the block
+     */
+    private static void writeData(Tracking.Data data, BitOutput bits, ByteArrayOutputStream block)
+            throws IOException {
+        Column column = data.data;
+        int n = data.size;
+        int o = data.offset;
+        byte type = column instanceof Column.Floats ? TYPE_FLOAT
+                : column instanceof Column.Ints ? TYPE_INT
+                : column instanceof Column.Locations ? TYPE_LOCATION
+                : TYPE_OBJECT;
+        bits.writeBits(type, 8);
+        bits.writeVarLong(n);
+        if (n==0)
+            return;
+        bits.writeVarLong(data.timeline[o]);
+        bits.writeVarLong(data.timeline[o + n - 1]);
+
+        block.reset();
+        BitOutput b = new BitOutput(block);
+        writeSamples(data, type, b);
+        b.flush();
+        bits.writeVarLong(block.size());
+        bits.align();
+        bits.writeBytes(block.toByteArray(), block.size());
+    }
+
+    private static void writeSamples(Tracking.Data data, byte type, BitOutput bits) throws IOException {
+        Column column = data.data;
+        int n = data.size;
+        int o = data.offset;
+
+        // timeline
+        long prev = data.timeline[o];
+        long delta = 0;
+        bits.writeVarLong(prev);
+        for (int i=1; i<n; i++) {
+            long d = data.timeline[o + i] - prev;
+            bits.writeVarLong(d - delta);
+            delta = d;
+            prev = data.timeline[o + i];
+        }
+
+        // values
+        switch (type) {
+            case TYPE_FLOAT:
+                writeFloats(((Column.Floats) column).values, o, n, bits);
+                break;
+            case TYPE_INT:
+                int last = 0;
+                for (int i=0; i<n; i++) {
+                    int v = column.getInt(o + i);
+                    bits.writeVarLong((long) v - last);
+                    last = v;
+                }
+                break;
+            case TYPE_LOCATION:
+                long lastLat = 0, lastLng = 0;
+                for (int i=o; i<o+n; i++) {
+                    long lat = Math.round(column.getLatitude(i) * LOCATION_SCALE);
+                    long lng = Math.round(column.getLongitude(i) * LOCATION_SCALE);
+                    bits.writeVarLong(lat - lastLat);
+                    bits.writeVarLong(lng - lastLng);
+                    lastLat = lat;
+                    lastLng = lng;
+                }
+                writeFloats(((Column.Locations) column).acc, o, n, bits);
+                break;
+            default:
+                JsonArray array = new JsonArray();
+                Gson gson = new Gson();
+                for (int i=o; i<o+n; i++)
+                    array.add(gson.toJsonTree(column.get(i)));
+                bits.writeString(array.toString());
+        }
+    }
+
+    /**
+     * Read the samples of a key, or skip them if not wanted: their storage is allocated only
+     * once they are actually decoded
+     *
+     * @return
+     *          the samples, or null if skipped
+     */
+    private static Tracking.Data readBlock(BitInput bits, boolean wanted, long from, long to)
+            throws IOException {
+        Class dataClass = readType(bits);
+        int n = (int) bits.readVarLong();
+        if (n==0)
+            return allocate(dataClass, 0);
+        long first = bits.readVarLong();
+        long last = bits.readVarLong();
+        long length = bits.readVarLong();
+        bits.align();
+        if (!wanted || last<from || first>to) {
+            bits.skip(length);
+            return null;
+        }
+        Tracking.Data ret = readData(bits, allocate(dataClass, n));
+        bits.align();
+        return ret;
+    }
+
+    /** Read type and count of the samples of a key, allocating the storage */
+    private static Tracking.Data readHeader(BitInput bits) throws IOException {
+        Class dataClass = readType(bits);
+        return allocate(dataClass, (int) bits.readVarLong());
+    }
+
+    /** Read the type of the samples of a key, as the class of the values */
+    private static Class readType(BitInput bits) throws IOException {
+        byte type = (byte) bits.readBits(8);
+        if (type!=TYPE_FLOAT && type!=TYPE_INT && type!=TYPE_LOCATION && type!=TYPE_OBJECT)
+            throw new IOException("Unknown component type: "+type);
+        return type==TYPE_FLOAT ? Float.class
+                : type==TYPE_INT ? Integer.class
+                : type==TYPE_LOCATION ? GPSDevice.Sample.class
+                : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Tracking.Data allocate(Class dataClass, int n) {
+        Tracking.Data ret = new Tracking.Data(dataClass, n);
+        ret.size = n;
+        return ret;
+    }
+
+    /** Read the content of the samples of a key */
+    private static Tracking.Data readData(BitInput bits, Tracking.Data ret) throws IOException {
+        int n = ret.size;
+        if (n==0)
+            return ret;
+        Column column = ret.data;
+
+        // timeline
+        long[] timeline = ret.timeline;
+        long prev = bits.readVarLong();
+        long delta = 0;
+        timeline[0] = prev;
+        for (int i=1; i<n; i++) {
+            delta += bits.readVarLong();
+            prev += delta;
+            timeline[i] = prev;
+        }
+
+        // values
+        if (column instanceof Column.Floats)
+            readFloats(((Column.Floats) column).values, n, bits);
+        else if (column instanceof Column.Ints) {
+            int last = 0;
+            for (int i=0; i<n; i++) {
+                last += (int) bits.readVarLong();
+                column.setInt(i, last);
+            }
+        } else if (column instanceof Column.Locations) {
+            long lat = 0, lng = 0;
+            Column.Locations locations = (Column.Locations) column;
+            for (int i=0; i<n; i++) {
+                lat += bits.readVarLong();
+                lng += bits.readVarLong();
+                locations.lat[i] = lat / LOCATION_SCALE;
+                locations.lng[i] = lng / LOCATION_SCALE;
+            }
+            readFloats(locations.acc, n, bits);
+        } else {
+            Gson gson = new Gson();
+            JsonArray array = new JsonParser().parse(bits.readString()).getAsJsonArray();
+            int i = 0;
+            for (JsonElement e : array)
+                column.set(i++, gson.fromJson(e, Object.class));
+        }
+        return ret;
+    }
+
+    /**
+     * Write a series of floats: if they are all decimals with a few digits they are stored
+     * exactly as scaled varint deltas, otherwise they are XOR compressed
+     */
+    private static void writeFloats(float[] values, int offset, int n, BitOutput bits) throws IOException {
+        int scale = decimalScale(values, offset, n);
+        bits.writeVarLong(scale);
+        if (scale>0) {
+            long last = 0;
+            for (int i=offset; i<offset+n; i++) {
+                long q = (long) Math.rint((double) values[i] * scale);
+                bits.writeVarLong(q - last);
+                last = q;
+            }
+        } else {
+            FloatEncoder encoder = new FloatEncoder();
+            for (int i=offset; i<offset+n; i++)
+                encoder.write(values[i], bits);
+        }
+    }
+
+    /** @see #writeFloats(float[], int, int, BitOutput) */
+    private static void readFloats(float[] values, int n, BitInput bits) throws IOException {
+        int scale = (int) bits.readVarLong();
+        if (scale>0) {
+            long q = 0;
+            for (int i=0; i<n; i++) {
+                q += bits.readVarLong();
+                values[i] = (float) (q / (double) scale);
+            }
+        } else {
+            FloatDecoder decoder = new FloatDecoder();
+            for (int i=0; i<n; i++)
+                values[i] = decoder.read(bits);
+        }
+    }
+
+    /**
+     * Find the smallest power of ten that turns all the values into integers, that can be
+     * converted back to the very same floats
+     *
+     * @return
+     *          the scale, or 0 if none up to {@link #MAX_DECIMAL_SCALE}
+     */
+    private static int decimalScale(float[] values, int offset, int n) {
+        for (int scale=1; scale<=MAX_DECIMAL_SCALE; scale*=10) {
+            int i = offset;
+            while (i<offset+n) {
+                double q = Math.rint((double) values[i] * scale);
+                if (Math.abs(q)>MAX_DECIMAL || (float) (q / scale)!=values[i])
+                    break;
+                i++;
+            }
+            if (i==offset+n)
+                return scale;
+        }
+        return 0;
+    }
+
+    /** XOR compression of a series of floats */
+    static class FloatEncoder {
+        private boolean first = true;
+        private int prev;
+        private int prevLeading = -1;
+        private int prevTrailing;
+
+        void write(float value, BitOutput bits) throws IOException {
+            int v = Float.floatToRawIntBits(value);
+            if (first) {
+                first = false;
+                bits.writeBits(v, 32);
+            } else {
+                int xor = v ^ prev;
+                if (xor==0)
+                    bits.writeBit(false);
+                else {
+                    bits.writeBit(true);
+                    int leading = Integer.numberOfLeadingZeros(xor);
+                    int trailing = Integer.numberOfTrailingZeros(xor);
+                    if (prevLeading>=0 && leading>=prevLeading && trailing>=prevTrailing) {
+                        // same window as before
+                        bits.writeBit(false);
+                        bits.writeBits(xor >>> prevTrailing, 32 - prevLeading - prevTrailing);
+                    } else {
+                        int length = 32 - leading - trailing;
+                        bits.writeBit(true);
+                        bits.writeBits(leading, 5);
+                        bits.writeBits(length - 1, 5);
+                        bits.writeBits(xor >>> trailing, length);
+                        prevLeading = leading;
+                        prevTrailing = trailing;
+                    }
+                }
+            }
+            prev = v;
+        }
+    }
+
+    /** @see FloatEncoder */
+    static class FloatDecoder {
+        private boolean first = true;
+        private int prev;
+        private int prevLeading;
+        private int prevTrailing;
+
+        float read(BitInput bits) throws IOException {
+            if (first) {
+                first = false;
+                prev = (int) bits.readBits(32);
+            } else if (bits.readBit()) {
+                if (bits.readBit()) {
+                    prevLeading = (int) bits.readBits(5);
+                    int length = (int) bits.readBits(5) + 1;
+                    prevTrailing = 32 - prevLeading - length;
+                }
+                int length = 32 - prevLeading - prevTrailing;
+                prev ^= (int) bits.readBits(length) << prevTrailing;
+            }
+            return Float.intBitsToFloat(prev);
+        }
+    }
+
+    /** Bit stream writer, also for zigzag varints and strings */
+    static class BitOutput {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private long acc;
+        private int count;
+
+        BitOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeBit(boolean bit) throws IOException {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        /** Write the lowest n bits (n&lt;=32) of the value, most significant first */
+        void writeBits(long value, int n) throws IOException {
+            acc = (acc << n) | (value & ((1L << n) - 1));
+            count += n;
+            while (count>=8) {
+                count -= 8;
+                put((int) (acc >>> count));
+            }
+        }
+
+        void writeVarLong(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL)!=0) {
+                writeBits((v & 0x7F) | 0x80, 8);
+                v >>>= 7;
+            }
+            writeBits(v, 8);
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            writeVarLong(b.length);
+            for (byte x : b)
+                writeBits(x, 8);
+        }
+
+        /** Pad the current byte with zeros */
+        void align() throws IOException {
+            if (count>0)
+                writeBits(0, 8 - count);
+        }
+
+        /** Write bytes at a byte boundary */
+        void writeBytes(byte[] b, int n) throws IOException {
+            if (count>0)
+                throw new IllegalStateException("Not aligned");
+            if (n>buffer.length - position) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            if (n>buffer.length)
+                out.write(b, 0, n);
+            else {
+                System.arraycopy(b, 0, buffer, position, n);
+                position += n;
+            }
+        }
+
+        private void put(int b) throws IOException {
+            if (position==buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        /** Pad the last byte with zeros and write everything out */
+        void flush() throws IOException {
+            if (count>0)
+                writeBits(0, 8 - count);
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+    }
+
+    /** @see BitOutput */
+    static class BitInput {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        private long acc;
+        private int count;
+
+        BitInput(InputStream in) {
+            this.in = in;
+        }
+
+        boolean readBit() throws IOException {
+            return readBits(1)!=0;
+        }
+
+        /** Read n bits (n&lt;=32) */
+        long readBits(int n) throws IOException {
+            while (count<n) {
+                acc = (acc << 8) | take();
+                count += 8;
+            }
+            count -= n;
+            return (acc >>> count) & ((1L << n) - 1);
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            int shift = 0;
+            long b;
+            do {
+                if (shift>63)
+                    throw new IOException("Malformed varint");
+                b = readBits(8);
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80)!=0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Drop the bits left in the current byte */
+        void align() {
+            count -= count % 8;
+        }
+
+        /** Skip bytes at a byte boundary */
+        void skip(long n) throws IOException {
+            while (n>0 && count>=8) {
+                count -= 8;
+                n--;
+            }
+            while (n>0) {
+                if (position<limit) {
+                    int k = (int) Math.min(n, limit - position);
+                    position += k;
+                    n -= k;
+                } else {
+                    long skipped = in.skip(n);
+                    if (skipped>0)
+                        n -= skipped;
+                    else {
+                        take();
+                        n--;
+                    }
+                }
+            }
+        }
+
+        String readString() throws IOException {
+            byte[] b = new byte[(int) readVarLong()];
+            for (int i=0; i<b.length; i++)
+                b[i] = (byte) readBits(8);
+            return new String(b, UTF8);
+        }
+
+        private int take() throws IOException {
+            if (position==limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit<=0) {
+                    limit = 0;
+                    throw new EOFException();
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Export of stored recordings as CSV or newline-delimited Json, one row for each sample.
+ *
+ * <p>
+ * A recording is exported key by key, or with the samples of all the keys merged by time. The
+ * samples are read from the storage a key at a time (all the requested keys at once when merged),
+ * and written as they are walked, through a buffer of {@link #BUFFER_SIZE}: the memory used does
+ * not depend on the number of recordings exported.
+ *
+ * <p>
+ * Each row carries the nearest location fix of the internal GPS within {@link #JOIN_TOLERANCE},
+ * if any, so that a reading can be placed on the map.
+ */
+public class RecordingExporter implements Closeable {
+
+    public enum Format {CSV, NDJSON}
+
+    final static String[] COLUMNS = {"recording", "device", "key", "timestamp", "time",
+            "value", "latitude", "longitude", "accuracy",
+            "fix_timestamp", "fix_latitude", "fix_longitude", "fix_accuracy"};
+
+    /** Maximum time between a sample and its location fix, in ms */
+    public final static long JOIN_TOLERANCE = 5 * 60000l;
+
+    final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Format format;
+    private final Writer writer;
+    private final JsonWriter json;
+    private final SimpleDateFormat iso;
+    private final Object[] row = new Object[COLUMNS.length];
+    private boolean started;
+
+    /**
+     * @param out
+     *              the stream to write, closed with the exporter
+     * @param format
+     *              the format of the rows
+     */
+    public RecordingExporter(OutputStream out, Format format) {
+        this.format = format;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE);
+        if (format==Format.NDJSON) {
+            json = new JsonWriter(writer);
+            // a top-level value for each line
+            json.setLenient(true);
+        } else
+            json = null;
+        iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Export the samples of a recording key by key
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @param keys
+     *              the keys to export, null for all
+     * @throws IOException
+     *          for I/O problems
+     */
+    public void export(long begin, Collection<String> keys) throws IOException {
+        RecordingManager manager = RecordingManager.getInstance();
+        for (String key : keys(begin, keys))
+            writeKey(begin, manager.load(begin, join(key), Long.MIN_VALUE, Long.MAX_VALUE), key);
+        writer.flush();
+    }
+
+    /**
+     * Export the samples of a recording in memory key by key
+     *
+     * @param recording
+     *              the recording
+     * @param keys
+     *              the keys to export, null for all
+     * @throws IOException
+     *          for I/O problems
+     */
+    public void export(Recording recording, Collection<String> keys) throws IOException {
+        for (String key : keys(recording, keys))
+            writeKey(recording.getBegin().getTime(), recording, key);
+        writer.flush();
+    }
+
+    private void writeKey(long begin, Recording r, String key) throws IOException {
+        Tracking.Data fixes = fixes(r);
+        for (String id : r.getDeviceIds()) {
+            Tracking.Data data = r.samples(id, key, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (data==null)
+                continue;
+            boolean self = isFixes(id, key);
+            for (int i=0; i<data.size(); i++)
+                write(begin, id, key, data, i, self ? null : fixes);
+        }
+    }
+
+    /**
+     * Export the samples of a recording merged by time across devices and keys
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @param keys
+     *              the keys to export, null for all
+     * @throws IOException
+     *          for I/O problems
+     */
+    public void exportMerged(long begin, Collection<String> keys) throws IOException {
+        Set<String> wanted = keys(begin, keys);
+        Set<String> loaded = new LinkedHashSet<>(wanted);
+        loaded.add(GPSDevice.KEY_LOCATION);
+        writeMerged(begin, RecordingManager.getInstance().load(begin, loaded,
+                Long.MIN_VALUE, Long.MAX_VALUE), wanted);
+        writer.flush();
+    }
+
+    /**
+     * Export the samples of a recording in memory merged by time across devices and keys
+     *
+     * @param recording
+     *              the recording
+     * @param keys
+     *              the keys to export, null for all
+     * @throws IOException
+     *          for I/O problems
+     */
+    public void exportMerged(Recording recording, Collection<String> keys) throws IOException {
+        writeMerged(recording.getBegin().getTime(), recording, keys(recording, keys));
+        writer.flush();
+    }
+
+    private void writeMerged(long begin, Recording r, Set<String> wanted) throws IOException {
+        Tracking.Data fixes = fixes(r);
+
+        List<String> ids = new ArrayList<>();
+        List<String> series = new ArrayList<>();
+        List<Tracking.Data> data = new ArrayList<>();
+        for (String id : r.getDeviceIds())
+            for (String key : wanted) {
+                Tracking.Data d = r.samples(id, key, Long.MIN_VALUE, Long.MAX_VALUE);
+                if (d!=null && d.size()>0) {
+                    ids.add(id);
+                    series.add(key);
+                    data.add(d);
+                }
+            }
+
+        int[] next = new int[data.size()];
+        while (true) {
+            int min = -1;
+            long time = Long.MAX_VALUE;
+            for (int s=0; s<next.length; s++)
+                if (next[s]<data.get(s).size() && data.get(s).getTime(next[s])<time) {
+                    time = data.get(s).getTime(next[s]);
+                    min = s;
+                }
+            if (min<0)
+                break;
+            String id = ids.get(min), key = series.get(min);
+            write(begin, id, key, data.get(min), next[min]++, isFixes(id, key) ? null : fixes);
+        }
+    }
+
+    /** The keys of a recording to export, from the summaries in its header if possible */
+    private Set<String> keys(long begin, Collection<String> keys) throws IOException {
+        if (keys!=null)
+            return new LinkedHashSet<>(keys);
+        Set<String> ret = new LinkedHashSet<>();
+        RecordingManager manager = RecordingManager.getInstance();
+        Recording.Header h = manager.findHeader(begin);
+        if (h!=null && !h.getSummaries().isEmpty()) {
+            for (Summary s : h.getSummaries())
+                ret.add(s.getKey());
+            return ret;
+        }
+        // stored before the summaries
+        return keys(manager.load(begin), null);
+    }
+
+    private static Set<String> keys(Recording recording, Collection<String> keys) {
+        if (keys!=null)
+            return new LinkedHashSet<>(keys);
+        Set<String> ret = new LinkedHashSet<>();
+        for (String id : recording.getDeviceIds())
+            ret.addAll(recording.getTracking(id).getKeys());
+        return ret;
+    }
+
+    private static Collection<String> join(String key) {
+        if (key.equals(GPSDevice.KEY_LOCATION))
+            return Collections.singleton(key);
+        List<String> ret = new ArrayList<>(2);
+        ret.add(key);
+        ret.add(GPSDevice.KEY_LOCATION);
+        return ret;
+    }
+
+    private static Tracking.Data fixes(Recording r) {
+        Tracking.Data ret = r.samples(GPSDevice.IDENTIFIER, GPSDevice.KEY_LOCATION,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        return ret==null || ret.size()==0 ? null : ret;
+    }
+
+    private static boolean isFixes(String deviceId, String key) {
+        return deviceId.equals(GPSDevice.IDENTIFIER) && key.equals(GPSDevice.KEY_LOCATION);
+    }
+
+    /**
+     * Nearest fix to a time
+     *
+     * @return
+     *          the index of the fix, -1 if none within {@link #JOIN_TOLERANCE}
+     */
+    static int nearest(Tracking.Data fixes, long time) {
+        int i = fixes.indexOf(time);
+        long after = i<fixes.size() ? fixes.getTime(i) - time : Long.MAX_VALUE;
+        long before = i>0 ? time - fixes.getTime(i-1) : Long.MAX_VALUE;
+        if (before<after)
+            i--;
+        return Math.min(before, after)<=JOIN_TOLERANCE ? i : -1;
+    }
+
+    private void write(long begin, String deviceId, String key, Tracking.Data data, int i,
+                       Tracking.Data fixes) throws IOException {
+        long time = data.getTime(i);
+        Arrays.fill(row, null);
+        row[0] = begin;
+        row[1] = deviceId;
+        row[2] = key;
+        row[3] = time;
+        row[4] = iso.format(new Date(time));
+        if (data.data instanceof Column.Floats)
+            row[5] = data.getFloat(i);
+        else if (data.data instanceof Column.Ints)
+            row[5] = data.getInt(i);
+        else if (data.data instanceof Column.Locations) {
+            row[6] = data.getLatitude(i);
+            row[7] = data.getLongitude(i);
+            row[8] = data.getAccuracy(i);
+        } else {
+            Object value = data.get(i);
+            row[5] = value==null ? null : value.toString();
+        }
+        int f = fixes==null ? -1 : nearest(fixes, time);
+        if (f>=0) {
+            row[9] = fixes.getTime(f);
+            row[10] = fixes.getLatitude(f);
+            row[11] = fixes.getLongitude(f);
+            row[12] = fixes.getAccuracy(f);
+        }
+        if (format==Format.CSV)
+            writeCsv();
+        else
+            writeJson();
+    }
+
+    private void writeCsv() throws IOException {
+        if (!started) {
+            for (int c=0; c<COLUMNS.length; c++) {
+                if (c>0)
+                    writer.write(',');
+                writer.write(COLUMNS[c]);
+            }
+            writer.write('\n');
+            started = true;
+        }
+        for (int c=0; c<row.length; c++) {
+            if (c>0)
+                writer.write(',');
+            Object v = row[c];
+            if (v instanceof String) {
+                String s = (String) v;
+                if (s.indexOf(',')>=0 || s.indexOf('"')>=0 || s.indexOf('\n')>=0)
+                    s = '"' + s.replace("\"", "\"\"") + '"';
+                writer.write(s);
+            } else if (v!=null && !isNaN(v))
+                writer.write(v.toString());
+        }
+        writer.write('\n');
+    }
+
+    private void writeJson() throws IOException {
+        json.beginObject();
+        for (int c=0; c<row.length; c++) {
+            Object v = row[c];
+            if (v==null || isNaN(v))
+                continue;
+            json.name(COLUMNS[c]);
+            if (v instanceof Number)
+                json.value((Number) v);
+            else
+                json.value(v.toString());
+        }
+        json.endObject();
+        writer.write('\n');
+    }
+
+    private static boolean isNaN(Object v) {
+        return v instanceof Float && ((Float) v).isNaN() || v instanceof Double && ((Double) v).isNaN();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -0,0 +1,586 @@
+package au.com.smarttrace.beacons.tracker;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Append-only write-ahead log of an active {@link Recording}.
+ *
+ * <p>
+ * Every sample accepted by a {@link Tracking} is appended to an in-memory batch, that is written
+ * and synced to disk every {@link #SYNC_INTERVAL} ms. The log is split in segment files
+ * (<code>&lt;begin&gt;-&lt;n&gt;.seg</code>) of about {@link #SEGMENT_SIZE} bytes. Each record is
+ * framed with its length and a CRC32, so a torn write at the end of the log after a crash is
+ * detected and dropped on {@link #replay(File, long)}.
+ *
+ * <p>
+ * When the recording stops the log is sealed with an end record: it is then a complete stored
+ * recording, and {@link RecordingManager} compacts it into the binary
+ * {@link RecordingCodec} format in background.
+ */
+class RecordingLog {
+
+    private final static String TAG = RecordingLog.class.getSimpleName();
+
+    private final static byte[] MAGIC = {'S', 'T', 'R', 'L'};
+
+    final static int VERSION = 1;
+
+    final static String EXTENSION = ".seg";
+
+    /** Interval between two batches written to disk */
+    final static long SYNC_INTERVAL = 2000l;
+
+    /** Size of a segment file, before starting a new one */
+    final static int SEGMENT_SIZE = 1 << 20;
+
+    private final static int MAX_RECORD_SIZE = 1 << 16;
+
+    private final static Pattern SEGMENT_NAME = Pattern.compile("(\\d+)-(\\d+)\\" + EXTENSION);
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The threads writing the logs, that must not keep the process alive */
+    private final static ThreadFactory THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread ret = new Thread(r, TAG);
+            ret.setDaemon(true);
+            return ret;
+        }
+    };
+
+    final static byte RECORD_KEY = 'K';
+    final static byte RECORD_FLOAT = 'F';
+    final static byte RECORD_INT = 'I';
+    final static byte RECORD_LOCATION = 'L';
+    final static byte RECORD_OBJECT = 'O';
+    final static byte RECORD_END = 'E';
+
+    private final File dir;
+
+    private final long begin;
+
+    /** Pending records, not written yet */
+    private byte[] batch = new byte[4096];
+    private int batchSize;
+
+    /** Batch being written, swapped with the pending one */
+    private byte[] spare = new byte[4096];
+
+    private final CRC32 crc = new CRC32();
+
+    /** Number of keys declared so far */
+    private int keys;
+
+    private FileOutputStream out;
+    private int segment;
+    private int segmentSize;
+
+    private boolean closed;
+
+    /** Records appended after the log was sealed, and dropped */
+    private int dropped;
+
+    private final Object fileLock = new Object();
+
+    private final ScheduledExecutorService exec;
+
+    private RecordingLog(File dir, long begin) {
+        this.dir = dir;
+        this.begin = begin;
+        exec = Executors.newSingleThreadScheduledExecutor(THREADS);
+        exec.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot write recording log "+RecordingLog.this.begin, e);
+                }
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the log of a new recording
+     *
+     * @param dir
+     *              the directory of the recordings
+     * @param begin
+     *              the begin time of the recording, that identifies it
+     * @return
+     *          the log
+     */
+    static RecordingLog open(File dir, long begin) {
+        return new RecordingLog(dir, begin);
+    }
+
+    long getBegin() {
+        return begin;
+    }
+
+//_____________________________________________________________________________
+//
+// o <editor-fold desc="-> APPEND">
+// |
+// V
+
+    /**
+     * Declare a new key of a device, to be used by the following samples
+     *
+     * @param deviceId
+     *              the device identifier
+     * @param key
+     *              the sample key
+     * @param dataClass
+     *              the class of the values
+     * @return
+     *          the index of the key in this log
+     */
+    synchronized int declare(String deviceId, String key, Class<?> dataClass) {
+        int index = keys++;
+        if (isClosed())
+            return index;
+        byte type = dataClass==Float.class ? RECORD_FLOAT
+                : dataClass==Integer.class ? RECORD_INT
+                : dataClass==GPSDevice.Sample.class ? RECORD_LOCATION
+                : RECORD_OBJECT;
+        int start = startRecord(RECORD_KEY);
+        putVarLong(index);
+        putString(deviceId);
+        putString(key);
+        putByte(type);
+        endRecord(start);
+        return index;
+    }
+
+    synchronized void append(int key, long time, float value) {
+        if (isClosed())
+            return;
+        int start = startRecord(RECORD_FLOAT);
+        putVarLong(key);
+        putVarLong(time - begin);
+        putInt(Float.floatToRawIntBits(value));
+        endRecord(start);
+    }
+
+    synchronized void append(int key, long time, int value) {
+        if (isClosed())
+            return;
+        int start = startRecord(RECORD_INT);
+        putVarLong(key);
+        putVarLong(time - begin);
+        putVarLong(value);
+        endRecord(start);
+    }
+
+    synchronized void append(int key, long time, double lat, double lng, float acc) {
+        if (isClosed())
+            return;
+        int start = startRecord(RECORD_LOCATION);
+        putVarLong(key);
+        putVarLong(time - begin);
+        putLong(Double.doubleToRawLongBits(lat));
+        putLong(Double.doubleToRawLongBits(lng));
+        putInt(Float.floatToRawIntBits(acc));
+        endRecord(start);
+    }
+
+    synchronized void append(int key, long time, Object value) {
+        if (value instanceof GPSDevice.Sample) {
+            GPSDevice.Sample s = (GPSDevice.Sample) value;
+            append(key, time, s.lat, s.lng, s.acc);
+            return;
+        }
+        if (isClosed())
+            return;
+        int start = startRecord(RECORD_OBJECT);
+        putVarLong(key);
+        putVarLong(time - begin);
+        putString(new Gson().toJson(value));
+        endRecord(start);
+    }
+
+    /** Check whether the log was sealed, logging the first record dropped */
+    private boolean isClosed() {
+        if (!closed)
+            return false;
+        if (dropped++==0)
+            Log.w(TAG, "Record appended after the end of recording log "+begin+", dropped");
+        return true;
+    }
+
+    /** Reserve the frame length and write the record type */
+    private int startRecord(byte type) {
+        int start = batchSize;
+        ensure(4);
+        batchSize += 4;
+        putByte(type);
+        return start;
+    }
+
+    /** Fill in the frame length and append the CRC of the record */
+    private void endRecord(int start) {
+        int length = batchSize - start - 4;
+        batch[start]   = (byte) (length >>> 24);
+        batch[start+1] = (byte) (length >>> 16);
+        batch[start+2] = (byte) (length >>> 8);
+        batch[start+3] = (byte) length;
+        crc.reset();
+        crc.update(batch, start + 4, length);
+        putInt((int) crc.getValue());
+    }
+
+    private void ensure(int n) {
+        if (batchSize + n > batch.length)
+            batch = Arrays.copyOf(batch, Math.max(batch.length * 2, batchSize + n));
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        batch[batchSize++] = (byte) b;
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        batch[batchSize++] = (byte) (v >>> 24);
+        batch[batchSize++] = (byte) (v >>> 16);
+        batch[batchSize++] = (byte) (v >>> 8);
+        batch[batchSize++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putVarLong(long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL)!=0) {
+            putByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        putByte((int) v);
+    }
+
+    private void putString(String s) {
+        byte[] b = s.getBytes(UTF8);
+        putVarLong(b.length);
+        ensure(b.length);
+        System.arraycopy(b, 0, batch, batchSize, b.length);
+        batchSize += b.length;
+    }
+
+// |
+// V
+// o END APPEND</editor-fold>
+//_____________________________________________________________________________
+
+    /**
+     * Write the pending batch to the current segment and sync it to disk
+     *
+     * @throws IOException
+     *          for I/O problems
+     */
+    void sync() throws IOException {
+        synchronized (fileLock) {
+            byte[] b;
+            int n;
+            synchronized (this) {
+                if (batchSize==0)
+                    return;
+                b = batch;
+                n = batchSize;
+                batch = spare;
+                batchSize = 0;
+            }
+            try {
+                if (out==null || segmentSize>=SEGMENT_SIZE)
+                    nextSegment();
+                out.write(b, 0, n);
+                out.getFD().sync();
+                segmentSize += n;
+            } finally {
+                synchronized (this) {
+                    spare = b;
+                }
+            }
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        if (out!=null) {
+            out.getFD().sync();
+            out.close();
+            segment++;
+        }
+        out = new FileOutputStream(new File(dir, begin + "-" + segment + EXTENSION), false);
+        out.write(MAGIC);
+        out.write(VERSION);
+        segmentSize = MAGIC.length + 1;
+    }
+
+    /**
+     * Seal the log with the end time of the recording and release it
+     *
+     * @param end
+     *              the end time
+     * @throws IOException
+     *          for I/O problems
+     */
+    void close(long end) throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            int start = startRecord(RECORD_END);
+            putVarLong(end - begin);
+            endRecord(start);
+        }
+        exec.shutdown();
+        synchronized (fileLock) {
+            sync();
+            if (out!=null)
+                out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Release the log of a cancelled recording, dropping the records not written yet; the
+     * segments are then removed with {@link #delete(File, long)}
+     *
+     * @throws IOException
+     *          for I/O problems
+     */
+    void discard() throws IOException {
+        synchronized (this) {
+            closed = true;
+            batchSize = 0;
+        }
+        exec.shutdown();
+        synchronized (fileLock) {
+            if (out!=null)
+                out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Begin times of all the recordings with a log in a directory
+     *
+     * @param dir
+     *              the directory of the recordings
+     * @return
+     *          the sorted begin times
+     */
+    static Set<Long> list(File dir) {
+        Set<Long> ret = new TreeSet<>();
+        String[] names = dir.list();
+        if (names!=null)
+            for (String name : names) {
+                Matcher m = SEGMENT_NAME.matcher(name);
+                if (m.matches())
+                    ret.add(Long.parseLong(m.group(1)));
+            }
+        return ret;
+    }
+
+    /** Segment files of a recording, in order */
+    private static List<File> segments(File dir, final long begin) {
+        final List<File> ret = new ArrayList<>();
+        for (int i=0; ; i++) {
+            File f = new File(dir, begin + "-" + i + EXTENSION);
+            if (!f.exists())
+                break;
+            ret.add(f);
+        }
+        return ret;
+    }
+
+    static boolean exists(File dir, long begin) {
+        return new File(dir, begin + "-0" + EXTENSION).exists();
+    }
+
+    /**
+     * Delete the log of a recording
+     *
+     * @param dir
+     *              the directory of the recordings
+     * @param begin
+     *              the begin time of the recording
+     */
+    static void delete(File dir, final long begin) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(begin + "-") && name.endsWith(EXTENSION);
+            }
+        });
+        if (files!=null)
+            for (File f : files)
+                if (!f.delete())
+                    Log.w(TAG, "Cannot delete "+f);
+    }
+
+    /**
+     * Rebuild a recording from its log, dropping a torn record at the end
+     *
+     * @param dir
+     *              the directory of the recordings
+     * @param begin
+     *              the begin time of the recording
+     * @return
+     *          the recording; if the log was not sealed the end is the time of the last sample
+     * @throws IOException
+     *          for I/O problems
+     */
+    static Recording replay(File dir, long begin) throws IOException {
+        Recording ret = new Recording(new Date(begin), null);
+        List<String> ids = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        long last = begin;
+        Long end = null;
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+
+        for (File f : segments(dir, begin)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || in.read()!=VERSION)
+                    throw new IOException("Not a recording log: "+f);
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length<=0 || length>MAX_RECORD_SIZE) {
+                        Log.w(TAG, "Corrupted record in "+f);
+                        break;
+                    }
+                    if (payload.length<length)
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    int check;
+                    try {
+                        in.readFully(payload, 0, length);
+                        check = in.readInt();
+                    } catch (EOFException e) {
+                        Log.w(TAG, "Torn record at the end of "+f);
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue()!=check) {
+                        Log.w(TAG, "Corrupted record in "+f);
+                        break;
+                    }
+
+                    ByteBuffer b = ByteBuffer.wrap(payload, 0, length);
+                    byte type = b.get();
+                    if (type==RECORD_KEY) {
+                        int index = (int) getVarLong(b);
+                        while (ids.size()<=index) {
+                            ids.add(null);
+                            keys.add(null);
+                        }
+                        ids.set(index, getString(b));
+                        keys.set(index, getString(b));
+                        continue;
+                    }
+                    if (type==RECORD_END) {
+                        end = begin + getVarLong(b);
+                        continue;
+                    }
+                    int index = (int) getVarLong(b);
+                    long time = begin + getVarLong(b);
+                    if (index>=ids.size() || ids.get(index)==null)
+                        continue;
+                    Tracking t = ret.getTracking(ids.get(index));
+                    if (t==null) {
+                        t = new Tracking();
+                        ret.putTracking(ids.get(index), t);
+                    }
+                    String key = keys.get(index);
+                    switch (type) {
+                        case RECORD_FLOAT:
+                            t.addSample(time, key, Float.intBitsToFloat(b.getInt()));
+                            break;
+                        case RECORD_INT:
+                            t.addSample(time, key, (int) getVarLong(b));
+                            break;
+                        case RECORD_LOCATION:
+                            t.addSample(time, key, new GPSDevice.Sample(
+                                    Double.longBitsToDouble(b.getLong()),
+                                    Double.longBitsToDouble(b.getLong()),
+                                    Float.intBitsToFloat(b.getInt())));
+                            break;
+                        case RECORD_OBJECT:
+                            t.addSample(time, key, new Gson().fromJson(getString(b), Object.class));
+                            break;
+                    }
+                    last = Math.max(last, time);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        for (String id : ret.getDeviceIds())
+            ret.getTracking(id).flush();
+        ret.end = new Date(end!=null ? end : last);
+        return ret;
+    }
+
+    private static long getVarLong(ByteBuffer b) {
+        long v = 0;
+        int shift = 0;
+        long x;
+        do {
+            x = b.get() & 0xFF;
+            v |= (x & 0x7F) << shift;
+            shift += 7;
+        } while ((x & 0x80)!=0 && shift<64);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static String getString(ByteBuffer b) {
+        int n = (int) getVarLong(b);
+        String s = new String(b.array(), b.position(), n, UTF8);
+        b.position(b.position() + n);
+        return s;
+    }
+
+}
@@ -1,6 +1,8 @@
 package au.com.smarttrace.beacons.tracker;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.SystemClock;
@@ -9,34 +11,63 @@ import android.widget.Toast;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import au.com.smarttrace.beacons.gps.GPSDevice;
 
 /**
  * Manager for the recordings stored on the phone
  */
-public class RecordingManager implements JsonDeserializer<Tracking.Data> {
+public class RecordingManager {
 
     private final static String TAG = RecordingManager.class.getSimpleName();
 
-    private final static String HEADERS_FILE = "recordings.lst";
+    /** Json list of headers of the previous versions, imported in the catalog */
+    private final static String LEGACY_HEADERS_FILE = "recordings.lst";
+
+    final static String CATALOG_FILE = "recordings.idx";
+
+    private final static String ROLLUPS_EXTENSION = ".rup";
+
+    private final static String SPATIAL_INDEX_FILE = "recordings.geo";
+
+    /** Suffix of a file being written, renamed over the final one when complete */
+    private final static String TEMP_EXTENSION = ".tmp";
+
+    private final static int ROLLUPS_CACHE_SIZE = 4;
+
+    /** Compact the catalog when the removed headers exceed this ratio of the live ones */
+    private final static float COMPACT_RATIO = 0.25f;
 
     private static RecordingManager instance;
 
@@ -44,17 +75,46 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
 
     private File dir;
 
-    private List<Recording.Header> headers;
+    /** The catalog of the headers, null until opened by {@link #openCatalog()} */
+    private volatile RecordingCatalog catalog;
+
+    private SpatialIndex index;
 
-    private Map<Long, Recording> recordings;
+    /** Fraction of the heap used by the cache of the recordings */
+    private final static int CACHE_HEAP_FRACTION = 8;
+
+    private RecordingCache recordings;
+
+    /** Workers of the aggregate queries, stopped when idle */
+    private final static int AGGREGATION_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private ThreadPoolExecutor workers;
+
+    /** Thresholds of the time above in the summaries, by key, null if not configured */
+    private final Map<String, Float> thresholds = new HashMap<>();
+
+    /** Rollups of the last recordings asked */
+    private final Map<Long, Rollups> rollups = new LinkedHashMap<Long, Rollups>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Rollups> eldest) {
+            return size()>ROLLUPS_CACHE_SIZE;
+        }
+    };
 
     private List<RecordingListener> listenersList;
 
+    /** Begin times of the recordings being journaled in this session */
+    private Set<Long> activeLogs;
+
+    /** Held while a recording or its rollups are saved, or a log is replayed */
+    private final Object files = new Object();
+
 
     private RecordingManager() {
-        headers = new ArrayList<>();
-        recordings = new TreeMap<>();
+        recordings = new RecordingCache(Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION);
         listenersList = new LinkedList<>();
+        activeLogs = new HashSet<>();
     }
 
     public static RecordingManager getInstance() {
@@ -63,9 +123,36 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
         return instance;
     }
 
+    /**
+     * Use the recordings stored in a directory, without the background recovery of
+     * {@link #init}: for the tests
+     *
+     * @param dir
+     *              the directory of the recordings
+     */
+    synchronized void setDirectory(File dir) {
+        this.dir = dir;
+        catalog = null;
+    }
+
     public void init(Context context) {
         this.context = context;
         this.dir = context.getFilesDir();
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                recordings.trim(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                recordings.trim(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
         //TODO: headersAdapter = new SimpleCursorAdapter(context, ...);
         new AsyncTask<Void, Void, Exception>() {
             private long time;
@@ -73,7 +160,14 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
             protected Exception doInBackground(Void... params) {
                 try {
                     time = SystemClock.currentThreadTimeMillis();
-                    loadHeaders();
+                    openCatalog();
+                    try {
+                        openIndex();
+                    } catch (IOException e) {
+                        // the recordings are still recovered, only findNear is not available
+                        Log.e(TAG, "Cannot open "+SPATIAL_INDEX_FILE, e);
+                    }
+                    recoverLogs();
                 } catch (Exception e) {
                     return e;
                 } finally {
@@ -102,6 +196,34 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
      *              the new recording
      */
     public void add(final Recording newRecording) {
+        add(newRecording, null);
+    }
+
+    /**
+     * Start the write-ahead log of an active recording
+     *
+     * @param recording
+     *              the active recording
+     * @return
+     *          the log, or null if the manager is not initialized
+     */
+    synchronized RecordingLog openLog(Recording recording) {
+        if (dir==null)
+            return null;
+        activeLogs.add(recording.begin.getTime());
+        return RecordingLog.open(dir, recording.begin.getTime());
+    }
+
+    /**
+     * Add a stopped recording (in a separate thread). If it was journaled the sealed log already
+     * holds its samples, so only the header is saved now: the log is compacted on next {@link #init}
+     *
+     * @param newRecording
+     *              the new recording
+     * @param log
+     *              the log of the recording, or null
+     */
+    void add(final Recording newRecording, final RecordingLog log) {
 
         new AsyncTask<Void, Void, Exception>() {
             long time;
@@ -111,14 +233,26 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
             protected Exception doInBackground(Void... params) {
                 try {
                     time = SystemClock.currentThreadTimeMillis();
-                    h = new Recording.Header(newRecording);
+                    h = summarize(newRecording);
+                    if (log!=null) {
+                        log.close(h.end);
+                        synchronized (RecordingManager.this) {
+                            activeLogs.remove(h.begin);
+                        }
+                    }
                     if (h.readings==0) {
+                        if (log!=null)
+                            RecordingLog.delete(dir, h.begin);
                         cancel(false);
                         return null;
                     }
-                    headers.add(h);
-                    save(newRecording);
-                    saveHeaders();
+                    // a sealed log is recovered on next init if the catalog cannot be opened
+                    RecordingCatalog catalog = openCatalog();
+                    if (log==null)
+                        save(newRecording);
+                    catalog.add(h);
+                    if (index!=null)
+                        index.add(newRecording);
                 } catch(Exception e) {
                     return e;
                 } finally {
@@ -136,7 +270,6 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
             @Override
             protected void onPostExecute(Exception e) {
                 if (e!=null) {
-                    headers.remove(h);
                     Log.e(TAG, "Error saving recording headers", e);
                     Toast.makeText(RecordingManager.this.context,
                             "Error saving recording data:" + e.getLocalizedMessage(),
@@ -151,6 +284,36 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
         }.execute();
     }
 
+    /**
+     * Drop a cancelled recording (in a separate thread): its log is released and deleted,
+     * so that it is not recovered as a stored recording on next {@link #init}
+     *
+     * @param recording
+     *              the cancelled recording
+     * @param log
+     *              the log of the recording, or null
+     */
+    void cancel(final Recording recording, final RecordingLog log) {
+        if (log==null)
+            return;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                long begin = recording.begin.getTime();
+                try {
+                    log.discard();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot close recording log "+begin, e);
+                }
+                RecordingLog.delete(dir, begin);
+                synchronized (RecordingManager.this) {
+                    activeLogs.remove(begin);
+                }
+                return null;
+            }
+        }.execute();
+    }
+
     /**
      * Get a recording started at the given time
      *
@@ -163,6 +326,16 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
         return recordings.get(time);
     }
 
+    /**
+     * The cache of the loaded recordings, to pin the ones in use
+     *
+     * @return
+     *          the cache
+     */
+    public RecordingCache getCache() {
+        return recordings;
+    }
+
     public interface Callback {
         /** Invoke from the UI thread */
         void onReceive(Recording rec);
@@ -212,41 +385,267 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
         }.execute(time);
     }
 
-    public synchronized Recording.Header getHeader(int position) {
-        return headers.get(position);
+    /**
+     * Remove a stored recording (in a separate thread)
+     *
+     * @param begin
+     *              the begin time of the recording
+     */
+    public void remove(final long begin) {
+        new AsyncTask<Void, Void, Exception>() {
+            Recording removed;
+
+            @Override
+            protected Exception doInBackground(Void... params) {
+                try {
+                    RecordingCatalog catalog = openCatalog();
+                    int position = catalog.indexOf(begin);
+                    if (position<0) {
+                        cancel(false);
+                        return null;
+                    }
+                    Recording.Header h = catalog.get(position);
+                    removed = recordings.remove(begin);
+                    if (removed==null)
+                        removed = new Recording(new Date(h.begin), new Date(h.end));
+                    catalog.remove(begin);
+                    new File(dir, begin+".rec").delete();
+                    new File(dir, begin+ROLLUPS_EXTENSION).delete();
+                    synchronized (rollups) {
+                        rollups.remove(begin);
+                    }
+                    RecordingLog.delete(dir, begin);
+                    if (index!=null)
+                        index.remove(begin);
+                    if (catalog.tombstones()>COMPACT_RATIO*catalog.size())
+                        catalog.compact();
+                } catch(IOException e) {
+                    return e;
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Exception e) {
+                if (e!=null)
+                    Log.e(TAG, "Error removing recording "+begin, e);
+                else
+                    fireEvent(new RecordingEvent(removed));
+            }
+        }.execute();
+    }
+
+    public Recording.Header getHeader(int position) {
+        return catalog.get(position);
+    }
+
+    /**
+     * @param begin
+     *              the begin time of a stored recording
+     * @return
+     *          its header, or null if not found
+     */
+    Recording.Header findHeader(long begin) {
+        int position = catalog==null ? -1 : catalog.indexOf(begin);
+        return position<0 ? null : catalog.get(position);
     }
 
-    public synchronized int count() {
-        return headers.size();
+    public int count() {
+        return catalog==null ? 0 : catalog.size();
     }
 
+    /** Gson for legacy recordings: the model classes are converted by their own streaming adapters */
     private Gson buildGson() {
-        return new GsonBuilder()
-                .registerTypeAdapter(Tracking.Data.class, this)
-                .create();
-    }
-
-    @Override
-    public Tracking.Data deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-        JsonObject o = json.getAsJsonObject();
-        List<Long> timeline = context.deserialize(o.get("timeline"), new TypeToken<List<Long>>(){}.getType());
-        List data = null;
-        JsonElement first = o.get("data").getAsJsonArray().get(0);
-        if (first.isJsonObject() && first.getAsJsonObject().has("lat"))
-            data = context.deserialize(o.get("data"), new TypeToken<List<GPSDevice.Sample>>(){}.getType());
-        else
-            data = context.deserialize(o.get("data"), List.class);
-        return new Tracking.Data<>(timeline, data);
+        return new GsonBuilder().create();
+    }
+
+    /**
+     * Open the catalog of the headers, importing the legacy list if still present. It is opened
+     * by {@link #init}, or by the first recording added or removed if that comes first.
+     *
+     * @return
+     *          the catalog
+     * @throws IOException
+     *          for I/O problems, or if the manager is not initialized
+     */
+    private synchronized RecordingCatalog openCatalog() throws IOException {
+        if (catalog!=null)
+            return catalog;
+        if (dir==null)
+            throw new IOException("Recording manager not initialized");
+        RecordingCatalog c = RecordingCatalog.open(new File(dir, CATALOG_FILE));
+        File legacy = new File(dir, LEGACY_HEADERS_FILE);
+        if (legacy.exists()) {
+            for (Recording.Header h : loadLegacyHeaders(legacy))
+                if (c.indexOf(h.begin)<0)
+                    c.add(h);
+            if (!legacy.delete())
+                Log.w(TAG, "Cannot delete "+LEGACY_HEADERS_FILE);
+            Log.i(TAG, "Imported "+LEGACY_HEADERS_FILE);
+        }
+        if (c.tombstones()>COMPACT_RATIO*c.size())
+            c.compact();
+        catalog = c;
+        Log.i(TAG, "Opened "+CATALOG_FILE+": "+c.size()+" headers");
+        return c;
+    }
+
+    /**
+     * Open the spatial index, and index the stored recordings missing from it: all of them if
+     * it is new, the rest if its rebuild was interrupted. An unreadable index is rebuilt.
+     *
+     * @throws IOException
+     *          for I/O problems
+     */
+    private void openIndex() throws IOException {
+        File file = new File(dir, SPATIAL_INDEX_FILE);
+        SpatialIndex i;
+        try {
+            i = SpatialIndex.open(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Rebuilding "+SPATIAL_INDEX_FILE, e);
+            if (!file.delete())
+                Log.w(TAG, "Cannot delete "+SPATIAL_INDEX_FILE);
+            i = SpatialIndex.open(file);
+        }
+        List<String> keys = Collections.singletonList(GPSDevice.KEY_LOCATION);
+        int added = 0;
+        for (int p=0; p<catalog.size(); p++) {
+            long begin = catalog.get(p).begin;
+            if (i.contains(begin))
+                continue;
+            try {
+                i.add(load(begin, keys, Long.MIN_VALUE, Long.MAX_VALUE));
+                added++;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot index "+begin, e);
+            }
+        }
+        if (added>0)
+            Log.i(TAG, "Indexed "+added+" recordings in "+SPATIAL_INDEX_FILE);
+        index = i;
+    }
+
+    /**
+     * Find the recordings that passed within a distance of a place. The spatial index selects
+     * the candidate time windows, and only their fixes are loaded to check the distance.
+     *
+     * @param lat
+     *              the latitude of the place
+     * @param lng
+     *              the longitude of the place
+     * @param radius
+     *              the distance in meters
+     * @return
+     *          the time windows spent within the distance, by recording and time
+     * @throws IOException
+     *          for I/O problems
+     */
+    public List<SpatialIndex.Visit> findNear(double lat, double lng, double radius) throws IOException {
+        List<SpatialIndex.Visit> ret = new ArrayList<>();
+        if (index==null)
+            return ret;
+        List<String> keys = Collections.singletonList(GPSDevice.KEY_LOCATION);
+        for (SpatialIndex.Visit candidate : index.query(lat, lng, radius)) {
+            Recording r = load(candidate.getBegin(), keys, candidate.getFrom(), candidate.getTo());
+            Tracking.Data fixes = r.samples(GPSDevice.IDENTIFIER, GPSDevice.KEY_LOCATION,
+                    candidate.getFrom(), candidate.getTo());
+            SpatialIndex.Visit window = null;
+            for (int i=0; fixes!=null && i<fixes.size(); i++) {
+                if (SpatialIndex.distance(lat, lng, fixes.getLatitude(i), fixes.getLongitude(i))>radius)
+                    window = null;
+                else if (window!=null)
+                    window.to = fixes.getTime(i);
+                else {
+                    window = new SpatialIndex.Visit(0, candidate.getBegin(),
+                            fixes.getTime(i), fixes.getTime(i));
+                    ret.add(window);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Run an aggregate query on the stored recordings overlapping a time range. The recordings
+     * are folded in parallel on a bounded pool of workers, each reading only the keys of the
+     * aggregation in the range; the partial aggregates are merged in the calling thread, that
+     * must not be the UI thread.
+     *
+     * @param aggregation
+     *              the aggregation
+     * @param from
+     *              the begin of the time range in ms, inclusive
+     * @param to
+     *              the end of the time range in ms, inclusive
+     * @return
+     *          the aggregate
+     * @throws IOException
+     *          for I/O problems, or if interrupted
+     */
+    public <A> A aggregate(final Aggregation<A> aggregation, final long from, final long to)
+            throws IOException {
+        List<Future<A>> partials = new ArrayList<>();
+        ThreadPoolExecutor pool = getWorkers();
+        RecordingCatalog catalog = openCatalog();
+        for (int p=0; p<catalog.size(); p++) {
+            Recording.Header h = catalog.get(p);
+            if (h.end<from || h.begin>to)
+                continue;
+            final long begin = h.begin;
+            partials.add(pool.submit(new Callable<A>() {
+                @Override
+                public A call() throws IOException {
+                    A ret = aggregation.create();
+                    Recording r = load(begin, aggregation.getKeys(), from, to);
+                    for (String id : r.getDeviceIds())
+                        for (String key : aggregation.getKeys()) {
+                            Tracking.Data samples = r.samples(id, key, from, to);
+                            if (samples!=null)
+                                aggregation.add(ret, id, key, samples);
+                        }
+                    return ret;
+                }
+            }));
+        }
+
+        A ret = aggregation.create();
+        try {
+            for (Future<A> partial : partials)
+                ret = aggregation.merge(ret, partial.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Aggregation interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<A> partial : partials)
+                partial.cancel(true);
+        }
+        return ret;
     }
 
-    private synchronized void loadHeaders() throws IOException {
+    private synchronized ThreadPoolExecutor getWorkers() {
+        if (workers==null) {
+            workers = new ThreadPoolExecutor(AGGREGATION_THREADS, AGGREGATION_THREADS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private List<Recording.Header> loadLegacyHeaders(File file) throws IOException {
         Gson gson = new Gson();
         FileReader r = null;
         try {
-            r = new FileReader(new File(dir, HEADERS_FILE));
+            r = new FileReader(file);
             Type token = new TypeToken<List<Recording.Header>>(){}.getType();
-            Log.i(TAG, "Loaded "+HEADERS_FILE);
-            headers = gson.fromJson(r, token);
+            List<Recording.Header> ret = gson.fromJson(r, token);
+            return ret==null ? new ArrayList<Recording.Header>() : ret;
         } finally {
             try {r.close();} catch(Exception e) {}
         }
@@ -262,46 +661,239 @@ public class RecordingManager implements JsonDeserializer<Tracking.Data> {
      * @throws IOException
      *          for I/O problems
      */
-    public synchronized Recording load(long timeline) throws IOException {
-        Gson gson = buildGson();
-        FileReader r = null;
+    public Recording load(long timeline) throws IOException {
+        InputStream in = null;
         String filename = timeline+".rec";
         Recording recording = null;
+        // the recovery saves the recording before deleting its log
+        synchronized (files) {
+            if (!new File(dir, filename).exists() && RecordingLog.exists(dir, timeline)) {
+                recording = RecordingLog.replay(dir, timeline);
+                Log.i(TAG, "Replayed log of "+timeline);
+                recordings.put(timeline, recording);
+                return recording;
+            }
+        }
         try {
-            r = new FileReader(new File(dir, filename));
-            Type token = new TypeToken<Recording>(){}.getType();
-            recording = gson.fromJson(r, token);
+            in = new BufferedInputStream(new FileInputStream(new File(dir, filename)));
+            if (RecordingCodec.isBinary(in))
+                recording = RecordingCodec.read(in);
+            else {
+                // legacy Json recording
+                Type token = new TypeToken<Recording>(){}.getType();
+                recording = buildGson().fromJson(new InputStreamReader(in, "UTF-8"), token);
+            }
             Log.i(TAG, "Loaded "+filename);
             recordings.put(timeline, recording);
         } finally {
-            try {r.close();} catch(Exception e) {}
+            try {in.close();} catch(Exception e) {}
         }
         return recording;
     }
 
-    private synchronized void saveHeaders() throws IOException {
-        Gson gson = new Gson();
-        FileWriter w = null;
+    /**
+     * Load a part of a recording from the storage, reading only the requested keys and time range
+     * when the file format allows it. The result is not cached, unless it is the whole recording.
+     *
+     * @param timeline
+     *              time of recording
+     * @param keys
+     *              the keys to read, null for all
+     * @param from
+     *              the begin of the time range in ms, inclusive
+     * @param to
+     *              the end of the time range in ms, inclusive
+     * @return
+     *          the recording, to be queried with {@link Recording#samples(String, String, long, long)}
+     * @throws IOException
+     *          for I/O problems
+     */
+    public Recording load(long timeline, Collection<String> keys, long from, long to) throws IOException {
+        Recording cached = recordings.get(timeline);
+        if (cached!=null)
+            return cached;
+        File file = new File(dir, timeline+".rec");
+        if (!file.exists())
+            return load(timeline);
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
         try {
-            w = new FileWriter(new File(dir, HEADERS_FILE), false);
-            gson.toJson(headers, w);
-            Log.i(TAG, "Savied "+HEADERS_FILE);
+            if (!RecordingCodec.isBinary(in))
+                return load(timeline);
+            Recording ret = RecordingCodec.read(in, keys, from, to);
+            Log.i(TAG, "Loaded "+keys+" in "+from+"-"+to+" of "+file.getName());
+            return ret;
         } finally {
-            try {w.close();} catch(Exception e) {}
+            try {in.close();} catch(Exception e) {}
         }
     }
 
-    private synchronized void save(Recording recording) throws IOException {
-        Gson gson = buildGson();
-        FileWriter w = null;
-        String filename = recording.begin.getTime()+".rec";
-        try {
-            w = new FileWriter(new File(dir, filename), false);
-            gson.toJson(recording, w);
-            Log.i(TAG, "Saved "+filename);
-        } finally {
-            try {w.close();} catch(Exception e) {}
+    /**
+     * Turn the logs left by the previous sessions into stored recordings: a log not sealed
+     * was interrupted by a crash, and ends with its last sample
+     */
+    private void recoverLogs() {
+        File[] partial = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(TEMP_EXTENSION);
+            }
+        });
+        if (partial!=null)
+            for (File f : partial)
+                if (!f.delete())
+                    Log.w(TAG, "Cannot delete "+f);
+        for (long begin : RecordingLog.list(dir)) {
+            synchronized (this) {
+                if (activeLogs.contains(begin))
+                    continue;
+            }
+            try {
+                Recording.Header h;
+                synchronized (files) {
+                    Recording r = RecordingLog.replay(dir, begin);
+                    h = summarize(r);
+                    if (h.readings>0) {
+                        save(r);
+                        if (catalog.indexOf(begin)<0)
+                            catalog.add(h);
+                        if (index!=null)
+                            index.add(r);
+                    }
+                    RecordingLog.delete(dir, begin);
+                }
+                Log.i(TAG, "Recovered log of "+begin+": "+h.readings+" readings");
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot recover log of "+begin, e);
+            }
+        }
+    }
+
+    /**
+     * Build the header of a recording, with the summaries of its series
+     *
+     * @param recording
+     *              the recording
+     * @return
+     *          the header
+     */
+    private Recording.Header summarize(Recording recording) {
+        Recording.Header ret = new Recording.Header(recording);
+        ret.summaries = Summary.of(recording, getThresholds(recording));
+        return ret;
+    }
+
+    /** The thresholds of the keys of a recording, from the <code>summary_&lt;key&gt;_above</code> resources */
+    private Map<String, Float> getThresholds(Recording recording) {
+        synchronized (thresholds) {
+            for (String id : recording.getDeviceIds())
+                for (String key : recording.getTracking(id).getKeys()) {
+                    if (thresholds.containsKey(key))
+                        continue;
+                    Float threshold = null;
+                    int res = context.getResources().getIdentifier(
+                            "summary_" + key + "_above", "string", context.getPackageName());
+                    if (res!=0)
+                        try {
+                            threshold = Float.parseFloat(context.getResources().getString(res));
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Invalid threshold of "+key, e);
+                        }
+                    thresholds.put(key, threshold);
+                }
+            return new HashMap<>(thresholds);
+        }
+    }
+
+    /**
+     * Save a recording and its rollups, each to a temporary file renamed over the old one
+     * when complete: a crash while saving leaves the previous file, or the log, intact
+     */
+    private void save(Recording recording) throws IOException {
+        File file = new File(dir, recording.begin.getTime()+".rec");
+        File tmp = new File(dir, file.getName()+TEMP_EXTENSION);
+        synchronized (files) {
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp, false);
+                RecordingCodec.write(recording, out);
+                out.getFD().sync();
+            } finally {
+                try {out.close();} catch(Exception e) {}
+            }
+            rename(tmp, file);
+        }
+        Log.i(TAG, "Saved "+file.getName());
+        saveRollups(recording.begin.getTime(), Rollups.build(recording));
+    }
+
+    private void saveRollups(long begin, Rollups r) throws IOException {
+        File file = new File(dir, begin+ROLLUPS_EXTENSION);
+        File tmp = new File(dir, file.getName()+TEMP_EXTENSION);
+        synchronized (files) {
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp, false);
+                OutputStream buffer = new BufferedOutputStream(out);
+                r.write(buffer);
+                buffer.flush();
+                out.getFD().sync();
+            } finally {
+                try {out.close();} catch(Exception e) {}
+            }
+            rename(tmp, file);
+        }
+        Log.i(TAG, "Saved "+file.getName());
+        synchronized (rollups) {
+            rollups.put(begin, r);
+        }
+    }
+
+    /** Replace a file with the temporary one just written */
+    private static void rename(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename "+tmp.getName()+" to "+file.getName());
+        }
+    }
+
+    /**
+     * Get the rollups of a stored recording, building them if the recording was saved
+     * without them
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @return
+     *          the rollups
+     * @throws IOException
+     *          for I/O problems
+     */
+    public Rollups getRollups(long begin) throws IOException {
+        synchronized (rollups) {
+            Rollups ret = rollups.get(begin);
+            if (ret!=null)
+                return ret;
+        }
+        File file = new File(dir, begin+ROLLUPS_EXTENSION);
+        if (file.exists()) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                Rollups ret = Rollups.read(in);
+                synchronized (rollups) {
+                    rollups.put(begin, ret);
+                }
+                return ret;
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding "+file.getName(), e);
+            } finally {
+                try {in.close();} catch(Exception e) {}
+            }
         }
+        Recording r = getById(begin);
+        if (r==null)
+            r = load(begin);
+        Rollups ret = Rollups.build(r);
+        saveRollups(begin, ret);
+        return ret;
     }
 
     /**
@@ -0,0 +1,228 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Summary of a numeric series in buckets of fixed duration: minimum, maximum, mean, count,
+ * first and last value of the samples of each bucket.
+ *
+ * <p>
+ * Buckets are aligned to multiples of the interval, so that the buckets of a finer tier
+ * nest in the ones of a coarser tier. Empty buckets are not stored.
+ *
+ * @see Rollups
+ */
+public class Rollup {
+
+    private final long interval;
+
+    private long[] start;
+    private float[] min, max, mean, first, last;
+    private int[] count;
+    private int size;
+
+    Rollup(long interval, int capacity) {
+        this.interval = interval;
+        capacity = Math.max(capacity, 1);
+        start = new long[capacity];
+        min = new float[capacity];
+        max = new float[capacity];
+        mean = new float[capacity];
+        first = new float[capacity];
+        last = new float[capacity];
+        count = new int[capacity];
+    }
+
+    /**
+     * Summarize a series of samples
+     *
+     * @param data
+     *              the numeric samples
+     * @param interval
+     *              the duration of the buckets in ms
+     * @return
+     *          the rollup
+     */
+    static Rollup of(Tracking.Data data, long interval) {
+        Rollup ret = new Rollup(interval, 16);
+        double sum = 0;
+        for (int i=0; i<data.size(); i++) {
+            long t = data.getTime(i);
+            float v = data.getFloat(i);
+            long s = align(t, interval);
+            if (ret.size==0 || ret.start[ret.size-1]!=s) {
+                if (ret.size>0)
+                    ret.mean[ret.size-1] = (float) (sum / ret.count[ret.size-1]);
+                ret.open(s, v);
+                sum = 0;
+            }
+            ret.add(v);
+            sum += v;
+        }
+        if (ret.size>0)
+            ret.mean[ret.size-1] = (float) (sum / ret.count[ret.size-1]);
+        return ret;
+    }
+
+    /**
+     * Merge the buckets of a finer rollup into coarser ones
+     *
+     * @param finer
+     *              the finer rollup
+     * @param interval
+     *              a multiple of the interval of the finer rollup
+     * @return
+     *          the coarser rollup
+     */
+    static Rollup of(Rollup finer, long interval) {
+        Rollup ret = new Rollup(interval, (int) (finer.size * finer.interval / interval) + 1);
+        double sum = 0;
+        for (int i=0; i<finer.size; i++) {
+            long s = align(finer.start[i], interval);
+            if (ret.size==0 || ret.start[ret.size-1]!=s) {
+                if (ret.size>0)
+                    ret.mean[ret.size-1] = (float) (sum / ret.count[ret.size-1]);
+                ret.open(s, finer.first[i]);
+                ret.count[ret.size-1] = 0;
+                sum = 0;
+            }
+            int k = ret.size - 1;
+            ret.min[k] = Math.min(ret.min[k], finer.min[i]);
+            ret.max[k] = Math.max(ret.max[k], finer.max[i]);
+            ret.last[k] = finer.last[i];
+            ret.count[k] += finer.count[i];
+            sum += (double) finer.mean[i] * finer.count[i];
+        }
+        if (ret.size>0)
+            ret.mean[ret.size-1] = (float) (sum / ret.count[ret.size-1]);
+        return ret;
+    }
+
+    /** Begin of the bucket of a time */
+    static long align(long time, long interval) {
+        long r = time % interval;
+        return r<0 ? time - r - interval : time - r;
+    }
+
+    private void open(long s, float v) {
+        if (size==start.length) {
+            int capacity = size + (size >> 1) + 1;
+            start = Arrays.copyOf(start, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            mean = Arrays.copyOf(mean, capacity);
+            first = Arrays.copyOf(first, capacity);
+            last = Arrays.copyOf(last, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+        start[size] = s;
+        min[size] = v;
+        max[size] = v;
+        first[size] = v;
+        size++;
+    }
+
+    private void add(float v) {
+        int k = size - 1;
+        if (v<min[k])
+            min[k] = v;
+        if (v>max[k])
+            max[k] = v;
+        last[k] = v;
+        count[k]++;
+    }
+
+    /** Duration of the buckets in ms */
+    public long getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * First bucket ending after a time
+     *
+     * @param time
+     *              the time in ms
+     * @return
+     *          the index of the bucket, or {@link #size()} if all the buckets are before
+     */
+    public int indexOf(long time) {
+        int i = Arrays.binarySearch(start, 0, size, align(time, interval));
+        return i<0 ? -i-1 : i;
+    }
+
+    /** Begin time of a bucket */
+    public long getStart(int i) {
+        return start[check(i)];
+    }
+
+    public float getMin(int i) {
+        return min[check(i)];
+    }
+
+    public float getMax(int i) {
+        return max[check(i)];
+    }
+
+    public float getMean(int i) {
+        return mean[check(i)];
+    }
+
+    public float getFirst(int i) {
+        return first[check(i)];
+    }
+
+    public float getLast(int i) {
+        return last[check(i)];
+    }
+
+    /** Number of samples in a bucket */
+    public int getCount(int i) {
+        return count[check(i)];
+    }
+
+    private int check(int i) {
+        if (i<0 || i>=size)
+            throw new IndexOutOfBoundsException("Index: "+i+", Size: "+size);
+        return i;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(interval);
+        out.writeInt(size);
+        for (int i=0; i<size; i++) {
+            out.writeLong(start[i]);
+            out.writeFloat(min[i]);
+            out.writeFloat(max[i]);
+            out.writeFloat(mean[i]);
+            out.writeFloat(first[i]);
+            out.writeFloat(last[i]);
+            out.writeInt(count[i]);
+        }
+    }
+
+    static Rollup read(DataInputStream in) throws IOException {
+        long interval = in.readLong();
+        int n = in.readInt();
+        Rollup ret = new Rollup(interval, n);
+        for (int i=0; i<n; i++) {
+            ret.start[i] = in.readLong();
+            ret.min[i] = in.readFloat();
+            ret.max[i] = in.readFloat();
+            ret.mean[i] = in.readFloat();
+            ret.first[i] = in.readFloat();
+            ret.last[i] = in.readFloat();
+            ret.count[i] = in.readInt();
+        }
+        ret.size = n;
+        return ret;
+    }
+
+}
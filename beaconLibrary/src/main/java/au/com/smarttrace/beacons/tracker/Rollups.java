@@ -0,0 +1,140 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Precomputed {@link Rollup}s of all the numeric series of a recording, in tiers of
+ * increasing interval ({@link #TIERS}).
+ *
+ * <p>
+ * They are stored next to the recording (the <code>.rup</code> files), and are rebuilt from the
+ * samples when missing. A consumer asks for the resolution it needs, and gets the coarsest tier
+ * that satisfies it, scanning far less data than the raw samples.
+ *
+ * @see RecordingManager#getRollups(long)
+ */
+public class Rollups {
+
+    /** Intervals of the tiers, in ms: 1 minute, 15 minutes, 1 hour */
+    public final static long[] TIERS = {60000l, 900000l, 3600000l};
+
+    private final static byte[] MAGIC = {'S', 'T', 'R', 'U'};
+
+    final static int VERSION = 1;
+
+    /** Tiers by device and key */
+    private final Map<String, Map<String, Rollup[]>> rollups = new LinkedHashMap<>();
+
+    private Rollups() {}
+
+    /**
+     * Summarize the numeric series of a recording
+     *
+     * @param recording
+     *              the recording
+     * @return
+     *          the rollups
+     */
+    public static Rollups build(Recording recording) {
+        Rollups ret = new Rollups();
+        for (String id : recording.getDeviceIds()) {
+            Tracking t = recording.getTracking(id);
+            for (String key : t.getKeys()) {
+                Tracking.Data data = t.getSamples(key);
+                if (!data.isNumeric())
+                    continue;
+                Rollup[] tiers = new Rollup[TIERS.length];
+                tiers[0] = Rollup.of(data, TIERS[0]);
+                for (int i=1; i<TIERS.length; i++)
+                    tiers[i] = Rollup.of(tiers[i-1], TIERS[i]);
+                ret.put(id, key, tiers);
+            }
+        }
+        return ret;
+    }
+
+    private void put(String deviceId, String key, Rollup[] tiers) {
+        Map<String, Rollup[]> keys = rollups.get(deviceId);
+        if (keys==null) {
+            keys = new LinkedHashMap<>();
+            rollups.put(deviceId, keys);
+        }
+        keys.put(key, tiers);
+    }
+
+    /**
+     * Choose the coarsest tier of a series that is not coarser than a resolution
+     *
+     * @param deviceId
+     *              the device identifier
+     * @param key
+     *              the sample key
+     * @param resolution
+     *              the time that a point is going to represent, in ms
+     * @return
+     *          the rollup, or null if the raw samples are needed (or not numeric)
+     */
+    public Rollup get(String deviceId, String key, long resolution) {
+        Map<String, Rollup[]> keys = rollups.get(deviceId);
+        Rollup[] tiers = keys==null ? null : keys.get(key);
+        if (tiers==null)
+            return null;
+        Rollup ret = null;
+        for (Rollup r : tiers)
+            if (r.getInterval()<=resolution)
+                ret = r;
+        return ret;
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.writeInt(rollups.size());
+        for (Map.Entry<String, Map<String, Rollup[]>> d : rollups.entrySet()) {
+            out.writeUTF(d.getKey());
+            out.writeInt(d.getValue().size());
+            for (Map.Entry<String, Rollup[]> k : d.getValue().entrySet()) {
+                out.writeUTF(k.getKey());
+                out.writeInt(k.getValue().length);
+                for (Rollup r : k.getValue())
+                    r.write(out);
+            }
+        }
+        out.flush();
+    }
+
+    static Rollups read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i=0; i<MAGIC.length; i++)
+            if (magic[i]!=MAGIC[i])
+                throw new IOException("Not a rollups file");
+        int version = in.read();
+        if (version!=VERSION)
+            throw new IOException("Unsupported rollups version: "+version);
+        Rollups ret = new Rollups();
+        int devices = in.readInt();
+        for (int d=0; d<devices; d++) {
+            String id = in.readUTF();
+            int keys = in.readInt();
+            for (int k=0; k<keys; k++) {
+                String key = in.readUTF();
+                Rollup[] tiers = new Rollup[in.readInt()];
+                for (int i=0; i<tiers.length; i++)
+                    tiers[i] = Rollup.read(in);
+                ret.put(id, key, tiers);
+            }
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,50 @@
+package au.com.smarttrace.beacons.tracker;
+
+/**
+ * <p>
+ * A compacter that approximates the samples with segments, instead of comparing each one with
+ * the previous stored sample.
+ *
+ * <p>
+ * The last sample of the timeline is provisional: it is the end of the current segment, and
+ * is replaced by the new sample as long as the segment can be extended. When it cannot, the
+ * provisional sample is kept and the new one starts a new segment. Samples merged out of order
+ * are still checked with {@link #inThreshold(Object, Object)}.
+ *
+ * <p>
+ * When keys are sampled together, the last record is replaced only if all their compacters
+ * agree: each one is first asked with {@link #wouldReplace(long, Object)}, that does not
+ * change its state, then told the decision of the group with {@link #commit(long, Object, boolean)}.
+ *
+ * @param <T>
+ *          the type of the samples
+ */
+public interface SegmentCompacter<T> extends TrackingCompacter<T> {
+
+    /**
+     * Check a new sample, later than all the previous ones, without changing the state
+     *
+     * @param time
+     *              the time of the sample
+     * @param o
+     *              the value of the sample
+     * @return
+     *          true if the new sample can replace the last one of the timeline,
+     *          false if the last one must be kept
+     */
+    public boolean wouldReplace(long time, T o);
+
+    /**
+     * Offer a new sample, once it is decided whether it replaces the last one
+     *
+     * @param time
+     *              the time of the sample
+     * @param o
+     *              the value of the sample
+     * @param replaced
+     *              true if the sample replaced the last one of the timeline,
+     *              false if it was appended after it
+     */
+    public void commit(long time, T o, boolean replaced);
+
+}
@@ -0,0 +1,462 @@
+package au.com.smarttrace.beacons.tracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Geohash index of the location fixes of all the stored recordings, to find the recordings
+ * that passed near a place without opening the others.
+ *
+ * <p>
+ * The surface is split in cells of {@link #BITS} interleaved bits of longitude and latitude
+ * (about 1.2 km by 0.6 km at the equator). A recording is indexed as its visits: the runs of
+ * consecutive fixes in the same cell, with the time of the first and the last fix. The visits
+ * are fixed-size binary records (cell, begin, from, to) appended to the index file when a
+ * recording is stored, and kept in memory sorted by cell; removing a recording rewrites the file.
+ * The visits of a recording are followed by a marker record ({@link #NO_CELL}), also written for
+ * a recording without fixes: a recording is indexed once its marker is on disk, and the visits
+ * after the last marker, left by an append torn by a crash, are dropped when opening.
+ *
+ * <p>
+ * A query returns candidate time windows: the fixes in a window are only known to be in a cell
+ * close to the place, {@link RecordingManager#findNear(double, double, double)} checks them.
+ */
+public class SpatialIndex {
+
+    private final static String TAG = SpatialIndex.class.getSimpleName();
+
+    /** Bits of a cell code, half for the longitude and half for the latitude */
+    final static int BITS = 30;
+
+    final static int HEADER_SIZE = 8;
+
+    final static int RECORD_SIZE = 32;
+
+    private final static int MAGIC = 0x53544758; // STGX
+
+    final static int VERSION = 2;
+
+    /** Cell of the record that marks a recording as indexed */
+    final static long NO_CELL = -1;
+
+    /** Windows of a recording closer than this are merged, in ms */
+    final static long WINDOW_GAP = 5 * 60000l;
+
+    /** Above this number of cells a query scans all the visits */
+    private final static int MAX_QUERY_CELLS = 1024;
+
+    private final static int SIDE = 1 << (BITS / 2);
+
+    /** Meters in a degree of latitude */
+    private final static double METERS_PER_DEGREE = 6378137 * Math.PI / 180;
+
+    /**
+     * A recording passing through a cell, or a time window of a recording in a query result
+     */
+    public static class Visit {
+        long cell;
+        final long begin;
+        long from, to;
+
+        Visit(long cell, long begin, long from, long to) {
+            this.cell = cell;
+            this.begin = begin;
+            this.from = from;
+            this.to = to;
+        }
+
+        /** Begin time of the recording */
+        public long getBegin() {
+            return begin;
+        }
+
+        /** Time of the first fix, in ms */
+        public long getFrom() {
+            return from;
+        }
+
+        /** Time of the last fix, in ms */
+        public long getTo() {
+            return to;
+        }
+
+        @Override
+        public String toString() {
+            return begin + ": " + from + "-" + to;
+        }
+    }
+
+    private final static Comparator<Visit> BY_CELL = new Comparator<Visit>() {
+        @Override
+        public int compare(Visit v1, Visit v2) {
+            return v1.cell<v2.cell ? -1 : v1.cell>v2.cell ? 1 : 0;
+        }
+    };
+
+    private final static Comparator<Visit> BY_TIME = new Comparator<Visit>() {
+        @Override
+        public int compare(Visit v1, Visit v2) {
+            if (v1.begin!=v2.begin)
+                return v1.begin<v2.begin ? -1 : 1;
+            return v1.from<v2.from ? -1 : v1.from>v2.from ? 1 : 0;
+        }
+    };
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /** Visits sorted by cell */
+    private Visit[] visits = new Visit[0];
+
+    /** Begin times of the indexed recordings, also the ones without fixes */
+    private final Set<Long> indexed = new HashSet<>();
+
+    private SpatialIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open an index, creating it if needed
+     *
+     * @param file
+     *              the index file
+     * @return
+     *          the index
+     * @throws IOException
+     *          for I/O problems
+     */
+    static SpatialIndex open(File file) throws IOException {
+        SpatialIndex ret = new SpatialIndex(file);
+        try {
+            ret.init();
+        } catch (IOException e) {
+            if (ret.raf!=null)
+                ret.raf.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    private void init() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long length = channel.size();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (length>=HEADER_SIZE) {
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt()!=MAGIC || header.getInt()!=VERSION) {
+                Log.w(TAG, "Discarding " + file + ": unknown format");
+                length = 0;
+            }
+        } else
+            length = 0;
+        if (length==0) {
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(false);
+            length = HEADER_SIZE;
+        }
+
+        int count = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        ByteBuffer b = ByteBuffer.allocate(count * RECORD_SIZE);
+        while (b.hasRemaining() && channel.read(b, HEADER_SIZE + b.position())>0);
+        b.flip();
+        Visit[] records = new Visit[count];
+        int complete = 0;
+        for (int i=0; i<count; i++) {
+            records[i] = new Visit(b.getLong(), b.getLong(), b.getLong(), b.getLong());
+            if (records[i].cell==NO_CELL)
+                complete = i + 1;
+        }
+
+        // an append torn by a crash leaves visits without their marker, or a partial record
+        if (HEADER_SIZE + complete * (long) RECORD_SIZE!=length) {
+            Log.w(TAG, "Truncating a torn append in " + file);
+            channel.truncate(HEADER_SIZE + complete * (long) RECORD_SIZE);
+            channel.force(false);
+        }
+        List<Visit> found = new ArrayList<>();
+        indexed.clear();
+        for (int i=0; i<complete; i++)
+            if (records[i].cell==NO_CELL)
+                indexed.add(records[i].begin);
+            else
+                found.add(records[i]);
+        visits = found.toArray(new Visit[found.size()]);
+        Arrays.sort(visits, BY_CELL);
+    }
+
+    /**
+     * @param begin
+     *              the begin time of a recording
+     * @return
+     *          true if the recording is already indexed
+     */
+    synchronized boolean contains(long begin) {
+        return indexed.contains(begin);
+    }
+
+    /**
+     * @return
+     *          the number of visits
+     */
+    synchronized int size() {
+        return visits.length;
+    }
+
+    /**
+     * Index the location fixes of a recording, if not yet indexed
+     *
+     * @param recording
+     *              the recording
+     * @throws IOException
+     *          for I/O problems
+     */
+    void add(Recording recording) throws IOException {
+        Tracking t = recording.getTracking(GPSDevice.IDENTIFIER);
+        add(recording.getBegin().getTime(), t==null ? null : t.getSamples(GPSDevice.KEY_LOCATION));
+    }
+
+    /**
+     * Index the location fixes of a recording, if not yet indexed
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @param fixes
+     *              the location fixes, or null
+     * @throws IOException
+     *          for I/O problems
+     */
+    synchronized void add(long begin, Tracking.Data fixes) throws IOException {
+        if (!indexed.add(begin))
+            return;
+        List<Visit> added = new ArrayList<>();
+        Visit visit = null;
+        for (int i=0; fixes!=null && i<fixes.size(); i++) {
+            long cell = cell(fixes.getLatitude(i), fixes.getLongitude(i));
+            long time = fixes.getTime(i);
+            if (visit!=null && visit.cell==cell)
+                visit.to = time;
+            else {
+                visit = new Visit(cell, begin, time, time);
+                added.add(visit);
+            }
+        }
+
+        ByteBuffer b = ByteBuffer.allocate((added.size() + 1) * RECORD_SIZE);
+        for (Visit v : added)
+            b.putLong(v.cell).putLong(v.begin).putLong(v.from).putLong(v.to);
+        b.putLong(NO_CELL).putLong(begin).putLong(0).putLong(0);
+        b.flip();
+        long position = channel.size();
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+        channel.force(false);
+
+        int n = visits.length;
+        visits = Arrays.copyOf(visits, n + added.size());
+        for (Visit v : added)
+            visits[n++] = v;
+        Arrays.sort(visits, BY_CELL);
+    }
+
+    /**
+     * Remove the visits of a recording, rewriting the index
+     *
+     * @param begin
+     *              the begin time of the recording
+     * @throws IOException
+     *          for I/O problems
+     */
+    synchronized void remove(long begin) throws IOException {
+        if (!indexed.remove(begin))
+            return;
+        int n = 0;
+        for (Visit v : visits)
+            if (v.begin!=begin)
+                n++;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel c = out.getChannel();
+            ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + (n + indexed.size()) * RECORD_SIZE);
+            b.putInt(MAGIC).putInt(VERSION);
+            for (Visit v : visits)
+                if (v.begin!=begin)
+                    b.putLong(v.cell).putLong(v.begin).putLong(v.from).putLong(v.to);
+            for (long i : indexed)
+                b.putLong(NO_CELL).putLong(i).putLong(0).putLong(0);
+            b.flip();
+            while (b.hasRemaining())
+                c.write(b);
+            c.force(true);
+        } finally {
+            out.close();
+        }
+        close();
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        init();
+    }
+
+    /**
+     * Find the recordings that may have passed within a distance of a place
+     *
+     * @param lat
+     *              the latitude of the place
+     * @param lng
+     *              the longitude of the place
+     * @param radius
+     *              the distance in meters
+     * @return
+     *          the candidate time windows, by recording and time
+     */
+    public synchronized List<Visit> query(double lat, double lng, double radius) {
+        double dLat = radius / METERS_PER_DEGREE;
+        double dLng = radius / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 1e-6));
+        int y0 = y(lat - dLat), y1 = y(lat + dLat);
+        long x0 = (long) Math.floor((lng - dLng + 180) / 360 * SIDE);
+        long x1 = (long) Math.floor((lng + dLng + 180) / 360 * SIDE);
+
+        List<Visit> found = new ArrayList<>();
+        if ((x1 - x0 + 1) * (y1 - y0 + 1)>MAX_QUERY_CELLS) {
+            for (Visit v : visits)
+                if (near(v.cell, lat, lng, radius))
+                    found.add(v);
+        } else {
+            for (long x=x0; x<=x1; x++) {
+                int wx = (int) (((x % SIDE) + SIDE) % SIDE);
+                for (int y=y0; y<=y1; y++) {
+                    long cell = interleave(wx, y);
+                    if (near(cell, lat, lng, radius))
+                        collect(cell, found);
+                }
+            }
+        }
+        return merge(found);
+    }
+
+    /** Add the visits of a cell */
+    private void collect(long cell, List<Visit> found) {
+        int lo = 0, hi = visits.length;
+        while (lo<hi) {
+            int mid = (lo + hi) >>> 1;
+            if (visits[mid].cell<cell)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i=lo; i<visits.length && visits[i].cell==cell; i++)
+            found.add(visits[i]);
+    }
+
+    /** Join the close visits of each recording in windows */
+    private static List<Visit> merge(List<Visit> found) {
+        Collections.sort(found, BY_TIME);
+        List<Visit> ret = new ArrayList<>();
+        Visit window = null;
+        for (Visit v : found) {
+            if (window!=null && window.begin==v.begin && v.from - window.to<=WINDOW_GAP)
+                window.to = Math.max(window.to, v.to);
+            else {
+                window = new Visit(0, v.begin, v.from, v.to);
+                ret.add(window);
+            }
+        }
+        return ret;
+    }
+
+    /** True if a cell is within a distance of a place */
+    private static boolean near(long cell, double lat, double lng, double radius) {
+        int x = 0, y = 0;
+        for (int i=0; i<BITS/2; i++) {
+            x |= (int) ((cell >>> (2 * i + 1)) & 1) << i;
+            y |= (int) ((cell >>> (2 * i)) & 1) << i;
+        }
+        double south = y * 180.0 / SIDE - 90, north = (y + 1) * 180.0 / SIDE - 90;
+        double west = x * 360.0 / SIDE - 180, east = (x + 1) * 360.0 / SIDE - 180;
+        // also across the antimeridian
+        double dLng = Math.min(gap(lng, west, east),
+                Math.min(gap(lng + 360, west, east), gap(lng - 360, west, east)));
+        double nearLat = Math.max(south, Math.min(north, lat));
+        return distance(lat, lng, nearLat, lng + dLng)<=radius;
+    }
+
+    /** Distance of a coordinate from a range */
+    private static double gap(double v, double min, double max) {
+        return v<min ? min - v : v>max ? v - max : 0;
+    }
+
+    /**
+     * Cell of a position
+     *
+     * @param lat
+     *              the latitude
+     * @param lng
+     *              the longitude
+     * @return
+     *          the code of the cell
+     */
+    static long cell(double lat, double lng) {
+        int x = (int) Math.floor((lng + 180) / 360 * SIDE);
+        return interleave(Math.max(0, Math.min(SIDE - 1, x)), y(lat));
+    }
+
+    private static int y(double lat) {
+        int y = (int) Math.floor((lat + 90) / 180 * SIDE);
+        return Math.max(0, Math.min(SIDE - 1, y));
+    }
+
+    private static long interleave(int x, int y) {
+        long ret = 0;
+        for (int i=0; i<BITS/2; i++) {
+            ret |= (long) ((x >>> i) & 1) << (2 * i + 1);
+            ret |= (long) ((y >>> i) & 1) << (2 * i);
+        }
+        return ret;
+    }
+
+    /**
+     * Great circle distance
+     *
+     * @return
+     *          the distance in meters
+     */
+    static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double p1 = Math.toRadians(lat1), p2 = Math.toRadians(lat2);
+        double sLat = Math.sin((p2 - p1) / 2);
+        double sLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double a = sLat * sLat + Math.cos(p1) * Math.cos(p2) * sLng * sLng;
+        return 2 * 6378137 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    synchronized void close() throws IOException {
+        raf.close();
+    }
+
+}
@@ -0,0 +1,165 @@
+package au.com.smarttrace.beacons.tracker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Summary statistics of the samples of a device key, computed when a recording is stored and
+ * kept in its {@link Recording.Header}, so that the list of the recordings can show them without
+ * loading the samples.
+ *
+ * <p>
+ * A numeric key has its minimum, maximum and mean; a value holds until the next sample, but not
+ * longer than {@link Aggregation.OutOfRange#MAX_HOLD}, so the mean is weighted by time. The time
+ * above a threshold is computed only for the keys with a threshold. A location key has the
+ * distance travelled, counting only the moves longer than the accuracy of the fixes.
+ */
+public class Summary {
+
+    final String deviceId;
+    final String key;
+    int count;
+    float min = Float.NaN, max = Float.NaN, mean = Float.NaN;
+    /** Time above the threshold in ms, -1 if no threshold */
+    long timeAbove = -1;
+    /** Distance travelled in meters, NaN if not a location */
+    float distance = Float.NaN;
+
+    Summary(String deviceId, String key) {
+        this.deviceId = deviceId;
+        this.key = key;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public long getTimeAbove() {
+        return timeAbove;
+    }
+
+    public float getDistance() {
+        return distance;
+    }
+
+    /**
+     * Summarize all the series of a recording, a single pass on each
+     *
+     * @param recording
+     *              the recording
+     * @param thresholds
+     *              the thresholds of the time above, by key
+     * @return
+     *          the summaries
+     */
+    static List<Summary> of(Recording recording, Map<String, Float> thresholds) {
+        List<Summary> ret = new ArrayList<>();
+        for (String id : recording.getDeviceIds()) {
+            Tracking t = recording.getTracking(id);
+            for (String key : t.getKeys()) {
+                Summary s = new Summary(id, key);
+                Tracking.Data data = t.getSamples(key);
+                s.count = data.size();
+                if (data.isNumeric())
+                    s.numeric(data, thresholds.get(key));
+                else if (data.data instanceof Column.Locations)
+                    s.locations(data);
+                ret.add(s);
+            }
+        }
+        return ret;
+    }
+
+    private void numeric(Tracking.Data data, Float threshold) {
+        if (data.size()==0)
+            return;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        if (threshold!=null)
+            timeAbove = 0;
+        double sum = 0, weighted = 0;
+        long duration = 0;
+        for (int i=0; i<data.size(); i++) {
+            float v = data.getFloat(i);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            if (i+1<data.size()) {
+                long hold = Math.min(data.getTime(i+1) - data.getTime(i),
+                        Aggregation.OutOfRange.MAX_HOLD);
+                weighted += v * (double) hold;
+                duration += hold;
+                if (threshold!=null && v>threshold)
+                    timeAbove += hold;
+            }
+        }
+        mean = (float) (duration>0 ? weighted / duration : sum / data.size());
+    }
+
+    private void locations(Tracking.Data data) {
+        double d = 0;
+        int anchor = 0;
+        for (int i=1; i<data.size(); i++) {
+            double step = SpatialIndex.distance(data.getLatitude(anchor), data.getLongitude(anchor),
+                    data.getLatitude(i), data.getLongitude(i));
+            if (step>Math.max(data.getAccuracy(anchor), data.getAccuracy(i))) {
+                d += step;
+                anchor = i;
+            }
+        }
+        distance = (float) d;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(deviceId);
+        out.writeUTF(key);
+        out.writeInt(count);
+        out.writeFloat(min);
+        out.writeFloat(max);
+        out.writeFloat(mean);
+        out.writeLong(timeAbove);
+        out.writeFloat(distance);
+    }
+
+    static Summary read(DataInput in) throws IOException {
+        Summary ret = new Summary(in.readUTF(), in.readUTF());
+        ret.count = in.readInt();
+        ret.min = in.readFloat();
+        ret.max = in.readFloat();
+        ret.mean = in.readFloat();
+        ret.timeAbove = in.readLong();
+        ret.distance = in.readFloat();
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return deviceId + "/" + key + ": " + count + " samples";
+    }
+
+}
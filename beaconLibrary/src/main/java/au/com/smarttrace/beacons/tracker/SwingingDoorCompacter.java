@@ -0,0 +1,108 @@
+package au.com.smarttrace.beacons.tracker;
+
+/**
+ * <p>
+ * Swinging door compression of a numeric series: the samples between two stored ones are
+ * dropped as long as the segment joining the stored ones passes within the error of all of
+ * them, so that a linear interpolation reconstructs the signal within the error.
+ *
+ * <p>
+ * The segment starts at the last stored sample (the pivot); each sample narrows the range of
+ * slopes (the doors) that keep it within the error. A new sample extends the segment only if
+ * its slope is still inside the doors, otherwise the previous sample is stored as the new pivot.
+ * A sample is stored anyway after {@link #TIME_THRESHOLD}, like the other compacters do.
+ *
+ * <p>
+ * The error is configured for a key with a <code>compacter_&lt;key&gt;_error</code> string
+ * resource, and defaults to {@link #ERROR}.
+ */
+public class SwingingDoorCompacter implements FloatSegmentCompacter {
+
+    public final static float ERROR = 0.05f;
+
+    public final static long TIME_THRESHOLD = 5 * 60000l;
+
+    private float error = ERROR;
+
+    private long pivotTime;
+    private float pivot;
+    /** Range of the slopes from the pivot that keep all the samples within the error */
+    private double lower, upper;
+    private long lastTime;
+    private float last;
+    private boolean started, hasLast;
+
+    public float getError() {
+        return error;
+    }
+
+    public void setError(float error) {
+        this.error = error;
+    }
+
+    @Override
+    public boolean wouldReplace(long time, Float o) {
+        return wouldReplace(time, o.floatValue());
+    }
+
+    @Override
+    public boolean wouldReplace(long time, float v) {
+        if (!hasLast || time - pivotTime>TIME_THRESHOLD)
+            return false;
+        double slope = (v - pivot) / (double) (time - pivotTime);
+        return slope>=lower && slope<=upper;
+    }
+
+    @Override
+    public void commit(long time, Float o, boolean replaced) {
+        commit(time, o.floatValue(), replaced);
+    }
+
+    @Override
+    public void commit(long time, float v, boolean replaced) {
+        if (!started) {
+            started = true;
+            moveTo(time, v);
+            return;
+        }
+        // the last sample is kept: the new segment starts there
+        if (!replaced && hasLast)
+            moveTo(lastTime, last);
+        narrow(time, v);
+        lastTime = time;
+        last = v;
+        hasLast = true;
+    }
+
+    /** Start a new segment */
+    private void moveTo(long time, float v) {
+        pivotTime = time;
+        pivot = v;
+        lower = Double.NEGATIVE_INFINITY;
+        upper = Double.POSITIVE_INFINITY;
+        hasLast = false;
+    }
+
+    /** Close the doors on a sample */
+    private void narrow(long time, float v) {
+        double dt = time - pivotTime;
+        lower = Math.max(lower, (v - error - pivot) / dt);
+        upper = Math.min(upper, (v + error - pivot) / dt);
+    }
+
+    @Override
+    public boolean inThreshold(float v1, float v2) {
+        return Math.abs(v1-v2) <= error;
+    }
+
+    @Override
+    public boolean inThreshold(Float o1, Float o2) {
+        return inThreshold(o1.floatValue(), o2.floatValue());
+    }
+
+    @Override
+    public boolean isTime(long previous, long actual) {
+        return actual - previous > TIME_THRESHOLD;
+    }
+
+}
@@ -5,13 +5,16 @@ import android.content.Context;
 import android.location.Location;
 import android.util.Log;
 
+import com.google.gson.annotations.JsonAdapter;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import au.com.smarttrace.beacons.gps.GPSDevice;
@@ -19,6 +22,7 @@ import au.com.smarttrace.beacons.gps.GPSDevice;
 /**
  *
  */
+@JsonAdapter(TrackingAdapter.Factory.class)
 public class Tracking {
 
     public static class Sample<T> {
@@ -32,93 +36,621 @@ public class Tracking {
     }
 
     /**
+     * Samples of a single key: a sorted timeline with the values stored in a primitive column.
+     * A query returns a read-only view on a range of the same storage, without copying it.
      *
      * @param <T>
      */
+    @JsonAdapter(TrackingDataAdapter.Factory.class)
     public static class Data<T> implements Iterable<Sample<T>> {
-        List<Long> timeline;
-        List<T> data;
+
+        final static int INITIAL_CAPACITY = 16;
+
+        long[] timeline;
+        Column<T> data;
+        /** Index of the first sample in the storage, not 0 only for views */
+        int offset;
+        int size;
+
         public int size() {
-            return data.size();
+            return size;
+        }
+        /** Estimated heap size, in bytes */
+        long estimateBytes() {
+            return 8L * timeline.length + data.estimateBytes();
         }
         public Data() {
-            timeline = new ArrayList<>();
-            data = new ArrayList<>();
+            this(null, INITIAL_CAPACITY);
+        }
+        Data(Class<T> dataClass, int capacity) {
+            capacity = Math.max(capacity, 1);
+            timeline = new long[capacity];
+            data = Column.forClass(dataClass, capacity);
+        }
+        /** View on a range of another data */
+        private Data(Data<T> source, int from, int to) {
+            timeline = source.timeline;
+            data = source.data;
+            offset = source.offset + from;
+            size = to - from;
         }
+        @SuppressWarnings("unchecked")
         public Data(List<Long> t, List<T> s) {
-            timeline = t;
-            data = s;
+            this(s.isEmpty() || s.get(0)==null ? null : (Class<T>) s.get(0).getClass(), t.size());
+            for (int i=0; i<t.size(); i++)
+                data.set(open(i, t.get(i)), s.get(i));
+        }
+
+        /**
+         * Make room for a new sample in the timeline, keeping the column aligned
+         *
+         * @param index
+         *              the insertion point
+         * @param time
+         *              the time of the new sample
+         * @return
+         *          the index, where the value must be set in the column
+         */
+        int open(int index, long time) {
+            ensureCapacity(size + 1);
+            if (index<size) {
+                System.arraycopy(timeline, index, timeline, index+1, size-index);
+                data.shift(index, size);
+            }
+            timeline[index] = time;
+            size++;
+            return index;
+        }
+
+        /** Grow the storage, if needed, to hold a number of samples */
+        void ensureCapacity(int capacity) {
+            if (capacity>timeline.length) {
+                capacity = Math.max(capacity, timeline.length + (timeline.length >> 1) + 1);
+                timeline = Arrays.copyOf(timeline, capacity);
+                data.grow(capacity);
+            }
+        }
+
+        /** Insertion point of a time in the timeline, or -1 if already present */
+        int search(long time) {
+            int index = Arrays.binarySearch(timeline, 0, size, time);
+            return index<0 ? -index-1 : -1;
+        }
+
+        private int check(int i) {
+            if (i<0 || i>=size)
+                throw new IndexOutOfBoundsException("Index: "+i+", Size: "+size);
+            return offset + i;
+        }
+
+        /**
+         * First sample at or after a time
+         *
+         * @param time
+         *              the time in ms
+         * @return
+         *          the index of the sample, or {@link #size()} if all the samples are before
+         */
+        public int indexOf(long time) {
+            int lo = offset, hi = offset + size;
+            while (lo<hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timeline[mid]<time)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo - offset;
+        }
+
+        /**
+         * View of the samples in a time range, sharing the storage of this data
+         *
+         * @param from
+         *              the begin of the range in ms, inclusive
+         * @param to
+         *              the end of the range in ms, inclusive
+         * @return
+         *          the read-only view
+         */
+        public Data<T> range(long from, long to) {
+            int i = indexOf(from);
+            int j = to==Long.MAX_VALUE ? size : indexOf(to + 1);
+            return subData(i, Math.max(i, j));
+        }
+
+        /**
+         * View of the samples in a range of indexes, sharing the storage of this data
+         *
+         * @param from
+         *              the first index, inclusive
+         * @param to
+         *              the last index, exclusive
+         * @return
+         *          the read-only view
+         */
+        public Data<T> subData(int from, int to) {
+            if (from<0 || to>size || from>to)
+                throw new IndexOutOfBoundsException("Range: "+from+"-"+to+", Size: "+size);
+            return new Data<>(this, from, to);
+        }
+
+        /**
+         * Copy of the samples, not sharing the storage: a stable snapshot of the samples of an
+         * active recording, that are still added, replaced and merged by the writer
+         *
+         * @return
+         *          the copy
+         */
+        @SuppressWarnings("unchecked")
+        public Data<T> copy() {
+            long[] t = timeline;
+            int n = Math.min(size, t.length - offset);
+            Data<T> ret = new Data<>((Class<T>) data.getDataClass(), n);
+            System.arraycopy(t, offset, ret.timeline, 0, n);
+            for (int i=0; i<n; i++)
+                ret.data.copy(data, offset + i, i);
+            ret.size = n;
+            return ret;
         }
 
         public T get(int i) {
-            return data.get(i);
+            return data.get(check(i));
+        }
+
+        public long getTime(int i) {
+            return timeline[check(i)];
         }
 
         public Date getDate(int i) {
-            return new Date(timeline.get(i));
+            return new Date(getTime(i));
+        }
+
+        /** True if the values can be read with {@link #getFloat(int)} and {@link #getInt(int)} */
+        public boolean isNumeric() {
+            return data.isNumeric();
+        }
+
+        public float getFloat(int i) {
+            return data.getFloat(check(i));
+        }
+
+        public int getInt(int i) {
+            return data.getInt(check(i));
+        }
+
+        public double getLatitude(int i) {
+            return data.getLatitude(check(i));
+        }
+
+        public double getLongitude(int i) {
+            return data.getLongitude(check(i));
+        }
+
+        public float getAccuracy(int i) {
+            return data.getAccuracy(check(i));
         }
 
         @Override
         public String toString() {
-            return data.toString();
+            StringBuilder sb = new StringBuilder("[");
+            for (int i=0; i<size; i++) {
+                if (i>0)
+                    sb.append(", ");
+                sb.append(data.get(offset + i));
+            }
+            return sb.append(']').toString();
         }
 
         @Override
         public Iterator<Sample<T>> iterator() {
             return new Iterator<Sample<T>>() {
-                Iterator<Long> i1 = timeline.iterator();
-                Iterator<T> i2 = data.iterator();
+                int i;
                 @Override
                 public boolean hasNext() {
-                    return i1.hasNext();
+                    return i<size;
                 }
                 @Override
                 public Sample<T> next() {
-                    return new Sample<>(i1.next(), i2.next());
+                    if (i>=size)
+                        throw new NoSuchElementException();
+                    Sample<T> s = new Sample<>(timeline[offset + i], data.get(offset + i));
+                    i++;
+                    return s;
+                }
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
                 }
             };
         }
     }
 
-    /** Internal data */
+    /**
+     * Internal data: the values of a key, with the compacter that decides which ones are kept.
+     * The timeline is managed by the {@link Records} of the component, and may be shared with
+     * other keys sampled together.
+     */
     private class TrackingComponent<T> extends Data<T>{
-        transient Class<T> dataClass;
         transient TrackingCompacter<T> compacter;
+        /** The compacter, when it can be called with the primitive values of the column */
+        transient FloatCompacter floatCompacter;
+        transient IntegerCompacter intCompacter;
+        transient GeoCompacter geoCompacter;
+        transient FloatSegmentCompacter floatSegmentCompacter;
+        transient String key;
+        /** Index of the key in the recording log, -1 if not declared yet */
+        transient int logKey = -1;
+        /** Late values, aligned with the staged times of the records */
+        transient Column<T> staged;
+        /** Number of samples received, kept or not */
+        transient int received;
+        transient Records records;
         TrackingComponent() {}
         TrackingComponent(String key, Class<T> dataClass) {
-            this.dataClass = dataClass;
+            super(dataClass, INITIAL_CAPACITY);
+            this.key = key;
             if (context!=null)
-                compacter = dataClass==GPSDevice.Sample.class
+                setCompacter(dataClass==GPSDevice.Sample.class && GPSDevice.KEY_LOCATION.equals(key)
                         ? (TrackingCompacter<T>) GPSDevice.COMPACTER
-                        : TrackingCompacterFactory.getInstance().getCompacter(context, key, dataClass);
-        }
-        public boolean add(long time, T o) {
-            int index = Collections.binarySearch(timeline, time);
-            if (index<0) {
-                if (index==-1) {
-                    data.add(0, o);
-                    timeline.add(0, time);
-                    return true;
-                } else {
-                    T prev = data.get(-index-2);
-                    long t = timeline.get(-index-2);
-                    if (compacter==null || !compacter.inThreshold(o, prev) || compacter.isTime(t, time)) {
-                        data.add(o);
-                        timeline.add(time);
-                        return true;
-                    }
+                        : TrackingCompacterFactory.getInstance().getCompacter(context, key, dataClass));
+            records = new Records(this);
+        }
+
+        void setCompacter(TrackingCompacter<T> compacter) {
+            Class<?> dataClass = data.getDataClass();
+            this.compacter = compacter;
+            floatCompacter = dataClass==Float.class && compacter instanceof FloatCompacter
+                    ? (FloatCompacter) compacter : null;
+            floatSegmentCompacter = dataClass==Float.class && compacter instanceof FloatSegmentCompacter
+                    ? (FloatSegmentCompacter) compacter : null;
+            intCompacter = dataClass==Integer.class && compacter instanceof IntegerCompacter
+                    ? (IntegerCompacter) compacter : null;
+            geoCompacter = dataClass==GPSDevice.Sample.class && compacter instanceof GeoCompacter
+                    ? (GeoCompacter) compacter : null;
+        }
+
+        /** Check the compacter on a value against a previous one, without boxing if possible */
+        private boolean isDistinct(Column<T> c, int i, long time, Column<T> previous, int p, long previousTime) {
+            if (compacter==null || compacter.isTime(previousTime, time))
+                return true;
+            if (floatCompacter!=null)
+                return !floatCompacter.inThreshold(c.getFloat(i), previous.getFloat(p));
+            if (intCompacter!=null)
+                return !intCompacter.inThreshold(c.getInt(i), previous.getInt(p));
+            if (geoCompacter!=null)
+                return !geoCompacter.inThreshold(c.getLatitude(i), c.getLongitude(i),
+                        previous.getLatitude(p), previous.getLongitude(p));
+            return !compacter.inThreshold(c.get(i), previous.get(p));
+        }
+
+        /** True if the new value, in the free slot after the last one, is not needed */
+        private boolean canDrop(long time) {
+            return size>0 && !(compacter instanceof SegmentCompacter)
+                    && !isDistinct(data, size, time, data, size-1, timeline[size-1]);
+        }
+
+        /**
+         * True if the new value can replace the last one, without changing the state of the
+         * compacter. A segment compacter decides by itself; with another compacter the last
+         * value must be redundant, and so the new one.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean canReplace(long time) {
+            if (floatSegmentCompacter!=null)
+                return floatSegmentCompacter.wouldReplace(time, data.getFloat(size));
+            if (compacter instanceof SegmentCompacter)
+                return ((SegmentCompacter<T>) compacter).wouldReplace(time, data.get(size));
+            return size>1
+                    && !isDistinct(data, size, time, data, size-2, timeline[size-2])
+                    && !isDistinct(data, size-1, time, data, size-2, timeline[size-2]);
+        }
+
+        /** Tell a segment compacter whether the new value replaced the last one */
+        @SuppressWarnings("unchecked")
+        private void offer(long time, boolean replaced) {
+            if (floatSegmentCompacter!=null)
+                floatSegmentCompacter.commit(time, data.getFloat(size), replaced);
+            else if (compacter instanceof SegmentCompacter)
+                ((SegmentCompacter<T>) compacter).commit(time, data.get(size), replaced);
+        }
+
+        /** Key of this component in the recording log, declared on the first sample */
+        private int logKey(RecordingLog log) {
+            if (logKey<0)
+                logKey = log.declare(deviceId, key, data.getDataClass());
+            return logKey;
+        }
+
+        /** Append a sample, of the timeline or staged, to the recording log */
+        private void journal(Column<T> c, int i, long time) {
+            Class<?> dataClass = c.getDataClass();
+            if (dataClass==Float.class)
+                log.append(logKey(log), time, c.getFloat(i));
+            else if (dataClass==Integer.class)
+                log.append(logKey(log), time, c.getInt(i));
+            else if (dataClass==GPSDevice.Sample.class)
+                log.append(logKey(log), time, c.getLatitude(i), c.getLongitude(i), c.getAccuracy(i));
+            else
+                log.append(logKey(log), time, c.get(i));
+        }
+
+        /** Ratio between the samples received and the ones kept */
+        float getCompressionRatio() {
+            return size==0 ? 1 : (float) received / size;
+        }
+
+        @Override
+        long estimateBytes() {
+            // a shared timeline is counted once
+            long ret = records.members[0]==this ? 8L * timeline.length : 0;
+            if (staged!=null)
+                ret += (records.members[0]==this ? 8L * STAGING_CAPACITY : 0) + staged.estimateBytes();
+            return ret + data.estimateBytes();
+        }
+    }
+
+    /**
+     * <p>
+     * The timeline of one or more components, that are sampled together and store a value for
+     * every record.
+     *
+     * <p>
+     * A record is written in the free slot after the last one, then the compacters of all the
+     * components vote: the record is dropped if no component needs it, replaces the last record
+     * if all agree (with a {@link SegmentCompacter}), or is appended. The segment compacters are
+     * told the outcome only once the vote is over, so that their state follows the records
+     * actually kept. The last record is journaled only when it cannot be replaced anymore.
+     *
+     * <p>
+     * Records older than the last one (backfill, delayed notifications) wait in a small staging
+     * buffer instead of the timeline: they are merged in a single pass by the writer, when the
+     * buffer is full or when the tracking is flushed, and only the ones accepted are journaled
+     * then, so that the log replays the same records. The readers never merge, and see only the
+     * merged records.
+     */
+    private class Records {
+        final TrackingComponent[] members;
+        /** True if the last record may be replaced: all the components are compacted, one with segments */
+        final boolean replaceable;
+        /** Late records, in order of arrival */
+        long[] stagedTimes;
+        int stagedSize;
+        /** True if the last record may still be replaced, and is not journaled yet */
+        boolean provisional;
+        /** Index of the record being written, in the timeline or in the staging buffer */
+        int slot;
+        boolean late;
+
+        @SuppressWarnings("unchecked")
+        Records(TrackingComponent... members) {
+            this.members = members;
+            boolean compacted = true, segments = false;
+            for (TrackingComponent c : members) {
+                compacted &= c.compacter!=null;
+                segments |= c.compacter instanceof SegmentCompacter;
+                c.records = this;
+                c.timeline = members[0].timeline;
+                c.data.grow(c.timeline.length);
+            }
+            replaceable = compacted && segments;
+        }
+
+        /** Give a component its own timeline, before writing it alone */
+        @SuppressWarnings("unchecked")
+        void detach(TrackingComponent c) {
+            merge();
+            List<TrackingComponent> others = new ArrayList<>(Arrays.asList(members));
+            others.remove(c);
+            Records r = new Records(others.toArray(new TrackingComponent[others.size()]));
+            r.provisional = provisional;
+            c.timeline = Arrays.copyOf(c.timeline, c.timeline.length);
+            new Records(c).provisional = provisional;
+        }
+
+        @SuppressWarnings("unchecked")
+        void ensureCapacity(int capacity) {
+            long[] timeline = members[0].timeline;
+            if (capacity>timeline.length) {
+                capacity = Math.max(capacity, timeline.length + (timeline.length >> 1) + 1);
+                timeline = Arrays.copyOf(timeline, capacity);
+                for (TrackingComponent c : members) {
+                    c.timeline = timeline;
+                    c.data.grow(capacity);
                 }
             }
-            return false;
+        }
+
+        /**
+         * Start a record, choosing the slot of its values
+         *
+         * @param time
+         *              the time of the record
+         * @return
+         *          false if there is already a record at the same time as the last one
+         */
+        @SuppressWarnings("unchecked")
+        boolean start(long time) {
+            TrackingComponent first = members[0];
+            int size = first.size;
+            late = size>0 && time<first.timeline[size-1];
+            if (late) {
+                if (stagedTimes==null)
+                    stagedTimes = new long[STAGING_CAPACITY];
+                if (stagedSize==STAGING_CAPACITY)
+                    merge();
+                for (TrackingComponent c : members)
+                    if (c.staged==null)
+                        c.staged = Column.forClass(c.data.getDataClass(), STAGING_CAPACITY);
+                stagedTimes[stagedSize] = time;
+                slot = stagedSize;
+                return true;
+            }
+            if (size>0 && time==first.timeline[size-1])
+                return false;
+            ensureCapacity(size + 1);
+            first.timeline[size] = time;
+            slot = size;
+            return true;
+        }
+
+        /** Column where the value of a component must be set, at {@link #slot} */
+        Column column(TrackingComponent c) {
+            return late ? c.staged : c.data;
+        }
+
+        /**
+         * Complete a record, once all its values are set
+         *
+         * @return
+         *          true if the record was actually added (or staged)
+         */
+        @SuppressWarnings("unchecked")
+        boolean commit() {
+            for (TrackingComponent c : members)
+                c.received++;
+            if (late) {
+                // journaled once merged, if accepted
+                stagedSize++;
+                return true;
+            }
+            TrackingComponent first = members[0];
+            int size = first.size;
+            long time = first.timeline[size];
+            boolean drop = size>0, replace = replaceable && size>0;
+            for (TrackingComponent c : members) {
+                drop &= c.canDrop(time);
+                replace = replace && c.canReplace(time);
+            }
+            if (drop)
+                return false;
+            // all the segment compacters follow the decision of the group
+            if (replaceable)
+                for (TrackingComponent c : members)
+                    c.offer(time, replace);
+            if (replace) {
+                first.timeline[size-1] = time;
+                for (TrackingComponent c : members)
+                    c.data.copy(c.data, size, size-1);
+                return true;
+            }
+            seal();
+            for (TrackingComponent c : members)
+                c.size++;
+            if (replaceable)
+                provisional = true;
+            else
+                journal(size);
+            return true;
+        }
+
+        /** Journal a record */
+        @SuppressWarnings("unchecked")
+        void journal(int i) {
+            if (log!=null)
+                for (TrackingComponent c : members)
+                    c.journal(c.data, i, members[0].timeline[i]);
+        }
+
+        /** Journal the provisional last record, that is not going to be replaced */
+        void seal() {
+            if (provisional)
+                journal(members[0].size-1);
+            provisional = false;
+        }
+
+        /**
+         * Merge the staged records in the timeline, on the writer side. Each one is checked by the
+         * compacters against the record that actually precedes it, and the ones already present
+         * are dropped; the accepted ones are then moved in place from the end, so that every
+         * record of the timeline is shifted at most once. Only the accepted ones are journaled.
+         */
+        @SuppressWarnings("unchecked")
+        void merge() {
+            int n = stagedSize;
+            if (n==0)
+                return;
+            TrackingComponent first = members[0];
+
+            // order of arrival is kept for records of the same time
+            int[] order = new int[n];
+            for (int i=0; i<n; i++) {
+                int j = i;
+                while (j>0 && stagedTimes[order[j-1]]>stagedTimes[i]) {
+                    order[j] = order[j-1];
+                    j--;
+                }
+                order[j] = i;
+            }
+
+            // choose the accepted records, and their insertion points
+            int[] accepted = new int[n];
+            int[] index = new int[n];
+            int m = 0;
+            for (int k=0; k<n; k++) {
+                int i = order[k];
+                long time = stagedTimes[i];
+                int at = first.search(time);
+                if (at<0 || m>0 && stagedTimes[accepted[m-1]]==time)
+                    continue;
+                boolean afterStaged = m>0 && index[m-1]==at;
+                if (afterStaged || at>0) {
+                    boolean distinct = false;
+                    for (TrackingComponent c : members)
+                        distinct |= afterStaged
+                                ? c.isDistinct(c.staged, i, time, c.staged, accepted[m-1], stagedTimes[accepted[m-1]])
+                                : c.isDistinct(c.staged, i, time, c.data, at-1, first.timeline[at-1]);
+                    if (!distinct)
+                        continue;
+                }
+                accepted[m] = i;
+                index[m++] = at;
+                if (log!=null)
+                    for (TrackingComponent c : members)
+                        c.journal(c.staged, i, time);
+            }
+
+            // merge backwards in place
+            int size = first.size;
+            ensureCapacity(size + m);
+            long[] timeline = first.timeline;
+            int r = size - 1;
+            int w = size + m - 1;
+            for (int k=m-1; k>=0; k--) {
+                for (; r>=index[k]; r--, w--) {
+                    timeline[w] = timeline[r];
+                    for (TrackingComponent c : members)
+                        c.data.copy(c.data, r, w);
+                }
+                timeline[w] = stagedTimes[accepted[k]];
+                for (TrackingComponent c : members)
+                    c.data.copy(c.staged, accepted[k], w);
+                index[k] = w--;
+            }
+            for (TrackingComponent c : members) {
+                c.size += m;
+                if (c.staged instanceof Column.Objects)
+                    Arrays.fill(((Column.Objects) c.staged).values, 0, n, null);
+            }
+            stagedSize = 0;
         }
     }
 
+    /** Maximum number of late samples of a key waiting to be merged */
+    final static int STAGING_CAPACITY = 256;
+
     /** Exposed data */
     private Map<String, Data> components;
 
     /** Application context, needed to read resource files */
     private transient Context context;
 
+    /** Log of the active recording, null when not journaled */
+    private transient RecordingLog log;
+
+    /** Identifier of the tracked device, used in the log */
+    private transient String deviceId;
+
     /**
      * Used for serialization purposes
      */
@@ -149,7 +681,8 @@ public class Tracking {
     }
 
     /**
-     * Add a sample, read at a specified time, to this device trackingOn
+     * Add a sample, read at a specified time, to this device trackingOn. A sample older than the
+     * last one is staged, and checked only when merged in the timeline by {@link #flush()}.
      *
      * @param time
      *              the time of the reading
@@ -158,14 +691,181 @@ public class Tracking {
      * @param value
      *              the sample value
      * @return
-     *          true if the data was actually added
+     *          true if the data was actually added (or staged)
      */
     public boolean addSample(long time, String sampleKey, Object value) {
         if (value==null)
             return false;
-        TrackingComponent e = (TrackingComponent) getSamples(sampleKey, value.getClass());
-        Log.i("Tracking", String.format("adding %s=%s", sampleKey, value));
-        return e.add(time, value);
+        TrackingComponent e = getSingle(sampleKey, value.getClass());
+        Records r = e.records;
+        if (!r.start(time))
+            return false;
+        r.column(e).set(r.slot, value);
+        return r.commit();
+    }
+
+    /**
+     * Add a freshly read numeric sample without boxing
+     *
+     * @see #addSample(long, String, float)
+     */
+    public boolean addSample(String sampleKey, float value) {
+        return addSample(System.currentTimeMillis(), sampleKey, value);
+    }
+
+    /**
+     * Add a numeric sample, read at a specified time, to this device tracking
+     *
+     * @param time
+     *              the time of the reading
+     * @param sampleKey
+     *              the sample key
+     * @param value
+     *              the sample value
+     * @return
+     *          true if the data was actually added
+     */
+    public boolean addSample(long time, String sampleKey, float value) {
+        TrackingComponent e = getSingle(sampleKey, Float.class);
+        Records r = e.records;
+        if (!r.start(time))
+            return false;
+        r.column(e).setFloat(r.slot, value);
+        return r.commit();
+    }
+
+    /**
+     * Add a freshly read integer sample without boxing
+     *
+     * @see #addSample(long, String, int)
+     */
+    public boolean addSample(String sampleKey, int value) {
+        return addSample(System.currentTimeMillis(), sampleKey, value);
+    }
+
+    /**
+     * Add an integer sample, read at a specified time, to this device tracking
+     *
+     * @param time
+     *              the time of the reading
+     * @param sampleKey
+     *              the sample key
+     * @param value
+     *              the sample value
+     * @return
+     *          true if the data was actually added
+     */
+    public boolean addSample(long time, String sampleKey, int value) {
+        TrackingComponent e = getSingle(sampleKey, Integer.class);
+        Records r = e.records;
+        if (!r.start(time))
+            return false;
+        r.column(e).setInt(r.slot, value);
+        return r.commit();
+    }
+
+    /**
+     * Add the numeric readings of two keys, sampled together: the keys share the same timeline,
+     * and a record is kept if the compacter of any of them needs it
+     *
+     * @param time
+     *              the time of the reading
+     * @param key1
+     *              the first key
+     * @param value1
+     *              the first value
+     * @param key2
+     *              the second key
+     * @param value2
+     *              the second value
+     * @return
+     *          true if the record was actually added (or staged)
+     */
+    public boolean addRecord(long time, String key1, float value1, String key2, float value2) {
+        Records r = getRecords(key1, Float.class, key2, Float.class, null, null);
+        if (r==null)
+            return addSample(time, key1, value1) | addSample(time, key2, value2);
+        if (!r.start(time))
+            return false;
+        r.column(r.members[0]).setFloat(r.slot, value1);
+        r.column(r.members[1]).setFloat(r.slot, value2);
+        return r.commit();
+    }
+
+    /**
+     * Add the readings of three keys sampled together, the last one an integer
+     *
+     * @see #addRecord(long, String, float, String, float)
+     */
+    public boolean addRecord(long time, String key1, float value1, String key2, float value2,
+                             String key3, int value3) {
+        Records r = getRecords(key1, Float.class, key2, Float.class, key3, Integer.class);
+        if (r==null)
+            return addSample(time, key1, value1) | addSample(time, key2, value2)
+                    | addSample(time, key3, value3);
+        if (!r.start(time))
+            return false;
+        r.column(r.members[0]).setFloat(r.slot, value1);
+        r.column(r.members[1]).setFloat(r.slot, value2);
+        r.column(r.members[2]).setInt(r.slot, value3);
+        return r.commit();
+    }
+
+    /**
+     * Add a location, without creating a sample object
+     *
+     * @param time
+     *              the time of the fix
+     * @param sampleKey
+     *              the sample key
+     * @param lat
+     *              the latitude
+     * @param lng
+     *              the longitude
+     * @param acc
+     *              the accuracy in meters
+     * @return
+     *          true if the location was actually added (or staged)
+     */
+    public boolean addRecord(long time, String sampleKey, double lat, double lng, float acc) {
+        TrackingComponent e = getSingle(sampleKey, GPSDevice.Sample.class);
+        Records r = e.records;
+        if (!r.start(time))
+            return false;
+        r.column(e).setLocation(r.slot, lat, lng, acc);
+        return r.commit();
+    }
+
+    /** The component of a key written alone, with its own timeline */
+    private TrackingComponent getSingle(String sampleKey, Class<?> sampleClass) {
+        TrackingComponent c = (TrackingComponent) getComponent(sampleKey, sampleClass);
+        if (c.records.members.length>1)
+            c.records.detach(c);
+        return c;
+    }
+
+    /**
+     * The records of keys sampled together, sharing their timeline from the first record
+     *
+     * @return
+     *          the records, or null if the keys were already sampled apart
+     */
+    private Records getRecords(String key1, Class<?> class1, String key2, Class<?> class2,
+                               String key3, Class<?> class3) {
+        TrackingComponent c1 = (TrackingComponent) getComponent(key1, class1);
+        int n = key3==null ? 2 : 3;
+        TrackingComponent[] members = c1.records.members;
+        if (members.length==n && members[1].key.equals(key2) && (key3==null || members[2].key.equals(key3)))
+            return c1.records;
+        TrackingComponent c2 = (TrackingComponent) getComponent(key2, class2);
+        TrackingComponent c3 = key3==null ? null : (TrackingComponent) getComponent(key3, class3);
+        if (c1.size>0 || c2.size>0 || c3!=null && c3.size>0)
+            return null;
+        members = c3==null ? new TrackingComponent[] {c1, c2} : new TrackingComponent[] {c1, c2, c3};
+        for (TrackingComponent c : members)
+            if (c.records.members.length>1)
+                c.records.detach(c);
+        return new Records(members);
     }
 
     /** Read only */
@@ -173,6 +873,23 @@ public class Tracking {
         return getSamples(sampleKey, null);
     }
 
+    /**
+     * Query the samples of a key in a time range
+     *
+     * @param sampleKey
+     *              the key of the sample
+     * @param from
+     *              the begin of the range in ms, inclusive
+     * @param to
+     *              the end of the range in ms, inclusive
+     * @return
+     *          a read-only view on the samples, or null if the key is not tracked
+     */
+    public Data getSamples(String sampleKey, long from, long to) {
+        Data c = getSamples(sampleKey);
+        return c==null ? null : c.range(from, to);
+    }
+
     /**
      * Return all the samples for the current device trackingOn
      *
@@ -184,6 +901,11 @@ public class Tracking {
      *          the data
      */
     public <T> Data<T> getSamples(String sampleKey, Class<T> sampleClass) {
+        return getComponent(sampleKey, sampleClass);
+    }
+
+    /** The samples of a key, created if missing */
+    private <T> Data<T> getComponent(String sampleKey, Class<T> sampleClass) {
         Data<T> c = components.get(sampleKey);
         if (c==null && sampleClass!=null) {
             c = new TrackingComponent<>(sampleKey, sampleClass);
@@ -192,6 +914,65 @@ public class Tracking {
         return c;
     }
 
+    /** Merge the late samples of all the keys in their timelines, by the writer */
+    public void flush() {
+        for (Data d : components.values())
+            if (d instanceof TrackingComponent)
+                ((TrackingComponent) d).records.merge();
+    }
+
+    /** Merge and journal all the samples, when the tracking stops */
+    void close() {
+        for (Map.Entry<String, Data> e : components.entrySet())
+            if (e.getValue() instanceof TrackingComponent) {
+                TrackingComponent c = (TrackingComponent) e.getValue();
+                c.records.merge();
+                c.records.seal();
+                Log.i("Tracking", String.format("%s: %d samples, compression %.1f",
+                        e.getKey(), c.size(), c.getCompressionRatio()));
+            }
+    }
+
+    /**
+     * Compression achieved by the compacter of a key
+     *
+     * @param sampleKey
+     *              the key of the sample
+     * @return
+     *          the ratio between the samples received and the ones kept,
+     *          1 for stored recordings
+     */
+    public float getCompressionRatio(String sampleKey) {
+        Data c = getSamples(sampleKey);
+        return c instanceof TrackingComponent ? ((TrackingComponent) c).getCompressionRatio() : 1;
+    }
+
+    /**
+     * Journal the samples added from now on
+     *
+     * @param log
+     *              the log of the active recording
+     * @param deviceId
+     *              the identifier of the tracked device
+     */
+    void setLog(RecordingLog log, String deviceId) {
+        this.log = log;
+        this.deviceId = deviceId;
+    }
+
+    /** Set the compacter of a key, before its first sample */
+    @SuppressWarnings("unchecked")
+    <T> void setCompacter(String sampleKey, Class<T> sampleClass, TrackingCompacter<T> compacter) {
+        TrackingComponent<T> c = (TrackingComponent<T>) getComponent(sampleKey, sampleClass);
+        c.setCompacter(compacter);
+        c.records = new Records(c);
+    }
+
+    /** Used when reading a stored recording */
+    void putSamples(String sampleKey, Data data) {
+        components.put(sampleKey, data);
+    }
+
     public Set<String> getKeys() {
         return components.keySet();
     }
@@ -203,6 +984,14 @@ public class Tracking {
         return ret;
     }
 
+    /** Estimated heap size of the samples, in bytes */
+    long estimateBytes() {
+        long ret = 0;
+        for (Data d : components.values())
+            ret += d.estimateBytes();
+        return ret;
+    }
+
     @Override
     public String toString() {
         return components.toString();
@@ -0,0 +1,75 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streaming Json conversion of {@link Tracking}: <code>{"components":{"key":{...},...}}</code>,
+ * with the components converted by the {@link Tracking.Data} adapter of the Gson instance
+ */
+class TrackingAdapter extends TypeAdapter<Tracking> {
+
+    static class Factory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            return type.getRawType()==Tracking.class
+                    ? (TypeAdapter<T>) new TrackingAdapter(gson.getAdapter(Tracking.Data.class)) : null;
+        }
+    }
+
+    private final TypeAdapter<Tracking.Data> dataAdapter;
+
+    TrackingAdapter(TypeAdapter<Tracking.Data> dataAdapter) {
+        this.dataAdapter = dataAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Tracking t) throws IOException {
+        if (t==null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("components").beginObject();
+        for (String key : t.getKeys()) {
+            out.name(key);
+            dataAdapter.write(out, t.getSamples(key));
+        }
+        out.endObject();
+        out.endObject();
+    }
+
+    @Override
+    public Tracking read(JsonReader in) throws IOException {
+        if (in.peek()==JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Tracking ret = new Tracking();
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("components".equals(in.nextName())) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String key = in.nextName();
+                    Tracking.Data data = dataAdapter.read(in);
+                    if (data!=null)
+                        ret.putSamples(key, data);
+                }
+                in.endObject();
+            } else
+                in.skipValue();
+        }
+        in.endObject();
+        return ret;
+    }
+
+}
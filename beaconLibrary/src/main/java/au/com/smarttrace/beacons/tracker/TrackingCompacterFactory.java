@@ -25,7 +25,11 @@ public class TrackingCompacterFactory {
         if (id!=0)
             try {
                 Log.i("Compacter("+trackingKey+")", "Created: "+context.getResources().getString(id));
-                return (TrackingCompacter<T>) Class.forName(context.getResources().getString(id)).newInstance();
+                TrackingCompacter<T> ret = (TrackingCompacter<T>) Class.forName(context.getResources().getString(id)).newInstance();
+                int error = context.getResources().getIdentifier("compacter_" + trackingKey + "_error", "string", context.getPackageName());
+                if (error!=0 && ret instanceof SwingingDoorCompacter)
+                    ((SwingingDoorCompacter) ret).setError(Float.parseFloat(context.getResources().getString(error)));
+                return ret;
             } catch (Exception e) {
                 Log.e("Compacter("+trackingKey+")", e.toString(), e);
             }
@@ -0,0 +1,209 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+/**
+ * <p>
+ * Streaming Json conversion of {@link Tracking.Data}, reading and writing the primitive columns
+ * directly.
+ *
+ * <p>
+ * The format is <code>{"type":"float","timeline":[...],"data":[...]}</code>, where the type is
+ * one of {@link #TYPE_FLOAT}, {@link #TYPE_INT}, {@link #TYPE_LOCATION} and {@link #TYPE_OBJECT}.
+ * Legacy data has no type: locations are recognized as objects, integers as numbers never written
+ * with a decimal point or an exponent (floats always are).
+ */
+class TrackingDataAdapter extends TypeAdapter<Tracking.Data> {
+
+    final static String TYPE_FLOAT = "float";
+    final static String TYPE_INT = "int";
+    final static String TYPE_LOCATION = "location";
+    final static String TYPE_OBJECT = "object";
+
+    static class Factory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            return Tracking.Data.class.isAssignableFrom(type.getRawType())
+                    ? (TypeAdapter<T>) new TrackingDataAdapter(gson) : null;
+        }
+    }
+
+    private final Gson gson;
+
+    TrackingDataAdapter(Gson gson) {
+        this.gson = gson;
+    }
+
+    static String typeOf(Class<?> dataClass) {
+        return dataClass==Float.class ? TYPE_FLOAT
+                : dataClass==Integer.class ? TYPE_INT
+                : dataClass==GPSDevice.Sample.class ? TYPE_LOCATION
+                : TYPE_OBJECT;
+    }
+
+    static Class<?> classOf(String type) {
+        return TYPE_FLOAT.equals(type) ? Float.class
+                : TYPE_INT.equals(type) ? Integer.class
+                : TYPE_LOCATION.equals(type) ? GPSDevice.Sample.class
+                : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void write(JsonWriter out, Tracking.Data src) throws IOException {
+        if (src==null) {
+            out.nullValue();
+            return;
+        }
+        Column column = src.data;
+        int from = src.offset, to = src.offset + src.size;
+        out.beginObject();
+        out.name("type").value(typeOf(column.getDataClass()));
+        out.name("timeline").beginArray();
+        for (int i=from; i<to; i++)
+            out.value(src.timeline[i]);
+        out.endArray();
+        out.name("data").beginArray();
+        if (column instanceof Column.Floats) {
+            for (int i=from; i<to; i++)
+                out.value(Float.valueOf(column.getFloat(i)));
+        } else if (column instanceof Column.Ints) {
+            for (int i=from; i<to; i++)
+                out.value(column.getInt(i));
+        } else if (column instanceof Column.Locations) {
+            for (int i=from; i<to; i++) {
+                out.beginObject();
+                out.name("lat").value(column.getLatitude(i));
+                out.name("lng").value(column.getLongitude(i));
+                out.name("acc").value(Float.valueOf(column.getAccuracy(i)));
+                out.endObject();
+            }
+        } else {
+            TypeAdapter<Object> objects = gson.getAdapter(Object.class);
+            for (int i=from; i<to; i++)
+                objects.write(out, column.get(i));
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Tracking.Data read(JsonReader in) throws IOException {
+        if (in.peek()==JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Class<?> dataClass = null;
+        long[] timeline = new long[Tracking.Data.INITIAL_CAPACITY];
+        int size = -1;
+        Column column = null;
+        int count = 0;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("type".equals(name))
+                dataClass = classOf(in.nextString());
+            else if ("timeline".equals(name)) {
+                size = 0;
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (size==timeline.length)
+                        timeline = Arrays.copyOf(timeline, size + (size >> 1));
+                    timeline[size++] = in.nextLong();
+                }
+                in.endArray();
+            } else if ("data".equals(name)) {
+                in.beginArray();
+                int capacity = Math.max(size, Tracking.Data.INITIAL_CAPACITY);
+                if (dataClass==null && in.hasNext())
+                    dataClass = in.peek()==JsonToken.BEGIN_OBJECT ? GPSDevice.Sample.class
+                            : in.peek()==JsonToken.NUMBER ? Integer.class
+                            : Object.class;
+                column = Column.forClass(dataClass, capacity);
+                TypeAdapter<Object> objects = column instanceof Column.Objects
+                        ? gson.getAdapter(Object.class) : null;
+                while (in.hasNext()) {
+                    if (count==capacity) {
+                        capacity = count + (count >> 1);
+                        column.grow(capacity);
+                    }
+                    if (column instanceof Column.Locations)
+                        readLocation(in, column, count);
+                    else if (column instanceof Column.Floats)
+                        column.setFloat(count, (float) in.nextDouble());
+                    else if (column instanceof Column.Ints) {
+                        String s = in.nextString();
+                        if (isDecimal(s)) {
+                            // legacy data without type: floats after integer looking values
+                            column = toFloats(column, count, capacity);
+                            column.setFloat(count, Float.parseFloat(s));
+                        } else
+                            column.setInt(count, Integer.parseInt(s));
+                    } else
+                        column.set(count, objects.read(in));
+                    count++;
+                }
+                in.endArray();
+            } else
+                in.skipValue();
+        }
+        in.endObject();
+
+        if (size<0)
+            size = 0;
+        if (count!=size)
+            throw new JsonParseException("Timeline of "+size+" samples with "+count+" values");
+        Tracking.Data ret = new Tracking.Data();
+        ret.timeline = timeline;
+        ret.data = column!=null ? column : Column.forClass(dataClass, ret.timeline.length);
+        ret.data.grow(ret.timeline.length);
+        ret.size = size;
+        return ret;
+    }
+
+    private static void readLocation(JsonReader in, Column column, int i) throws IOException {
+        double lat = 0, lng = 0;
+        float acc = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("lat".equals(name))
+                lat = in.nextDouble();
+            else if ("lng".equals(name))
+                lng = in.nextDouble();
+            else if ("acc".equals(name))
+                acc = (float) in.nextDouble();
+            else
+                in.skipValue();
+        }
+        in.endObject();
+        column.setLocation(i, lat, lng, acc);
+    }
+
+    private static boolean isDecimal(String s) {
+        return s.indexOf('.')>=0 || s.indexOf('e')>=0 || s.indexOf('E')>=0;
+    }
+
+    private static Column toFloats(Column ints, int count, int capacity) {
+        Column ret = Column.forClass(Float.class, capacity);
+        for (int i=0; i<count; i++)
+            ret.setFloat(i, ints.getInt(i));
+        return ret;
+    }
+
+}
@@ -0,0 +1,180 @@
+package au.com.smarttrace.beacons;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceEventDispatcherTest {
+
+    private final DeviceSubscriptions subscriptions = new DeviceSubscriptions();
+
+    private final DeviceEventDispatcher dispatcher = new DeviceEventDispatcher(new Handler(), subscriptions);
+
+    private final List<String> received = new ArrayList<>();
+
+    private final DeviceListener single = new DeviceListener() {
+        @Override
+        public void onDeviceChange(DeviceEvent event) {
+            received.add(event.getDevice().getId() + ":" + event.getType() + ":" + event.getData());
+        }
+    };
+
+    private int batches;
+
+    private final DeviceBatchListener batch = new DeviceBatchListener() {
+        @Override
+        public void onDeviceChanges(List<DeviceEvent> events) {
+            batches++;
+        }
+        @Override
+        public void onDeviceChange(DeviceEvent event) {
+            fail();
+        }
+    };
+
+    @Test
+    public void testMerge() throws Exception {
+        subscriptions.subscribe(single, null, DeviceEvent.MASK_ALL);
+        subscriptions.subscribe(batch, null, DeviceEvent.MASK_ALL);
+        Device a = new InternalDevice("A");
+        Device b = new InternalDevice("B");
+
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_ADDED, null);
+        for (int i=0; i<100; i++) {
+            dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, i);
+            dispatcher.fire(b, DeviceEvent.TYPE_DEVICE_UPDATED, i);
+        }
+        // the updates after this are not merged before it
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_CONNECTED, null);
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, 100);
+        dispatcher.fire(b, DeviceEvent.TYPE_DEVICE_UPDATED, 100);
+        assertEquals(5, dispatcher.getQueueDepth());
+
+        dispatcher.flush();
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(1, batches);
+        List<String> expected = new ArrayList<>();
+        expected.add("A:1:null");
+        expected.add("A:2:99");
+        expected.add("B:2:100");
+        expected.add("A:4:null");
+        expected.add("A:2:100");
+        assertEquals(expected, received);
+
+        assertEquals(204, dispatcher.getFired());
+        assertEquals(199, dispatcher.getMerged());
+        assertEquals(5, dispatcher.getDelivered());
+        assertEquals(5, dispatcher.getMaxQueueDepth());
+        assertTrue(dispatcher.getMaxLatency()>=dispatcher.getAverageLatency());
+
+        // a new batch starts merging again
+        received.clear();
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, 101);
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, 102);
+        dispatcher.flush();
+        dispatcher.flush();
+        assertEquals(2, batches);
+        assertEquals(1, received.size());
+        assertEquals("A:2:102", received.get(0));
+    }
+
+    @Test
+    public void testQueueCap() throws Exception {
+        subscriptions.subscribe(single, null, DeviceEvent.MASK_ALL);
+        int n = DeviceEventDispatcher.MAX_QUEUE_DEPTH + 10;
+        Device[] devices = new Device[n];
+        for (int i=0; i<n; i++) {
+            devices[i] = new InternalDevice("D" + i);
+            dispatcher.fire(devices[i], DeviceEvent.TYPE_DEVICE_UPDATED, i);
+        }
+        assertEquals(DeviceEventDispatcher.MAX_QUEUE_DEPTH, dispatcher.getQueueDepth());
+        assertEquals(10, dispatcher.getDropped());
+        // the waiting updates still merge, the structural events are never dropped
+        dispatcher.fire(devices[0], DeviceEvent.TYPE_DEVICE_UPDATED, -1);
+        dispatcher.fire(devices[n - 1], DeviceEvent.TYPE_DEVICE_REMOVED, null);
+        assertEquals(DeviceEventDispatcher.MAX_QUEUE_DEPTH + 1, dispatcher.getQueueDepth());
+        assertEquals(1, dispatcher.getMerged());
+
+        dispatcher.flush();
+        assertEquals(DeviceEventDispatcher.MAX_QUEUE_DEPTH + 1, received.size());
+        assertEquals("D0:2:-1", received.get(0));
+        assertEquals("D" + (n - 1) + ":3:null", received.get(received.size() - 1));
+        dispatcher.fire(devices[n - 1], DeviceEvent.TYPE_DEVICE_UPDATED, 0);
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertEquals(10, dispatcher.getDropped());
+    }
+
+    @Test
+    public void testSubscriptions() throws Exception {
+        Device a = new InternalDevice("A");
+        Device b = new InternalDevice("B");
+        subscriptions.subscribe(single, "A", DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_UPDATED));
+        subscriptions.subscribe(batch, null, DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_ADDED));
+        assertTrue(subscriptions.isSubscribed(a, DeviceEvent.TYPE_DEVICE_UPDATED));
+        assertTrue(subscriptions.isSubscribed(b, DeviceEvent.TYPE_DEVICE_ADDED));
+        assertFalse(subscriptions.isSubscribed(b, DeviceEvent.TYPE_DEVICE_UPDATED));
+        assertFalse(subscriptions.isSubscribed(a, DeviceEvent.TYPE_DEVICE_REMOVED));
+
+        dispatcher.fire(b, DeviceEvent.TYPE_DEVICE_UPDATED, 1);
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_REMOVED, null);
+        // nobody interested, nothing queued
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, 2);
+        dispatcher.fire(b, DeviceEvent.TYPE_DEVICE_ADDED, null);
+        dispatcher.flush();
+        assertEquals(1, received.size());
+        assertEquals("A:2:2", received.get(0));
+        assertEquals(1, batches);
+
+        // replaced, then removed
+        subscriptions.subscribe(single, "A", DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_REMOVED));
+        assertFalse(subscriptions.isSubscribed(a, DeviceEvent.TYPE_DEVICE_UPDATED));
+        assertTrue(subscriptions.isSubscribed(a, DeviceEvent.TYPE_DEVICE_REMOVED));
+        subscriptions.unsubscribe(single);
+        subscriptions.unsubscribe(batch);
+        assertFalse(subscriptions.isSubscribed(a, DeviceEvent.TYPE_DEVICE_REMOVED));
+        assertFalse(subscriptions.isSubscribed(b, DeviceEvent.TYPE_DEVICE_ADDED));
+        assertEquals(0, subscriptions.get("A").length);
+    }
+
+    @Test
+    public void testSubscribedTwice() throws Exception {
+        Device a = new InternalDevice("A");
+        Device b = new InternalDevice("B");
+        subscriptions.subscribe(single, null, DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_UPDATED));
+        subscriptions.subscribe(single, "A", DeviceEvent.mask(
+                DeviceEvent.TYPE_DEVICE_UPDATED, DeviceEvent.TYPE_DEVICE_REMOVED));
+        final List<DeviceEvent> batched = new ArrayList<>();
+        DeviceBatchListener listener = new DeviceBatchListener() {
+            @Override
+            public void onDeviceChanges(List<DeviceEvent> events) {
+                batched.addAll(events);
+            }
+            @Override
+            public void onDeviceChange(DeviceEvent event) {
+                fail();
+            }
+        };
+        subscriptions.subscribe(listener, null, DeviceEvent.MASK_ALL);
+        subscriptions.subscribe(listener, "A", DeviceEvent.MASK_ALL);
+
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_UPDATED, 1);
+        dispatcher.fire(b, DeviceEvent.TYPE_DEVICE_UPDATED, 2);
+        dispatcher.fire(a, DeviceEvent.TYPE_DEVICE_REMOVED, null);
+        dispatcher.flush();
+        // once each, from whichever subscription matches
+        List<String> expected = new ArrayList<>();
+        expected.add("A:2:1");
+        expected.add("B:2:2");
+        expected.add("A:3:null");
+        assertEquals(expected, received);
+        assertEquals(3, batched.size());
+    }
+
+}
@@ -0,0 +1,322 @@
+package au.com.smarttrace.beacons;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class DeviceManagerTest {
+
+    private static class TestDevice extends InternalDevice {
+        TestDevice(String identifier) {super(identifier);}
+        @Override
+        public String toString() {return id;}
+    }
+
+    public static class Device0 extends TestDevice {
+        public Device0() {super("TEST:0");}
+    }
+
+    public static class Device1 extends TestDevice {
+        public Device1() {super("TEST:1");}
+    }
+
+    public static class Device2 extends TestDevice {
+        public Device2() {super("TEST:2");}
+    }
+
+    private static class ScannedDevice extends Device {
+        private final String id;
+        ScannedDevice(String id) {
+            this.id = id;
+            setScanResult(new ScanResult(null, null, -60, 0));
+        }
+        @Override
+        public String getId() {return id;}
+        @Override
+        public String toString() {return id;}
+    }
+
+    private final static String[] IDS = {"TEST:0", "TEST:1", "TEST:2"};
+
+    private final static String[] SCANNED = {"SCAN:0", "SCAN:1", "SCAN:2", "SCAN:3"};
+
+    @SuppressWarnings("unchecked")
+    private final static Class<? extends InternalDevice>[] CLASSES = new Class[] {
+            Device0.class, Device1.class, Device2.class};
+
+    private final static int ITERATIONS = 20000;
+
+    private final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+    private Thread start(final CountDownLatch go, final Runnable task) {
+        Thread ret = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    go.await();
+                    for (int i=0; i<ITERATIONS; i++)
+                        task.run();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        ret.start();
+        return ret;
+    }
+
+    /** Structural changes, reads, listeners, events and recordings all at once */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final DeviceManager manager = DeviceManager.getInstance();
+        final DeviceEventDispatcher dispatcher = manager.getEventDispatcher();
+        final Handler handler = new Handler();
+        final DeviceListener listener = new DeviceListener() {
+            @Override
+            public void onDeviceChange(DeviceEvent event) {
+            }
+        };
+        // the scanned devices present, as seen by the events delivered on the main thread
+        final Set<String> present = new HashSet<>();
+        final DeviceListener tracker = new DeviceListener() {
+            @Override
+            public void onDeviceChange(DeviceEvent event) {
+                String id = event.getDevice().getId();
+                if (!id.startsWith("SCAN:"))
+                    return;
+                if (event.getType()==DeviceEvent.TYPE_DEVICE_ADDED)
+                    assertTrue(id, present.add(id));
+                else
+                    assertTrue(id, present.remove(id));
+            }
+        };
+        manager.addDeviceListener(tracker, null, DeviceEvent.mask(
+                DeviceEvent.TYPE_DEVICE_ADDED, DeviceEvent.TYPE_DEVICE_REMOVED));
+        final ScanResult result = new ScanResult(null, null, -60, 0);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = {
+                // the bluetooth thread: scan ingestion and eviction, in order
+                start(go, new Runnable() {
+                    final Random random = new Random(1);
+                    @Override
+                    public void run() {
+                        String id = SCANNED[random.nextInt(SCANNED.length)];
+                        Device known = null;
+                        try {
+                            known = manager.getDevice(id);
+                        } catch (NoSuchDeviceException e) {
+                            // not managed
+                        }
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                manager.new Adder(new ScannedDevice(id)).run();
+                                break;
+                            case 1:
+                                if (manager.offerScan(handler, id, result))
+                                    known.scanTask.run();
+                                break;
+                            default:
+                                if (known!=null)
+                                    manager.new Remover(known).run();
+                        }
+                    }
+                }),
+                // internal devices, from any thread
+                start(go, new Runnable() {
+                    int n;
+                    @Override
+                    public void run() {
+                        manager.addInternalDevice(null, CLASSES[n++ % CLASSES.length]);
+                    }
+                }),
+                start(go, new Runnable() {
+                    int n;
+                    @Override
+                    public void run() {
+                        manager.removeInternalDevice(IDS[n++ % IDS.length]);
+                    }
+                }),
+                // the main thread: reads and deliveries
+                start(go, new Runnable() {
+                    @Override
+                    public void run() {
+                        int count = manager.countDevices();
+                        assertTrue(count>=0);
+                        for (String id : IDS)
+                            try {
+                                assertEquals(id, manager.getDevice(id).getId());
+                            } catch (NoSuchDeviceException e) {
+                                // removed
+                            }
+                        dispatcher.flush();
+                    }
+                }),
+                // listener changes and events
+                start(go, new Runnable() {
+                    int n;
+                    @Override
+                    public void run() {
+                        if (n++ % 2==0)
+                            manager.addDeviceListener(listener);
+                        else
+                            manager.removeDeviceListener(listener);
+                    }
+                }),
+                start(go, new Runnable() {
+                    int n;
+                    @Override
+                    public void run() {
+                        try {
+                            manager.fireDeviceEvent(manager.getDevice(IDS[n++ % IDS.length]),
+                                    DeviceEvent.TYPE_DEVICE_UPDATED);
+                        } catch (NoSuchDeviceException e) {
+                            // removed
+                        }
+                    }
+                }),
+                // tracking start and cancel, racing each other
+                start(go, new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.startTracking();
+                    }
+                }),
+                start(go, new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.cancelTracking();
+                    }
+                })
+        };
+        go.countDown();
+        for (Thread t : threads) {
+            t.join(60000);
+            assertFalse("Deadlock", t.isAlive());
+        }
+        for (Throwable e : errors)
+            throw new AssertionError(e);
+
+        manager.cancelTracking();
+        assertFalse(manager.isRecording());
+        manager.removeDeviceListener(listener);
+
+        // the events delivered match the scanned devices managed
+        dispatcher.flush();
+        Set<String> scanned = new HashSet<>();
+        for (String id : SCANNED)
+            try {
+                scanned.add(manager.getDevice(id).getId());
+            } catch (NoSuchDeviceException e) {
+                // removed
+            }
+        assertEquals(scanned, present);
+        manager.removeDeviceListener(tracker);
+
+        // the sorted snapshot matches the index
+        int count = scanned.size();
+        for (String id : IDS)
+            try {
+                manager.getDevice(id);
+                count++;
+            } catch (NoSuchDeviceException e) {
+                // removed
+            }
+        assertEquals(count, manager.countDevices());
+        for (int i=1; i<manager.countDevices(); i++)
+            assertTrue(manager.getDevice(i-1).getId().compareTo(manager.getDevice(i).getId())<0);
+
+        // no recording is left subscribed
+        for (String id : IDS)
+            manager.removeInternalDevice(id);
+        for (String id : SCANNED)
+            manager.removeInternalDevice(id);
+        assertEquals(0, manager.countDevices());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static boolean canMeasureAllocations() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) THREADS)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Scans between two frames, a batch of events delivered for each */
+    private final static int SCANS_PER_FRAME = 64;
+
+    /** Allocations of the scan results of a known device, up to the delivery of its updates */
+    @Test
+    public void testScanAllocations() throws Exception {
+        assumeTrue(canMeasureAllocations());
+        DeviceManager manager = DeviceManager.getInstance();
+        DeviceEventDispatcher dispatcher = manager.getEventDispatcher();
+        Handler handler = new Handler();
+        Device device = new ScannedDevice("SCAN:0");
+        assertTrue(manager.addScanned(device));
+        assertFalse(manager.addScanned(new ScannedDevice("SCAN:0")));
+        assertFalse(manager.offerScan(handler, "SCAN:1", null));
+        final int[] updates = new int[1];
+        DeviceListener listener = new DeviceListener() {
+            @Override
+            public void onDeviceChange(DeviceEvent event) {
+                updates[0]++;
+            }
+        };
+        manager.addDeviceListener(listener, "SCAN:0", DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_UPDATED));
+
+        int n = 100 * SCANS_PER_FRAME;
+        ScanResult[] results = new ScanResult[2];
+        for (int i=0; i<results.length; i++)
+            results[i] = new ScanResult(null, null, -60 - i, i);
+        for (int i=0; i<n; i++) {
+            assertTrue(manager.offerScan(handler, "SCAN:0", results[i % 2]));
+            device.scanTask.run();
+            if (i % SCANS_PER_FRAME==SCANS_PER_FRAME - 1)
+                dispatcher.flush();
+        }
+        updates[0] = 0;
+        long bytes = allocated();
+        for (int i=0; i<n; i++) {
+            manager.offerScan(handler, "SCAN:0", results[i % 2]);
+            device.scanTask.run();
+            if (i % SCANS_PER_FRAME==SCANS_PER_FRAME - 1)
+                dispatcher.flush();
+        }
+        double fast = (allocated() - bytes) / (double) n;
+        assertSame(results[1], device.getScanResult());
+        // the updates merged in one event per frame
+        assertEquals(n / SCANS_PER_FRAME, updates[0]);
+
+        // a temporary device for each scan result, as before
+        bytes = allocated();
+        for (int i=0; i<1000; i++)
+            assertNotNull(new Device(null, results[i % 2]));
+        double wrapped = (allocated() - bytes) / 1000.0;
+
+        manager.removeDeviceListener(listener);
+        manager.removeInternalDevice("SCAN:0");
+        dispatcher.flush();
+        assertTrue(fast + " bytes allocated per scan", fast<8);
+        assertTrue(wrapped + " bytes allocated per temporary device", wrapped>8 * fast);
+    }
+
+}
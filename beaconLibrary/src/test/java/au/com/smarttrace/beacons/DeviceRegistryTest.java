@@ -0,0 +1,49 @@
+package au.com.smarttrace.beacons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void testLookup() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        Device d1 = new InternalDevice("CC:00:00:00:00:01");
+        Device d2 = new InternalDevice("AA:00:00:00:00:02");
+        assertNull(registry.add(d1));
+        assertNull(registry.add(d2));
+        // same identifier, the first device is kept
+        assertSame(d1, registry.add(new InternalDevice("CC:00:00:00:00:01")));
+
+        assertEquals(2, registry.size());
+        assertSame(d1, registry.get("CC:00:00:00:00:01"));
+        assertSame(d2, registry.get("AA:00:00:00:00:02"));
+        assertNull(registry.get("BB:00:00:00:00:03"));
+        assertNull(registry.get(null));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        Device d1 = new InternalDevice("CC:00:00:00:00:01");
+        Device d2 = new InternalDevice("AA:00:00:00:00:02");
+        Device d3 = new InternalDevice("BB:00:00:00:00:03");
+        registry.add(d1);
+        registry.add(d2);
+        Device[] s1 = registry.snapshot();
+        assertArrayEquals(new Device[] {d2, d1}, s1);
+        // not rebuilt until changed
+        assertSame(s1, registry.snapshot());
+
+        registry.add(d3);
+        assertArrayEquals(new Device[] {d2, d3, d1}, registry.snapshot());
+        assertArrayEquals(new Device[] {d2, d1}, s1);
+
+        assertSame(d2, registry.remove("AA:00:00:00:00:02"));
+        assertNull(registry.remove("AA:00:00:00:00:02"));
+        assertTrue(registry.remove(d3));
+        assertArrayEquals(new Device[] {d1}, registry.snapshot());
+    }
+
+}
@@ -0,0 +1,77 @@
+package au.com.smarttrace.beacons.gps;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import au.com.smarttrace.beacons.tracker.Tracking;
+
+import static org.junit.Assert.*;
+
+public class TrackSimplifierTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    /** A drive east then north, with some noise, a fix every second */
+    private static Tracking drive(int n) {
+        Tracking t = new Tracking();
+        Random random = new Random(1);
+        for (int i=0; i<n; i++) {
+            double lat = -37.8, lng = 144.9;
+            if (i<n/2)
+                lng += i * 1e-4;
+            else {
+                lng += n/2 * 1e-4;
+                lat += (i - n/2) * 1e-4;
+            }
+            lat += random.nextGaussian() * 1e-5;
+            lng += random.nextGaussian() * 1e-5;
+            // the position is lost for a while, and less accurate later
+            long time = BEGIN + i * 1000L + (i>=n/4 ? TrackSimplifier.GAP + 1000 : 0);
+            float acc = i>=3*n/4 ? 30 : 5;
+            t.addSample(time, GPSDevice.KEY_LOCATION, new GPSDevice.Sample(lat, lng, acc));
+        }
+        return t;
+    }
+
+    @Test
+    public void testSimplify() throws Exception {
+        int n = 4000;
+        Tracking.Data raw = drive(n).getSamples(GPSDevice.KEY_LOCATION);
+        int[] kept = TrackSimplifier.simplify(raw, TrackSimplifier.TOLERANCE);
+        assertTrue(kept.length + " points", kept.length<n/20);
+        assertEquals(0, kept[0]);
+        assertEquals(n-1, kept[kept.length-1]);
+        boolean corner = false, gap = false, accuracy = false;
+        for (int k : kept) {
+            corner |= Math.abs(k - n/2)<=2;
+            gap |= k==n/4-1;
+            accuracy |= k==3*n/4;
+        }
+        assertTrue(corner);
+        assertTrue(gap);
+        assertTrue(accuracy);
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        int n = 1000;
+        Tracking.Data raw = drive(n).getSamples(GPSDevice.KEY_LOCATION);
+        Tracking t = new Tracking();
+        TrackSimplifier simplifier = new TrackSimplifier(t);
+        for (int i=0; i<n; i++) {
+            t.addSample(raw.getTime(i), GPSDevice.KEY_LOCATION, raw.get(i));
+            simplifier.update();
+        }
+        simplifier.finish();
+
+        Tracking.Data track = t.getSamples(GPSDevice.KEY_TRACK);
+        assertEquals(n, t.getSamples(GPSDevice.KEY_LOCATION).size());
+        assertTrue(track.size() + " points", track.size()<n/10);
+        assertEquals(raw.getTime(0), track.getTime(0));
+        assertEquals(raw.getTime(n-1), track.getTime(track.size()-1));
+        for (int i=1; i<track.size(); i++)
+            assertTrue(track.getTime(i)>track.getTime(i-1));
+    }
+
+}
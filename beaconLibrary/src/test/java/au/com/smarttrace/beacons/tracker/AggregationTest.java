@@ -0,0 +1,87 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.SortedMap;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class AggregationTest {
+
+    private final static TimeZone ZONE = TimeZone.getTimeZone("Australia/Melbourne");
+
+    private final static long HOUR = 3600000L;
+
+    private static long time(int year, int month, int day, int hour) {
+        Calendar c = Calendar.getInstance(ZONE);
+        c.clear();
+        c.set(year, month, day, hour, 0);
+        return c.getTimeInMillis();
+    }
+
+    /** A sample every 5 minutes for a day, warmer in the afternoon */
+    private static Tracking.Data day(long begin, float base) {
+        Tracking t = new Tracking();
+        for (long time=begin; time<begin + 24 * HOUR; time+=5 * 60000L) {
+            float v = base + ((time - begin) / HOUR>=12 && (time - begin) / HOUR<16 ? 5 : 0);
+            t.addSample(time, "temperature", v);
+        }
+        return t.getSamples("temperature");
+    }
+
+    @Test
+    public void testDailyMax() throws Exception {
+        Aggregation.Max max = new Aggregation.Max("temperature", Calendar.DAY_OF_MONTH, ZONE);
+        long d1 = time(2017, Calendar.JULY, 14, 0);
+        long d2 = time(2017, Calendar.JULY, 15, 0);
+
+        Aggregation.ByPeriod<Float> a1 = max.create();
+        max.add(a1, "A", "temperature", day(d1, 4));
+        max.add(a1, "B", "temperature", day(d1, 2));
+        Aggregation.ByPeriod<Float> a2 = max.create();
+        max.add(a2, "A", "temperature", day(d2 - 12 * HOUR, 3));
+        Aggregation.ByPeriod<Float> a = max.merge(max.create(), max.merge(a1, a2));
+
+        SortedMap<Long, Float> values = a.get("A");
+        assertEquals(2, values.size());
+        assertEquals(9f, values.get(d1), 0);
+        assertEquals(8f, values.get(d2), 0);
+        assertEquals(7f, a.get("B").get(d1), 0);
+        assertNull(a.get("C"));
+    }
+
+    @Test
+    public void testMonthlyOutOfRange() throws Exception {
+        Aggregation.OutOfRange out = new Aggregation.OutOfRange("temperature", 2, 8,
+                Calendar.MONTH, ZONE);
+        long july = time(2017, Calendar.JULY, 1, 0);
+        long august = time(2017, Calendar.AUGUST, 1, 0);
+
+        Aggregation.ByPeriod<Long> a1 = out.create();
+        out.add(a1, "A", "temperature", day(time(2017, Calendar.JULY, 3, 0), 4));
+        Aggregation.ByPeriod<Long> a2 = out.create();
+        out.add(a2, "A", "temperature", day(time(2017, Calendar.JULY, 20, 0), 1));
+        out.add(a2, "A", "temperature", day(time(2017, Calendar.AUGUST, 2, 0), 4));
+        Aggregation.ByPeriod<Long> a = out.merge(a1, a2);
+
+        SortedMap<Long, Long> values = a.get("A");
+        // 4 hours too warm on a mild day, 20 hours too cold on the cold one, but the last sample
+        assertEquals(4 * HOUR + 20 * HOUR - 5 * 60000L, (long) values.get(july));
+        assertEquals(4 * HOUR, (long) values.get(august));
+    }
+
+    @Test
+    public void testPeriods() throws Exception {
+        Aggregation.Periods p = new Aggregation.Periods(Calendar.DAY_OF_MONTH, ZONE);
+        // a day of 23 hours, when daylight saving time starts
+        long d1 = time(2017, Calendar.OCTOBER, 1, 0);
+        long d2 = time(2017, Calendar.OCTOBER, 2, 0);
+        assertEquals(23 * HOUR, d2 - d1);
+        assertEquals(d1, p.start(d1 + 22 * HOUR));
+        assertEquals(d2, p.start(d2));
+        assertEquals(d1, p.start(d1));
+    }
+
+}
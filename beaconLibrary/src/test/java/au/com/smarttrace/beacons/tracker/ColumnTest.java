@@ -0,0 +1,102 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class ColumnTest {
+
+    @Test
+    public void testForClass() throws Exception {
+        assertTrue(Column.forClass(Float.class, 1) instanceof Column.Floats);
+        assertTrue(Column.forClass(Integer.class, 1) instanceof Column.Ints);
+        assertTrue(Column.forClass(GPSDevice.Sample.class, 1) instanceof Column.Locations);
+        assertTrue(Column.forClass(String.class, 1) instanceof Column.Objects);
+        assertTrue(Column.forClass(null, 1) instanceof Column.Objects);
+        assertEquals(Object.class, Column.forClass(null, 1).getDataClass());
+    }
+
+    @Test
+    public void testFloats() throws Exception {
+        Column<Float> c = Column.forClass(Float.class, 2);
+        c.setFloat(0, 1.5f);
+        c.setInt(1, 3);
+        assertTrue(c.isNumeric());
+        assertEquals(1.5f, c.get(0), 0);
+        assertEquals(1, c.getInt(0));
+        assertEquals(3f, c.getFloat(1), 0);
+
+        c.grow(4);
+        c.shift(0, 2);
+        c.set(0, 0.5f);
+        assertEquals(0.5f, c.getFloat(0), 0);
+        assertEquals(1.5f, c.getFloat(1), 0);
+        assertEquals(3f, c.getFloat(2), 0);
+        c.copy(c, 2, 3);
+        assertEquals(3f, c.getFloat(3), 0);
+        assertEquals(16, c.estimateBytes());
+    }
+
+    @Test
+    public void testInts() throws Exception {
+        Column<Integer> c = Column.forClass(Integer.class, 3);
+        c.setInt(0, 85);
+        // a float added to an integer key is rounded, not a ClassCastException
+        c.setFloat(1, 84.6f);
+        c.setFloat(2, -0.4f);
+        assertTrue(c.isNumeric());
+        assertEquals(85, (int) c.get(0));
+        assertEquals(85, c.getInt(1));
+        assertEquals(0, c.getInt(2));
+        assertEquals(85f, c.getFloat(0), 0);
+
+        Column<Integer> other = Column.forClass(Integer.class, 1);
+        other.copy(c, 0, 0);
+        assertEquals(85, other.getInt(0));
+    }
+
+    @Test
+    public void testLocations() throws Exception {
+        Column<GPSDevice.Sample> c = Column.forClass(GPSDevice.Sample.class, 1);
+        c.set(0, new GPSDevice.Sample(-37.8, 144.9, 5));
+        c.grow(2);
+        c.shift(0, 1);
+        c.setLocation(0, -33.9, 151.2, 10);
+        assertFalse(c.isNumeric());
+        assertEquals(-33.9, c.getLatitude(0), 0);
+        assertEquals(144.9, c.getLongitude(1), 0);
+        assertEquals(5f, c.getAccuracy(1), 0);
+        assertEquals(-37.8, c.get(1).lat, 0);
+        try {
+            c.setFloat(0, 1);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // not numeric
+        }
+        try {
+            c.getInt(0);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // not numeric
+        }
+    }
+
+    @Test
+    public void testObjects() throws Exception {
+        Column<Object> c = Column.forClass(null, 2);
+        c.set(0, "a");
+        c.setFloat(1, 2f);
+        assertFalse(c.isNumeric());
+        assertEquals("a", c.get(0));
+        assertEquals(2f, c.get(1));
+        try {
+            c.getLatitude(0);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // not a location
+        }
+    }
+
+}
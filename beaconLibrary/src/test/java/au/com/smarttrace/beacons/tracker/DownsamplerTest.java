@@ -0,0 +1,65 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownsamplerTest {
+
+    @Test
+    public void testDownsample() throws Exception {
+        Tracking t = new Tracking();
+        int n = 100000;
+        for (int i=0; i<n; i++)
+            t.addSample(i * 1000L, "temperature", (float) Math.sin(i / 1000.0));
+        // a single spike must survive
+        t.addSample(54321 * 1000L + 500, "temperature", 40f);
+        t.flush();
+        Tracking.Data data = t.getSamples("temperature");
+
+        int[] points = Downsampler.downsample(data, 800);
+        assertTrue(points.length + " points", points.length<=800 && points.length>700);
+        assertEquals(0, points[0]);
+        assertEquals(data.size() - 1, points[points.length - 1]);
+        boolean spike = false;
+        for (int i=1; i<points.length; i++) {
+            assertTrue(points[i]>points[i-1]);
+            spike |= data.getFloat(points[i])==40f;
+        }
+        assertTrue(spike);
+
+        // a window is downsampled on its own
+        Tracking.Data window = data.range(10000000, 20000000);
+        points = Downsampler.downsample(window, 100);
+        assertTrue(points.length<=100);
+        assertEquals(10000000, window.getTime(points[0]));
+        assertEquals(20000000, window.getTime(points[points.length - 1]));
+        assertEquals(3, Downsampler.downsample(window.subData(0, 3), 100).length);
+    }
+
+    @Test
+    public void testSmallThresholds() throws Exception {
+        Tracking t = new Tracking();
+        for (int i=0; i<1000; i++)
+            t.addSample(i * 1000L, "temperature", i==600 ? 40f : (float) Math.sin(i / 100.0));
+        Tracking.Data data = t.getSamples("temperature");
+
+        assertEquals(0, Downsampler.downsample(data, 0).length);
+        assertEquals(0, Downsampler.downsample(data, -1).length);
+        assertArrayEquals(new int[] {0}, Downsampler.downsample(data, 1));
+        assertArrayEquals(new int[] {0, 999}, Downsampler.downsample(data, 2));
+        // the spike forms the largest triangle
+        assertArrayEquals(new int[] {0, 600, 999}, Downsampler.downsample(data, 3));
+        int[] points = Downsampler.downsample(data, 4);
+        assertEquals(4, points.length);
+        assertEquals(0, points[0]);
+        assertEquals(999, points[3]);
+        assertTrue(points[1]<points[2]);
+        assertTrue(Downsampler.downsample(data, 5).length<=5);
+
+        // fewer samples than the threshold
+        assertEquals(2, Downsampler.downsample(data.subData(0, 2), 4).length);
+        assertArrayEquals(new int[] {0}, Downsampler.downsample(data.subData(0, 2), 1));
+    }
+
+}
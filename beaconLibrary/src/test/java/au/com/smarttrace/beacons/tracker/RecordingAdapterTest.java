@@ -0,0 +1,100 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class RecordingAdapterTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + 60000));
+        Tracking t = new Tracking();
+        t.addSample(BEGIN + 10, "temperature", 22.15f);
+        t.addSample(BEGIN + 20, "temperature", 21f);
+        t.addSample(BEGIN + 10, "battery", 85);
+        r.putTracking("AA:BB:CC:DD:EE:FF", t);
+        Tracking gps = new Tracking();
+        gps.addSample(BEGIN, "location", new GPSDevice.Sample(-37.8136, 144.9631, 12.5f));
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+
+        Gson gson = new Gson();
+        String json = gson.toJson(r);
+        assertTrue(json, json.contains("\"type\":\"float\""));
+        // the floats written as floats, not widened to doubles
+        assertTrue(json, json.contains("[22.15,21.0]"));
+        assertTrue(json, json.contains("\"acc\":12.5}"));
+        Recording read = gson.fromJson(json, Recording.class);
+        assertEquals(r.getBegin(), read.getBegin());
+        assertEquals(r.getEnd(), read.getEnd());
+        assertEquals(t.toString(), read.getTracking("AA:BB:CC:DD:EE:FF").toString());
+        // typed storage: 21f is not read back as an integer
+        assertTrue(read.getTracking("AA:BB:CC:DD:EE:FF").getSamples("temperature").isNumeric());
+        assertEquals(21f, read.getTracking("AA:BB:CC:DD:EE:FF").getSamples("temperature").getFloat(1), 0);
+        assertEquals(12.5f, read.getTracking(GPSDevice.IDENTIFIER).getSamples("location").getAccuracy(0), 0);
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+        // dates as written by the default Gson of this JDK, whatever the locale
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US);
+        String json = "{\"begin\":\"" + format.format(new Date(BEGIN)) + "\","
+                + "\"end\":\"" + format.format(new Date(BEGIN + 3600000)) + "\","
+                + "\"trackings\":{\"01_internal_GPS\":{\"components\":{\"location\":"
+                + "{\"timeline\":[1500000000000,1500000005000],"
+                + "\"data\":[{\"lat\":10.0,\"lng\":10.0,\"acc\":10.0},{\"lat\":12.0,\"lng\":13.0,\"acc\":1.0}]}}},"
+                + "\"AA:BB:CC:DD:EE:FF\":{\"components\":{"
+                + "\"battery\":{\"timeline\":[1500000000000],\"data\":[85]},"
+                + "\"temperature\":{\"timeline\":[1500000000000,1500000001000],\"data\":[22,22.5]}}}}}";
+        Recording r = new Gson().fromJson(json, Recording.class);
+        assertEquals(BEGIN, r.getBegin().getTime());
+        assertEquals(BEGIN + 3600000, r.getEnd().getTime());
+        assertEquals("{location=[(10.0,10.0), (12.0,13.0)]}", r.getTracking("01_internal_GPS").toString());
+        assertEquals("{battery=[85], temperature=[22.0, 22.5]}", r.getTracking("AA:BB:CC:DD:EE:FF").toString());
+    }
+
+    /** Streaming and tree parsing times, only run with -Dbenchmark=true */
+    @Test
+    public void testBenchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Tracking t = new Tracking();
+        for (int i=0; i<20000; i++) {
+            t.addSample(BEGIN + i * 1000, "temperature", 4 + (i % 100) / 100f);
+            t.addSample(BEGIN + i * 1000, "location", new GPSDevice.Sample(-37.8 + i * 1e-6, 144.9, 10));
+        }
+        Gson gson = new Gson();
+        String json = gson.toJson(t);
+
+        // the best of some runs, after the warm up
+        long streamTime = Long.MAX_VALUE, treeTime = Long.MAX_VALUE;
+        for (int i=0; i<4; i++) {
+            long time = System.nanoTime();
+            Tracking s = gson.fromJson(new StringReader(json), Tracking.class);
+            streamTime = Math.min(streamTime, System.nanoTime() - time);
+            time = System.nanoTime();
+            // former path: a full tree first
+            JsonElement tree = new JsonParser().parse(new StringReader(json));
+            Tracking d = gson.fromJson(tree, Tracking.class);
+            treeTime = Math.min(treeTime, System.nanoTime() - time);
+            assertEquals(t.size(), s.size());
+            assertEquals(t.size(), d.size());
+        }
+        System.out.println(String.format("Streaming %dms, tree %dms",
+                streamTime / 1000000, treeTime / 1000000));
+    }
+
+}
@@ -0,0 +1,51 @@
+package au.com.smarttrace.beacons.tracker;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RecordingCacheTest {
+
+    /** Recording of about 12KB */
+    private static Recording recording(long begin) {
+        Recording r = new Recording(new Date(begin), new Date(begin + 1000000));
+        Tracking t = new Tracking();
+        for (int i=0; i<1000; i++)
+            t.addSample(begin + i * 1000, "temperature", (float) i);
+        r.putTracking("AA:BB:CC:DD:EE:FF", t);
+        return r;
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        long size = recording(0).estimateBytes();
+        RecordingCache cache = new RecordingCache(size * 3);
+        cache.pin(1);
+        for (long i=1; i<=5; i++)
+            cache.put(i, recording(i));
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.getEvictions());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(4));
+
+        // 5 is now the least recently used
+        cache.put(6, recording(6));
+        assertNull(cache.get(5));
+        assertNotNull(cache.get(4));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(1, cache.size());
+        assertEquals(size, cache.getBytes());
+        cache.unpin(1);
+        cache.setBudget(0);
+        assertEquals(0, cache.size());
+    }
+
+}
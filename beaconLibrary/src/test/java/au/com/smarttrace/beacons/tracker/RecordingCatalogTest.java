@@ -0,0 +1,153 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RecordingCatalogTest {
+
+    private static Recording.Header header(long begin) {
+        Recording.Header h = new Recording.Header();
+        h.begin = begin;
+        h.end = begin + 3600000;
+        h.readings = (int) (begin % 1000);
+        return h;
+    }
+
+    @Test
+    public void testCatalog() throws Exception {
+        File file = File.createTempFile("recordings", ".idx");
+        assertTrue(file.delete());
+
+        RecordingCatalog c = RecordingCatalog.open(file);
+        for (int i=0; i<100; i++)
+            assertEquals(i, c.add(header(1000L * i)));
+        assertTrue(c.remove(5000));
+        assertFalse(c.remove(5000));
+        assertEquals(99, c.size());
+        assertEquals(6000, c.get(5).getBegin());
+        c.close();
+
+        // reopen, then tear the footer in the middle of an append
+        c = RecordingCatalog.open(file);
+        assertEquals(99, c.size());
+        assertEquals(1, c.tombstones());
+        assertEquals(99000, c.get(98).getEnd() - 3600000);
+        c.close();
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(f.length() - 5);
+        f.close();
+        c = RecordingCatalog.open(file);
+        assertEquals(99, c.size());
+        assertEquals(-1, c.indexOf(5000));
+
+        c.compact();
+        assertEquals(0, c.tombstones());
+        assertEquals(99, c.size());
+        assertEquals(6000, c.get(5).getBegin());
+        assertEquals(7000 % 1000, c.get(6).getReadings());
+        assertEquals(99 * RecordingCatalog.RECORD_SIZE + RecordingCatalog.FOOTER_SIZE, file.length());
+        c.close();
+        assertTrue(file.delete());
+    }
+
+    /** The positions found by begin time follow the adds, removes and rewrites */
+    @Test
+    public void testIndexOf() throws Exception {
+        File file = File.createTempFile("recordings", ".idx");
+        assertTrue(file.delete());
+
+        RecordingCatalog c = RecordingCatalog.open(file);
+        for (int i=0; i<20; i++)
+            c.add(header(1000L * i));
+        assertTrue(c.remove(3000));
+        assertTrue(c.remove(0));
+        c.add(header(50000));
+        checkPositions(c);
+        assertEquals(-1, c.indexOf(3000));
+        assertEquals(2, c.indexOf(4000));
+        assertEquals(18, c.indexOf(50000));
+        c.close();
+
+        c = RecordingCatalog.open(file);
+        checkPositions(c);
+        c.compact();
+        checkPositions(c);
+        assertEquals(-1, c.indexOf(0));
+        c.close();
+        assertTrue(file.delete());
+    }
+
+    private static void checkPositions(RecordingCatalog c) {
+        for (int i=0; i<c.size(); i++)
+            assertEquals(i, c.indexOf(c.get(i).getBegin()));
+    }
+
+    @Test
+    public void testSummaries() throws Exception {
+        File file = File.createTempFile("recordings", ".idx");
+        assertTrue(file.delete());
+
+        RecordingCatalog c = RecordingCatalog.open(file);
+        for (int i=0; i<10; i++) {
+            Recording.Header h = header(1000L * i);
+            if (i%2==0) {
+                Summary s = new Summary("AA:BB:CC:DD:EE:FF", "temperature");
+                s.count = i;
+                s.min = -i;
+                s.max = i;
+                h.summaries = Collections.singletonList(s);
+            }
+            c.add(h);
+        }
+        c.remove(2000);
+        c.close();
+
+        c = RecordingCatalog.open(file);
+        assertEquals(9, c.size());
+        assertEquals(1, c.get(3).getSummaries().size());
+        assertTrue(c.get(2).getSummaries().isEmpty());
+        c.compact();
+        Summary s = c.get(3).getSummary("AA:BB:CC:DD:EE:FF", "temperature");
+        assertEquals(4, s.getCount());
+        assertEquals(-4, s.getMin(), 0);
+        assertNull(c.get(3).getSummary("AA:BB:CC:DD:EE:FF", "humidity"));
+        assertEquals(8000, c.get(7).getBegin());
+        c.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testUpgrade() throws Exception {
+        File file = File.createTempFile("recordings", ".idx");
+        // a catalog of version 1, with a tombstone
+        ByteBuffer b = ByteBuffer.allocate(3 * 24 + 16);
+        for (int i=0; i<3; i++)
+            b.putLong(1000L * i).putLong(1000L * i + 500).putInt(i).putInt(i==1 ? 0x53540001 : 0x53540000);
+        b.putInt(0x53545249).putInt(1).putInt(3).putInt(1);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(b.array());
+        out.close();
+
+        RecordingCatalog c = RecordingCatalog.open(file);
+        assertEquals(2, c.size());
+        assertEquals(0, c.tombstones());
+        assertEquals(2000, c.get(1).getBegin());
+        assertEquals(2500, c.get(1).getEnd());
+        assertEquals(2, c.get(1).getReadings());
+        assertTrue(c.get(1).getSummaries().isEmpty());
+        c.add(header(3000));
+        c.close();
+        c = RecordingCatalog.open(file);
+        assertEquals(3, c.size());
+        c.close();
+        assertTrue(file.delete());
+    }
+
+}
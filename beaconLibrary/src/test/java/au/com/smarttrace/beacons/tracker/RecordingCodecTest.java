@@ -0,0 +1,231 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class RecordingCodecTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    /** Synthetic recording: sensors reading every second, GPS every 5 seconds */
+    private static Recording synthetic(int samples) {
+        Random rnd = new Random(1);
+        int devices = 4;
+        int n = samples / (devices * 2 + 2);
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + samples * 1000L));
+        for (int d=0; d<devices; d++) {
+            Tracking t = new Tracking();
+            long time = BEGIN;
+            float temperature = 4f, humidity = 60f;
+            for (int i=0; i<n; i++) {
+                time += 1000 + rnd.nextInt(20) - 10;
+                temperature = Math.round((temperature + (rnd.nextFloat() - 0.5f) * 0.1f) * 100) / 100f;
+                humidity = Math.round((humidity + (rnd.nextFloat() - 0.5f) * 0.2f) * 100) / 100f;
+                t.addSample(time, "temperature", temperature);
+                t.addSample(time, "humidity", humidity);
+            }
+            t.addSample(time, "battery", 80 - d);
+            r.putTracking("AA:BB:CC:DD:EE:0" + d, t);
+        }
+        Tracking gps = new Tracking();
+        long time = BEGIN;
+        double lat = -37.8, lng = 144.9;
+        for (int i=0; i<n*2; i++) {
+            time += 5000 + rnd.nextInt(200);
+            lat += (rnd.nextDouble() - 0.5) * 0.0005;
+            lng += (rnd.nextDouble() - 0.5) * 0.0005;
+            gps.addSample(time, "location", new GPSDevice.Sample(lat, lng, 5 + rnd.nextInt(20)));
+        }
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+        return r;
+    }
+
+    private static byte[] write(Recording r) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingCodec.write(r, out);
+        return out.toByteArray();
+    }
+
+    private static Recording read(byte[] b) throws Exception {
+        return RecordingCodec.read(new BufferedInputStream(new ByteArrayInputStream(b)));
+    }
+
+    private static void assertSameData(Recording expected, Recording actual) {
+        assertEquals(expected.getBegin(), actual.getBegin());
+        assertEquals(expected.getEnd(), actual.getEnd());
+        assertEquals(expected.getDeviceIds(), actual.getDeviceIds());
+        for (String id : expected.getDeviceIds()) {
+            Tracking e = expected.getTracking(id), a = actual.getTracking(id);
+            assertEquals(e.getKeys(), a.getKeys());
+            for (String key : e.getKeys()) {
+                Tracking.Data x = e.getSamples(key), y = a.getSamples(key);
+                assertEquals(x.size(), y.size());
+                for (int i=0; i<x.size(); i++) {
+                    assertEquals(x.getTime(i), y.getTime(i));
+                    if (x.isNumeric())
+                        assertEquals(x.getFloat(i), y.getFloat(i), 0);
+                    else {
+                        assertEquals(x.getLatitude(i), y.getLatitude(i), 1 / RecordingCodec.LOCATION_SCALE);
+                        assertEquals(x.getLongitude(i), y.getLongitude(i), 1 / RecordingCodec.LOCATION_SCALE);
+                        assertEquals(x.getAccuracy(i), y.getAccuracy(i), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + 60000));
+        Tracking t = new Tracking();
+        t.addSample(BEGIN + 10, "temperature", 22.15f);
+        t.addSample(BEGIN + 20, "temperature", -3.1f);
+        t.addSample(BEGIN + 15, "temperature", 21.999998f);
+        t.addSample(BEGIN + 30, "temperature", Float.NaN);
+        t.addSample(BEGIN + 10, "battery", 85);
+        t.addSample(BEGIN + 99, "battery", -1);
+        t.flush();
+        r.putTracking("AA:BB:CC:DD:EE:FF", t);
+        Tracking gps = new Tracking();
+        gps.addSample(BEGIN, "location", new GPSDevice.Sample(-37.8136, 144.9631, 12.5f));
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+
+        Recording read = read(write(r));
+        assertSameData(r, read);
+        assertEquals(r.getTracking("AA:BB:CC:DD:EE:FF").toString(),
+                read.getTracking("AA:BB:CC:DD:EE:FF").toString());
+    }
+
+    @Test
+    public void testPartialRead() throws Exception {
+        Recording r = synthetic(10000);
+        byte[] b = write(r);
+        long from = BEGIN + 100000, to = BEGIN + 200000;
+        Recording p = RecordingCodec.read(new BufferedInputStream(new ByteArrayInputStream(b)),
+                Collections.singleton("humidity"), from, to);
+        assertEquals(r.getDeviceIds(), p.getDeviceIds());
+        assertTrue(p.getTracking(GPSDevice.IDENTIFIER).getKeys().isEmpty());
+        for (String id : p.getDeviceIds()) {
+            if (GPSDevice.IDENTIFIER.equals(id))
+                continue;
+            assertEquals(Collections.singleton("humidity"), p.getTracking(id).getKeys());
+            Tracking.Data expected = r.samples(id, "humidity", from, to);
+            Tracking.Data actual = p.samples(id, "humidity", from, to);
+            assertTrue(expected.size()>90 && expected.size()<110);
+            assertEquals(expected.size(), actual.size());
+            assertTrue(expected.getTime(0)>=from && expected.getTime(expected.size()-1)<=to);
+            for (int i=0; i<expected.size(); i++) {
+                assertEquals(expected.getTime(i), actual.getTime(i));
+                assertEquals(expected.getFloat(i), actual.getFloat(i), 0);
+            }
+            // a view is stored like the data it shows
+            Recording v = new Recording(new Date(from), new Date(to));
+            Tracking t = new Tracking();
+            t.putSamples("humidity", expected);
+            v.putTracking(id, t);
+            assertSameData(v, read(write(v)));
+        }
+        assertNull(p.samples(GPSDevice.IDENTIFIER, "location", from, to));
+        assertEquals(0, r.samples(GPSDevice.IDENTIFIER, "location", to, from).size());
+    }
+
+    private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static boolean canMeasureAllocations() {
+        return THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) THREADS)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** The blocks skipped are not allocated */
+    @Test
+    public void testSkipAllocations() throws Exception {
+        assumeTrue(canMeasureAllocations());
+        int n = 200000;
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + n * 1000L));
+        Tracking t = new Tracking();
+        t.addSample(BEGIN, "battery", 85);
+        for (int i=0; i<n; i++)
+            t.addSample(BEGIN + i * 1000L, "location", new GPSDevice.Sample(-37.8 + i * 1e-6, 144.9, 5));
+        r.putTracking(GPSDevice.IDENTIFIER, t);
+        byte[] b = write(r);
+
+        Recording p = null;
+        long bytes = 0;
+        for (int i=0; i<2; i++) {
+            bytes = allocated();
+            p = RecordingCodec.read(new ByteArrayInputStream(b), Collections.singleton("battery"),
+                    BEGIN, Long.MAX_VALUE);
+            bytes = allocated() - bytes;
+        }
+        assertEquals(Collections.singleton("battery"), p.getTracking(GPSDevice.IDENTIFIER).getKeys());
+        // the timeline of the locations alone would take 8 bytes per fix
+        assertTrue(bytes + " bytes allocated", bytes<n);
+    }
+
+    private static byte[] toJson(Recording r) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(out, "UTF-8");
+        new Gson().toJson(r, w);
+        w.flush();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testLegacyComparison() throws Exception {
+        Recording r = synthetic(1000000);
+        byte[] json = toJson(r);
+        byte[] bin = write(r);
+        assertSameData(r, read(bin));
+        assertTrue("Size ratio " + json.length / bin.length, json.length >= 10 * bin.length);
+    }
+
+    /** Load times of the two formats, only run with -Dbenchmark=true */
+    @Test
+    public void testLoadBenchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Recording r = synthetic(1000000);
+        Gson gson = new Gson();
+        byte[] json = toJson(r);
+        byte[] bin = write(r);
+
+        // the best of some runs, after the warm up
+        long jsonTime = Long.MAX_VALUE, binTime = Long.MAX_VALUE;
+        for (int i=0; i<4; i++) {
+            long t = System.nanoTime();
+            Recording j = gson.fromJson(new InputStreamReader(new ByteArrayInputStream(json), "UTF-8"), Recording.class);
+            jsonTime = Math.min(jsonTime, System.nanoTime() - t);
+            t = System.nanoTime();
+            Recording b = read(bin);
+            binTime = Math.min(binTime, System.nanoTime() - t);
+            assertEquals(r.size(), j.size());
+            assertEquals(r.size(), b.size());
+        }
+        System.out.println(String.format("Json %dms, binary %dms: %.1fx",
+                jsonTime / 1000000, binTime / 1000000, (double) jsonTime / binTime));
+    }
+
+}
@@ -0,0 +1,93 @@
+package au.com.smarttrace.beacons.tracker;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Date;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class RecordingExporterTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    /** Temperatures of two devices every minute, a fix every 2 minutes for the first 10 */
+    private static Recording recording() {
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + 3600000));
+        for (int d=0; d<2; d++) {
+            Tracking t = new Tracking();
+            for (int i=0; i<20; i++) {
+                t.addSample(BEGIN + i * 60000L + d * 1000, "temperature", 4f + d + i / 10f);
+                t.addSample(BEGIN + i * 60000L + d * 1000, "battery", 90 - i);
+            }
+            r.putTracking("AA:BB:CC:DD:EE:0" + d, t);
+        }
+        Tracking gps = new Tracking();
+        for (int i=0; i<5; i++)
+            gps.addSample(BEGIN + i * 120000L, GPSDevice.KEY_LOCATION,
+                    new GPSDevice.Sample(-37.8 + i * 1e-3, 144.9, 5));
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+        return r;
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingExporter e = new RecordingExporter(out, RecordingExporter.Format.CSV);
+        e.export(recording(), Collections.singleton("temperature"));
+        e.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(1 + 40, lines.length);
+        assertTrue(lines[0].startsWith("recording,device,key,timestamp,time,value,"));
+        // the first device first, joined with the fix at the same time
+        String[] row = lines[1].split(",", -1);
+        assertEquals(RecordingExporter.COLUMNS.length, row.length);
+        assertEquals("AA:BB:CC:DD:EE:00", row[1]);
+        assertEquals("2017-07-14T02:40:00.000Z", row[4]);
+        assertEquals("4.0", row[5]);
+        assertEquals("", row[6]);
+        assertEquals(String.valueOf(BEGIN), row[9]);
+        assertEquals("-37.8", row[10]);
+        // 3 minutes after the last fix, then too far
+        assertEquals(String.valueOf(BEGIN + 480000), lines[12].split(",", -1)[9]);
+        assertEquals("", lines[15].split(",", -1)[9]);
+        assertTrue(lines[21].startsWith(BEGIN + ",AA:BB:CC:DD:EE:01,temperature,"));
+    }
+
+    @Test
+    public void testMergedJson() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingExporter e = new RecordingExporter(out, RecordingExporter.Format.NDJSON);
+        e.exportMerged(recording(), null);
+        e.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(2 * 20 * 2 + 5, lines.length);
+        long last = Long.MIN_VALUE;
+        int fixes = 0;
+        for (String line : lines) {
+            JsonObject o = new JsonParser().parse(line).getAsJsonObject();
+            long time = o.get("timestamp").getAsLong();
+            assertTrue(time>=last);
+            last = time;
+            if (o.get("key").getAsString().equals(GPSDevice.KEY_LOCATION)) {
+                fixes++;
+                assertTrue(o.has("latitude"));
+                assertFalse(o.has("fix_timestamp"));
+                assertFalse(o.has("value"));
+            } else
+                assertTrue(o.has("value"));
+        }
+        assertEquals(5, fixes);
+        JsonObject o = new JsonParser().parse(lines[1]).getAsJsonObject();
+        assertEquals(BEGIN, o.get("fix_timestamp").getAsLong());
+    }
+
+}
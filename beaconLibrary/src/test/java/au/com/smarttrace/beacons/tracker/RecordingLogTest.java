@@ -0,0 +1,143 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+import au.com.smarttrace.beacons.temperature.ThresholdCompacter;
+
+import static org.junit.Assert.*;
+
+public class RecordingLogTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    private static File tempDir() throws Exception {
+        File dir = File.createTempFile("recordings", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        return dir;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        File dir = tempDir();
+        RecordingLog log = RecordingLog.open(dir, BEGIN);
+        Tracking t = new Tracking();
+        t.setLog(log, "AA:BB:CC:DD:EE:FF");
+        t.addSample(BEGIN + 10, "temperature", 22.15f);
+        t.addSample(BEGIN + 20, "battery", 85);
+        Tracking gps = new Tracking();
+        gps.setLog(log, GPSDevice.IDENTIFIER);
+        gps.addSample(BEGIN + 30, "location", new GPSDevice.Sample(-37.8136, 144.9631, 12.5f));
+        log.close(BEGIN + 60000);
+
+        Recording r = RecordingLog.replay(dir, BEGIN);
+        assertEquals(BEGIN + 60000, r.getEnd().getTime());
+        assertEquals(t.toString(), r.getTracking("AA:BB:CC:DD:EE:FF").toString());
+        assertEquals(-37.8136, r.getTracking(GPSDevice.IDENTIFIER).getSamples("location").getLatitude(0), 0);
+        assertEquals(3, r.size());
+
+        RecordingLog.delete(dir, BEGIN);
+        assertTrue(RecordingLog.list(dir).isEmpty());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testLateSamples() throws Exception {
+        File dir = tempDir();
+        RecordingLog log = RecordingLog.open(dir, BEGIN);
+        Tracking t = new Tracking();
+        t.setLog(log, "AA:BB:CC:DD:EE:FF");
+        t.addSample(BEGIN + 5000, "temperature", 25f);
+        for (int i=0; i<5; i++)
+            t.addSample(BEGIN + i * 1000, "temperature", 20f + i);
+        log.sync();
+
+        // staged, not merged nor journaled yet
+        assertEquals(1, t.getSamples("temperature").size());
+        assertEquals(1, RecordingLog.replay(dir, BEGIN).size());
+
+        // journaled once merged
+        t.flush();
+        assertEquals(6, t.getSamples("temperature").size());
+        log.close(BEGIN + 10000);
+        Recording r = RecordingLog.replay(dir, BEGIN);
+        assertEquals(6, r.size());
+        Tracking.Data data = r.getTracking("AA:BB:CC:DD:EE:FF").getSamples("temperature");
+        for (int i=0; i<6; i++)
+            assertEquals(BEGIN + i * 1000, data.getTime(i));
+        RecordingLog.delete(dir, BEGIN);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testLateRejected() throws Exception {
+        File dir = tempDir();
+        RecordingLog log = RecordingLog.open(dir, BEGIN);
+        Tracking t = new Tracking();
+        t.setCompacter("temperature", Float.class, new ThresholdCompacter());
+        t.setLog(log, "AA:BB:CC:DD:EE:FF");
+        t.addSample(BEGIN, "temperature", 20f);
+        t.addSample(BEGIN + 10000, "temperature", 21f);
+        // a duplicate, a distinct one, and one within the threshold of it
+        t.addSample(BEGIN + 10000, "temperature", 22f);
+        t.addSample(BEGIN + 2000, "temperature", 20.5f);
+        t.addSample(BEGIN + 5000, "temperature", 20.51f);
+        t.flush();
+        assertEquals(3, t.getSamples("temperature").size());
+        log.close(BEGIN + 20000);
+
+        // the log replays only the samples kept in memory
+        Recording r = RecordingLog.replay(dir, BEGIN);
+        assertEquals(t.toString(), r.getTracking("AA:BB:CC:DD:EE:FF").toString());
+        assertEquals(BEGIN + 2000, r.getTracking("AA:BB:CC:DD:EE:FF").getSamples("temperature").getTime(1));
+        RecordingLog.delete(dir, BEGIN);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        File dir = tempDir();
+        RecordingLog log = RecordingLog.open(dir, BEGIN);
+        Tracking t = new Tracking();
+        t.setLog(log, "AA:BB:CC:DD:EE:FF");
+        t.addSample(BEGIN, "temperature", 20f);
+        log.sync();
+        t.addSample(BEGIN + 1000, "temperature", 21f);
+        log.discard();
+        // the pending and later records are dropped, nothing written after the delete
+        t.addSample(BEGIN + 2000, "temperature", 22f);
+        RecordingLog.delete(dir, BEGIN);
+        log.sync();
+        assertTrue(RecordingLog.list(dir).isEmpty());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        File dir = tempDir();
+        RecordingLog log = RecordingLog.open(dir, BEGIN);
+        Tracking t = new Tracking();
+        t.setLog(log, "AA:BB:CC:DD:EE:FF");
+        for (int i=0; i<10; i++)
+            t.addSample(BEGIN + i * 1000, "temperature", 20f + i);
+        log.sync();
+
+        // crash in the middle of the last record
+        File segment = new File(dir, BEGIN + "-0" + RecordingLog.EXTENSION);
+        RandomAccessFile f = new RandomAccessFile(segment, "rw");
+        f.setLength(f.length() - 3);
+        f.close();
+
+        Recording r = RecordingLog.replay(dir, BEGIN);
+        assertEquals(9, r.size());
+        assertEquals(BEGIN + 8000, r.getEnd().getTime());
+
+        log.close(BEGIN + 10000);
+        RecordingLog.delete(dir, BEGIN);
+        assertTrue(dir.delete());
+    }
+
+}
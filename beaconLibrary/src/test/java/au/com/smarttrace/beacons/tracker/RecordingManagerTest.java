@@ -0,0 +1,112 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class RecordingManagerTest {
+
+    private final static TimeZone ZONE = TimeZone.getTimeZone("Australia/Melbourne");
+
+    private final static long HOUR = 3600000L;
+
+    private final static String[] DEVICES = {"AA:BB:CC:DD:EE:00", "AA:BB:CC:DD:EE:01"};
+
+    private static long time(int day, int hour) {
+        Calendar c = Calendar.getInstance(ZONE);
+        c.clear();
+        c.set(2017, Calendar.JULY, day, hour, 0);
+        return c.getTimeInMillis();
+    }
+
+    /** A sample every minute for some hours, a peak in the middle */
+    private static Tracking track(long begin, int hours, float base, Tracking t) {
+        for (long time=begin; time<begin + hours * HOUR; time+=60000L) {
+            float v = base + (time - begin==hours * HOUR / 2 ? 10 : 0) + (time - begin) / HOUR * 0.1f;
+            t.addSample(time, "temperature", v);
+        }
+        t.flush();
+        return t;
+    }
+
+    private static Recording recording(long begin, int hours, float base) {
+        Recording ret = new Recording(new Date(begin), new Date(begin + hours * HOUR));
+        for (int i=0; i<DEVICES.length; i++)
+            ret.putTracking(DEVICES[i], track(begin, hours, base + i, new Tracking()));
+        return ret;
+    }
+
+    private static void store(File dir, Recording r) throws Exception {
+        OutputStream out = new FileOutputStream(new File(dir, r.getBegin().getTime() + ".rec"));
+        try {
+            RecordingCodec.write(r, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        File dir = File.createTempFile("recordings", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        List<Recording> stored = new ArrayList<>();
+        for (int day=10; day<16; day++) {
+            Recording r = recording(time(day, 6), 10, day);
+            store(dir, r);
+            stored.add(r);
+        }
+        // the last one left as a sealed log, not compacted yet
+        long begin = time(16, 6);
+        Recording logged = new Recording(new Date(begin), new Date(begin + 10 * HOUR));
+        RecordingLog log = RecordingLog.open(dir, begin);
+        for (int i=0; i<DEVICES.length; i++) {
+            Tracking t = new Tracking();
+            t.setLog(log, DEVICES[i]);
+            logged.putTracking(DEVICES[i], track(begin, 10, 16 + i, t));
+        }
+        log.close(begin + 10 * HOUR);
+        stored.add(logged);
+
+        RecordingCatalog catalog = RecordingCatalog.open(new File(dir, RecordingManager.CATALOG_FILE));
+        for (Recording r : stored)
+            catalog.add(new Recording.Header(r));
+        catalog.close();
+
+        RecordingManager manager = RecordingManager.getInstance();
+        manager.setDirectory(dir);
+        Aggregation.Max max = new Aggregation.Max("temperature", Calendar.DAY_OF_MONTH, ZONE);
+        // from the middle of the second recording to the middle of the log
+        long from = time(11, 12), to = time(16, 11);
+        Aggregation.ByPeriod<Float> a = manager.aggregate(max, from, to);
+
+        Aggregation.ByPeriod<Float> expected = max.create();
+        for (Recording r : stored)
+            for (String id : DEVICES) {
+                Tracking.Data samples = r.samples(id, "temperature", from, to);
+                if (samples!=null)
+                    max.add(expected, id, "temperature", samples);
+            }
+        assertEquals(expected, a);
+        assertEquals(6, a.get(DEVICES[0]).size());
+        assertFalse(a.get(DEVICES[0]).containsKey(time(10, 0)));
+        // the peak of the first day in range is before the range
+        assertEquals(11 + 0.9f, a.get(DEVICES[0]).get(time(11, 0)), 1e-4);
+        assertEquals(16 + 1 + 10 + 0.5f, a.get(DEVICES[1]).get(time(16, 0)), 1e-4);
+
+        manager.setDirectory(null);
+        File[] files = dir.listFiles();
+        for (File f : files)
+            assertTrue(f.delete());
+        assertTrue(dir.delete());
+    }
+
+}
@@ -0,0 +1,72 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class RollupsTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    @Test
+    public void testTiers() throws Exception {
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + 7200000));
+        Tracking t = new Tracking();
+        // a sample every 10s for two hours, a spike in the second hour
+        for (int i=0; i<720; i++)
+            t.addSample(BEGIN + i * 10000L, "temperature", i==500 ? 40f : i % 2);
+        r.putTracking("AA:BB:CC:DD:EE:FF", t);
+        Tracking gps = new Tracking();
+        gps.addSample(BEGIN, "location", new GPSDevice.Sample(-37.8136, 144.9631, 12.5f));
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+
+        Rollups rollups = Rollups.build(r);
+        assertNull(rollups.get(GPSDevice.IDENTIFIER, "location", 3600000));
+        assertNull(rollups.get("AA:BB:CC:DD:EE:FF", "temperature", 30000));
+
+        Rollup minute = rollups.get("AA:BB:CC:DD:EE:FF", "temperature", 120000);
+        assertEquals(60000, minute.getInterval());
+        int samples = 0;
+        for (int i=0; i<minute.size(); i++)
+            samples += minute.getCount(i);
+        assertEquals(720, samples);
+
+        Rollup hour = rollups.get("AA:BB:CC:DD:EE:FF", "temperature", 86400000);
+        assertEquals(3600000, hour.getInterval());
+        int spike = hour.indexOf(BEGIN + 500 * 10000L);
+        assertEquals(40f, hour.getMax(spike), 0);
+        assertEquals(0f, hour.getMin(spike), 0);
+        int count = 0;
+        double sum = 0;
+        for (int i=0; i<720; i++) {
+            if (Rollup.align(BEGIN + i * 10000L, 3600000)==hour.getStart(spike)) {
+                count++;
+                sum += t.getSamples("temperature").getFloat(i);
+            }
+        }
+        assertEquals(count, hour.getCount(spike));
+        assertEquals(sum / count, hour.getMean(spike), 1e-4);
+        assertEquals(-3600000, Rollup.align(-1, 3600000));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rollups.write(out);
+        Rollups read = Rollups.read(new ByteArrayInputStream(out.toByteArray()));
+        Rollup quarter = read.get("AA:BB:CC:DD:EE:FF", "temperature", 1800000);
+        Rollup expected = rollups.get("AA:BB:CC:DD:EE:FF", "temperature", 1800000);
+        assertEquals(900000, quarter.getInterval());
+        assertEquals(expected.size(), quarter.size());
+        for (int i=0; i<quarter.size(); i++) {
+            assertEquals(expected.getStart(i), quarter.getStart(i));
+            assertEquals(expected.getMax(i), quarter.getMax(i), 0);
+            assertEquals(expected.getFirst(i), quarter.getFirst(i), 0);
+            assertEquals(expected.getLast(i), quarter.getLast(i), 0);
+        }
+    }
+
+}
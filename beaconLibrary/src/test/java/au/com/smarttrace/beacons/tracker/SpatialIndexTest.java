@@ -0,0 +1,102 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    /** A drive along a parallel, a fix every 10s, about 90 m apart */
+    private static Tracking.Data drive(long begin, double lat, double lng, int n) {
+        Tracking t = new Tracking();
+        for (int i=0; i<n; i++)
+            t.addSample(begin + i * 10000L, GPSDevice.KEY_LOCATION,
+                    new GPSDevice.Sample(lat, lng + i * 1e-3, 5));
+        return t.getSamples(GPSDevice.KEY_LOCATION);
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        File file = File.createTempFile("recordings", ".geo");
+        assertTrue(file.delete());
+
+        SpatialIndex index = SpatialIndex.open(file);
+        index.add(BEGIN, drive(BEGIN, -37.8, 144.9, 200));
+        index.add(BEGIN + 1, drive(BEGIN + 1, -33.9, 151.2, 200));
+        index.add(BEGIN + 2, null);
+        assertTrue(index.contains(BEGIN + 2));
+        int visits = index.size();
+        assertTrue(visits + " visits", visits<100);
+
+        // the depot is passed by the first recording at the 50th fix
+        double lat = -37.8, lng = 144.95;
+        List<SpatialIndex.Visit> found = index.query(lat, lng, 500);
+        assertEquals(1, found.size());
+        SpatialIndex.Visit v = found.get(0);
+        assertEquals(BEGIN, v.getBegin());
+        assertTrue(v.getFrom()<=BEGIN + 50 * 10000L);
+        assertTrue(v.getTo()>=BEGIN + 50 * 10000L);
+        assertTrue(v.getTo() - v.getFrom()<60 * 10000L);
+        assertTrue(index.query(-35, 148, 500).isEmpty());
+        // wide queries scan all the visits
+        assertEquals(2, index.query(-36, 148, 500000).size());
+        index.close();
+
+        // reopen, then tear the marker of the last recording, without fixes
+        index = SpatialIndex.open(file);
+        assertEquals(visits, index.size());
+        assertTrue(index.contains(BEGIN + 2));
+        index.close();
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(f.length() - 5);
+        f.close();
+        index = SpatialIndex.open(file);
+        assertEquals(visits, index.size());
+        assertFalse(index.contains(BEGIN + 2));
+        assertTrue(index.contains(BEGIN + 1));
+        index.add(BEGIN + 2, null);
+
+        // a torn append with visits drops them with the recording
+        index.add(BEGIN + 3, drive(BEGIN + 3, -31.9, 115.8, 200));
+        assertTrue(index.size()>visits);
+        index.close();
+        f = new RandomAccessFile(file, "rw");
+        f.setLength(f.length() - SpatialIndex.RECORD_SIZE - 5);
+        f.close();
+        index = SpatialIndex.open(file);
+        assertEquals(visits, index.size());
+        assertFalse(index.contains(BEGIN + 3));
+        assertTrue(index.contains(BEGIN + 2));
+        assertEquals(1, index.query(lat, lng, 500).size());
+
+        index.remove(BEGIN);
+        assertFalse(index.contains(BEGIN));
+        assertTrue(index.query(lat, lng, 500).isEmpty());
+        assertEquals(1, index.query(-33.9, 151.25, 500).size());
+        index.close();
+        assertEquals(SpatialIndex.HEADER_SIZE + (index.size() + 2) * SpatialIndex.RECORD_SIZE, file.length());
+
+        // the recordings without fixes are still indexed after the rewrite
+        index = SpatialIndex.open(file);
+        assertTrue(index.contains(BEGIN + 1));
+        assertTrue(index.contains(BEGIN + 2));
+        index.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testDistance() throws Exception {
+        assertEquals(111319, SpatialIndex.distance(0, 0, 0, 1), 1);
+        assertEquals(0, SpatialIndex.distance(-37.8, 144.9, -37.8, 144.9), 1e-6);
+        assertEquals(SpatialIndex.cell(-37.8, 144.9), SpatialIndex.cell(-37.8, 144.9 + 1e-4));
+    }
+
+}
@@ -0,0 +1,55 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class SummaryTest {
+
+    private final static long BEGIN = 1500000000000L;
+
+    @Test
+    public void testSummaries() throws Exception {
+        Recording r = new Recording(new Date(BEGIN), new Date(BEGIN + 3600000));
+        Tracking t = new Tracking();
+        // 3 for 40 minutes, then 9 for 20 minutes, sampled every minute
+        for (int i=0; i<=60; i++)
+            t.addSample(BEGIN + i * 60000L, "temperature", i<40 ? 3f : 9f);
+        t.addSample(BEGIN, "battery", 80);
+        r.putTracking("AA:BB:CC:DD:EE:FF", t);
+        Tracking gps = new Tracking();
+        // 1 km north, with some fixes jittering in place
+        for (int i=0; i<=100; i++)
+            gps.addSample(BEGIN + i * 1000L, GPSDevice.KEY_LOCATION,
+                    new GPSDevice.Sample(-37.8 + i * 9e-5 + (i%2) * 2e-5, 144.9, 5));
+        r.putTracking(GPSDevice.IDENTIFIER, gps);
+
+        List<Summary> summaries = Summary.of(r, Collections.singletonMap("temperature", 8f));
+        Recording.Header h = new Recording.Header(r);
+        h.summaries = summaries;
+
+        Summary s = h.getSummary("AA:BB:CC:DD:EE:FF", "temperature");
+        assertEquals(61, s.getCount());
+        assertEquals(3, s.getMin(), 0);
+        assertEquals(9, s.getMax(), 0);
+        assertEquals(5, s.getMean(), 1e-3);
+        assertEquals(20 * 60000L, s.getTimeAbove());
+        assertTrue(Float.isNaN(s.getDistance()));
+
+        s = h.getSummary("AA:BB:CC:DD:EE:FF", "battery");
+        assertEquals(1, s.getCount());
+        assertEquals(-1, s.getTimeAbove());
+
+        s = h.getSummary(GPSDevice.IDENTIFIER, GPSDevice.KEY_LOCATION);
+        assertEquals(101, s.getCount());
+        assertEquals(1000, s.getDistance(), 50);
+        assertTrue(Float.isNaN(s.getMin()));
+    }
+
+}
@@ -0,0 +1,63 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SwingingDoorCompacterTest {
+
+    @Test
+    public void testErrorBound() throws Exception {
+        SwingingDoorCompacter c = new SwingingDoorCompacter();
+        c.setError(0.05f);
+        Random random = new Random(1);
+        int n = 20000;
+        long[] times = new long[n];
+        float[] values = new float[n];
+        // a slow drift with some noise, sampled every 10s
+        for (int i=0; i<n; i++) {
+            times[i] = i * 10000L;
+            values[i] = (float) (4 + 2 * Math.sin(i / 2000.0) + random.nextGaussian() * 0.01);
+        }
+
+        // the timeline as kept by a tracking component
+        List<Long> t = new ArrayList<>();
+        List<Float> v = new ArrayList<>();
+        for (int i=0; i<n; i++) {
+            boolean replace = c.wouldReplace(times[i], values[i]);
+            c.commit(times[i], values[i], replace);
+            if (replace) {
+                t.set(t.size()-1, times[i]);
+                v.set(v.size()-1, values[i]);
+            } else {
+                t.add(times[i]);
+                v.add(values[i]);
+            }
+        }
+        assertEquals(times[0], (long) t.get(0));
+        assertEquals(times[n-1], (long) t.get(t.size()-1));
+
+        // linear interpolation reconstructs every sample
+        int k = 0;
+        for (int i=0; i<n; i++) {
+            while (t.get(k+1)<times[i])
+                k++;
+            double f = (times[i] - t.get(k)) / (double) (t.get(k+1) - t.get(k));
+            double y = v.get(k) + f * (v.get(k+1) - v.get(k));
+            assertTrue(i + ": " + Math.abs(y - values[i]), Math.abs(y - values[i])<=0.05 + 1e-5);
+            if (k+1<t.size()-1 && t.get(k+1)==times[i])
+                k++;
+        }
+        // no gap longer than the time threshold
+        for (int i=1; i<t.size()-1; i++)
+            assertTrue(t.get(i+1) - t.get(i)<=SwingingDoorCompacter.TIME_THRESHOLD + 10000);
+        // seeded input: about 29 samples received for each one kept
+        float ratio = (float) n / t.size();
+        assertTrue("ratio " + ratio, ratio>20);
+    }
+
+}
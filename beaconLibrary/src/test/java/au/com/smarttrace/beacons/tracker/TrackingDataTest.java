@@ -0,0 +1,90 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class TrackingDataTest {
+
+    private static Tracking.Data<Float> data(long... times) {
+        Tracking.Data<Float> ret = new Tracking.Data<>(Float.class, 2);
+        for (long t : times) {
+            int i = ret.search(t);
+            assertTrue(i>=0);
+            ret.data.setFloat(ret.open(i, t), t / 1000f);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        // out of order, growing past the initial capacity
+        Tracking.Data<Float> d = data(3000, 1000, 5000, 2000, 4000);
+        assertEquals(5, d.size());
+        for (int i=0; i<5; i++) {
+            assertEquals((i + 1) * 1000L, d.getTime(i));
+            assertEquals(i + 1f, d.getFloat(i), 0);
+        }
+        assertEquals(-1, d.search(3000));
+        assertEquals(3, d.search(3500));
+        assertTrue(d.isNumeric());
+        assertEquals("[1.0, 2.0, 3.0, 4.0, 5.0]", d.toString());
+    }
+
+    @Test
+    public void testViews() throws Exception {
+        Tracking.Data<Float> d = data(1000, 2000, 3000, 4000, 5000);
+        assertEquals(0, d.indexOf(0));
+        assertEquals(1, d.indexOf(2000));
+        assertEquals(2, d.indexOf(2001));
+        assertEquals(5, d.indexOf(6000));
+
+        Tracking.Data<Float> r = d.range(2000, 4000);
+        assertEquals(3, r.size());
+        assertEquals(2000, r.getTime(0));
+        assertEquals(4f, r.getFloat(2), 0);
+        // indexes relative to the view
+        assertEquals(1, r.indexOf(3000));
+        Tracking.Data<Float> s = r.subData(1, 3);
+        assertEquals("[3.0, 4.0]", s.toString());
+        assertEquals(0, s.range(3500, 3600).size());
+        assertEquals(2, d.range(4000, Long.MAX_VALUE).size());
+        assertEquals(0, d.range(4000, 2000).size());
+
+        Iterator<Tracking.Sample<Float>> it = s.iterator();
+        assertEquals(3000, it.next().time);
+        assertEquals(4f, it.next().data, 0);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        Tracking.Data<Float> r = data(1000, 2000, 3000).range(2000, 3000);
+        for (int i : new int[] {-1, 2}) {
+            try {
+                r.getFloat(i);
+                fail();
+            } catch (IndexOutOfBoundsException e) {
+                // outside the view, even if inside the storage
+            }
+        }
+        try {
+            r.subData(1, 3);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // past the end of the view
+        }
+    }
+
+    @Test
+    public void testLists() throws Exception {
+        Tracking.Data<Integer> d = new Tracking.Data<>(Arrays.asList(1000L, 2000L), Arrays.asList(85, 84));
+        assertEquals(Integer.class, d.data.getDataClass());
+        assertEquals(84, d.getInt(1));
+        assertEquals(Object.class, new Tracking.Data<>(Arrays.<Long>asList(), Arrays.asList()).data.getDataClass());
+    }
+
+}
@@ -0,0 +1,186 @@
+package au.com.smarttrace.beacons.tracker;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+
+import static org.junit.Assert.*;
+
+public class TrackingTest {
+
+    @Test
+    public void testLateSamples() throws Exception {
+        Tracking t = new Tracking();
+        assertTrue(t.addSample(1000, "temperature", 1f));
+        assertTrue(t.addSample(5000, "temperature", 5f));
+        assertFalse(t.addSample(5000, "temperature", 6f));
+        // backfill, in the middle and before the head
+        assertTrue(t.addSample(3000, "temperature", 3f));
+        assertTrue(t.addSample(0, "temperature", 0f));
+        assertTrue(t.addSample(2000, "temperature", 2f));
+        // duplicates of a sample and of a staged one
+        t.addSample(1000, "temperature", 9f);
+        t.addSample(2000, "temperature", 9f);
+        assertTrue(t.addSample(6000, "temperature", 6f));
+
+        // the readers see only the merged samples
+        Tracking.Data data = t.getSamples("temperature");
+        assertEquals(3, data.size());
+        t.flush();
+        assertEquals(6, data.size());
+        assertEquals(6, data.size());
+        long[] expected = {0, 1000, 2000, 3000, 5000, 6000};
+        for (int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], data.getTime(i));
+            assertEquals(expected[i] / 1000f, data.getFloat(i), 0);
+        }
+
+        t.addSample(4000, "location", new GPSDevice.Sample(4, 4, 1));
+        t.addSample(1000, "location", new GPSDevice.Sample(1, 1, 1));
+        assertTrue(t.addRecord(2000, "location", 2, 2, 1));
+        assertFalse(t.addRecord(4000, "location", 5, 5, 1));
+        t.flush();
+        assertEquals("[(1.0,1.0), (2.0,2.0), (4.0,4.0)]", t.getSamples("location", 0, 5000).toString());
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        // shuffled blocks, more than the staging buffer holds
+        int n = 100000;
+        long[] times = new long[n];
+        for (int i=0; i<n; i++)
+            times[i] = i * 1000L;
+        Random random = new Random(1);
+        for (int i=0; i<n; i+=1000)
+            for (int j=i+999; j>i; j--) {
+                int k = i + random.nextInt(j - i + 1);
+                long x = times[j];
+                times[j] = times[k];
+                times[k] = x;
+            }
+
+        Tracking t = new Tracking();
+        for (long x : times)
+            t.addSample(x, "battery", (int) (x / 1000));
+        t.flush();
+        Tracking.Data data = t.getSamples("battery");
+
+        assertEquals(n, data.size());
+        for (int i=0; i<n; i++) {
+            assertEquals(i * 1000L, data.getTime(i));
+            assertEquals(i, data.getInt(i));
+        }
+    }
+
+    @Test
+    public void testRecords() throws Exception {
+        Tracking t = new Tracking();
+        Tracking apart = new Tracking();
+        for (int i=0; i<1000; i++) {
+            // every tenth reading arrives late
+            long time = i % 10==9 ? (i - 5) * 1000L + 500 : i * 1000L;
+            assertTrue(t.addRecord(time, "temperature", i, "humidity", -i, "battery", i / 100));
+            apart.addSample(time, "temperature", (float) i);
+            apart.addSample(time, "humidity", (float) -i);
+            apart.addSample(time, "battery", i / 100);
+        }
+        assertFalse(t.addRecord(998000, "temperature", 0, "humidity", 0, "battery", 0));
+        t.flush();
+        apart.flush();
+
+        Tracking.Data temperature = t.getSamples("temperature");
+        Tracking.Data humidity = t.getSamples("humidity");
+        Tracking.Data battery = t.getSamples("battery");
+        assertSame(temperature.timeline, humidity.timeline);
+        assertSame(temperature.timeline, battery.timeline);
+        assertEquals(apart.toString(), t.toString());
+        assertEquals(1000, humidity.size());
+        for (int i=1; i<1000; i++)
+            assertTrue(humidity.getTime(i)>humidity.getTime(i-1));
+        assertTrue(t.estimateBytes()<apart.estimateBytes());
+
+        // a key written alone gets its own timeline
+        assertTrue(t.addSample(2000000, "humidity", 5f));
+        assertNotSame(temperature.timeline, t.getSamples("humidity").timeline);
+        assertSame(temperature.timeline, battery.timeline);
+        assertEquals(1001, t.getSamples("humidity").size());
+        assertEquals(1000, t.getSamples("temperature").size());
+        // then the record is written key by key
+        assertTrue(t.addRecord(2000000, "temperature", 1, "humidity", 2, "battery", 3));
+        assertEquals(1001, t.getSamples("temperature").size());
+        assertEquals(1001, t.getSamples("humidity").size());
+        assertEquals(1001, t.getSamples("battery").size());
+    }
+
+    /** Maximum error of the linear interpolation of the samples kept */
+    private static double maxError(Tracking.Data data, long[] times, float[] values) {
+        double ret = 0;
+        int k = 0;
+        for (int i=0; i<times.length; i++) {
+            while (k+2<data.size() && data.getTime(k+1)<=times[i])
+                k++;
+            double f = (times[i] - data.getTime(k)) / (double) (data.getTime(k+1) - data.getTime(k));
+            double y = data.getFloat(k) + f * (data.getFloat(k+1) - data.getFloat(k));
+            ret = Math.max(ret, Math.abs(y - values[i]));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSegmentRecords() throws Exception {
+        SwingingDoorCompacter tc = new SwingingDoorCompacter();
+        tc.setError(0.05f);
+        SwingingDoorCompacter hc = new SwingingDoorCompacter();
+        hc.setError(0.25f);
+        Tracking t = new Tracking();
+        t.setCompacter("temperature", Float.class, tc);
+        t.setCompacter("humidity", Float.class, hc);
+
+        // two drifts with their own noise, so that the compacters often disagree
+        Random random = new Random(1);
+        int n = 20000;
+        long[] times = new long[n];
+        float[] temperature = new float[n];
+        float[] humidity = new float[n];
+        for (int i=0; i<n; i++) {
+            times[i] = i * 10000L;
+            temperature[i] = (float) (4 + 2 * Math.sin(i / 2000.0) + random.nextGaussian() * 0.01);
+            humidity[i] = (float) (60 + 10 * Math.cos(i / 700.0) + random.nextGaussian() * 0.05);
+            assertTrue(t.addRecord(times[i], "temperature", temperature[i], "humidity", humidity[i]));
+        }
+        Tracking.Data td = t.getSamples("temperature");
+        Tracking.Data hd = t.getSamples("humidity");
+        assertSame(td.timeline, hd.timeline);
+        assertEquals(times[0], td.getTime(0));
+        assertEquals(times[n-1], td.getTime(td.size()-1));
+        assertTrue(td.size()<n / 5);
+
+        // linear interpolation reconstructs both keys within their own error
+        assertTrue(maxError(td, times, temperature)<=0.05 + 1e-5);
+        assertTrue(maxError(hd, times, humidity)<=0.25 + 1e-4);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        Tracking t = new Tracking();
+        for (int i=0; i<10; i++)
+            t.addSample(i * 1000L, "temperature", 20f + i);
+        t.addSample(0, "location", new GPSDevice.Sample(-37.8, 144.9, 5));
+        Tracking.Data view = t.getSamples("temperature", 2000, 5000);
+        Tracking.Data copy = view.copy();
+        assertEquals(view.toString(), copy.toString());
+        assertEquals(2000, copy.getTime(0));
+        assertEquals(4, copy.size());
+
+        // the view follows the storage, the copy does not
+        t.addSample(2500, "temperature", 99f);
+        t.flush();
+        assertEquals(99f, t.getSamples("temperature", 2000, 5000).getFloat(1), 0);
+        assertEquals(4, copy.size());
+        assertEquals(23f, copy.getFloat(1), 0);
+        assertEquals(-37.8, t.getSamples("location").copy().getLatitude(0), 0);
+    }
+
+}
@@ -22,6 +22,7 @@ package au.com.smarttrace.beacons.transponder;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 import android.content.Context;
 import android.graphics.drawable.LevelListDrawable;
@@ -34,11 +35,11 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 import au.com.smarttrace.beacons.Device;
+import au.com.smarttrace.beacons.DeviceBatchListener;
 import au.com.smarttrace.beacons.DeviceEvent;
-import au.com.smarttrace.beacons.DeviceListener;
 import au.com.smarttrace.beacons.DeviceManager;
 
-public class DeviceListAdapter extends BaseAdapter implements DeviceListener {
+public class DeviceListAdapter extends BaseAdapter implements DeviceBatchListener {
 		
 	private Context context;
 		
@@ -105,4 +106,9 @@ public class DeviceListAdapter extends BaseAdapter implements DeviceListener {
 		notifyDataSetChanged();
 	}
 
+	@Override
+	public void onDeviceChanges(List<DeviceEvent> events) {
+		notifyDataSetChanged();
+	}
+
 }
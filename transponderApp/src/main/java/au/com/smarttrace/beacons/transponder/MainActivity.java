@@ -144,7 +144,9 @@ public class MainActivity extends AppCompatActivity implements
         Log.d("MAIN", "OnStart");
 //        bind();
         registerReceivers();
-        DeviceManager.getInstance().addDeviceListener(this);
+        DeviceManager.getInstance().addDeviceListener(this, null, DeviceEvent.mask(
+                DeviceEvent.TYPE_DEVICE_ADDED, DeviceEvent.TYPE_DEVICE_REMOVED,
+                DeviceEvent.TYPE_DEVICE_UPDATED, DeviceEvent.TYPE_DEVICE_ERROR));
         super.onStart();
     }
 
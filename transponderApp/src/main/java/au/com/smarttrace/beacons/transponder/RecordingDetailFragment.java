@@ -109,6 +109,7 @@ public class RecordingDetailFragment extends Fragment
         super.onCreate(savedInstanceState);
         if (getArguments().containsKey(ARG_ITEM_ID)) {
             final long t = getArguments().getLong(ARG_ITEM_ID);
+            RecordingManager.getInstance().getCache().pin(t);
             RecordingManager.getInstance().getById(t, this);
         }
         headerUpdate = new HeaderUpdate(getContext());
@@ -216,6 +217,8 @@ public class RecordingDetailFragment extends Fragment
     public void onDestroy() {
         super.onDestroy();
         mapView.onDestroy();
+        if (getArguments().containsKey(ARG_ITEM_ID))
+            RecordingManager.getInstance().getCache().unpin(getArguments().getLong(ARG_ITEM_ID));
     }
 
     private void startUpdates(Runnable... updatesList) {
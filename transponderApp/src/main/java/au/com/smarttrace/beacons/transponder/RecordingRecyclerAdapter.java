@@ -10,10 +10,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.util.Locale;
+
+import au.com.smarttrace.beacons.gps.GPSDevice;
+import au.com.smarttrace.beacons.temperature.TemperatureDevice;
 import au.com.smarttrace.beacons.tracker.RecordingEvent;
 import au.com.smarttrace.beacons.tracker.RecordingListener;
 import au.com.smarttrace.beacons.tracker.Recording;
 import au.com.smarttrace.beacons.tracker.RecordingManager;
+import au.com.smarttrace.beacons.tracker.Summary;
 
 /**
  *
@@ -62,7 +67,7 @@ public class RecordingRecyclerAdapter
     public void onBindViewHolder(final ViewHolder holder, int position) {
         holder.item = RecordingManager.getInstance().getHeader(position);
         holder.titleView.setText(holder.item.toString());
-        holder.contentView.setText(holder.item.getReadings()+" readings");
+        holder.contentView.setText(describe(holder.item));
         holder.view.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -84,6 +89,30 @@ public class RecordingRecyclerAdapter
         });
     }
 
+    /** Readings, temperature range and distance, from the summaries in the header */
+    private static String describe(Recording.Header h) {
+        StringBuilder ret = new StringBuilder().append(h.getReadings()).append(" readings");
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        long above = -1;
+        float distance = Float.NaN;
+        for (Summary s : h.getSummaries()) {
+            if (s.getKey().equals(TemperatureDevice.KEY_TEMPERATURE) && s.getCount()>0) {
+                min = Math.min(min, s.getMin());
+                max = Math.max(max, s.getMax());
+                above = Math.max(above, s.getTimeAbove());
+            } else if (s.getKey().equals(GPSDevice.KEY_LOCATION)
+                    && s.getDeviceId().equals(GPSDevice.IDENTIFIER))
+                distance = s.getDistance();
+        }
+        if (min<=max)
+            ret.append(String.format(Locale.getDefault(), ", %.1f/%.1f°C", min, max));
+        if (above>0)
+            ret.append(String.format(Locale.getDefault(), ", %d min above", above / 60000));
+        if (!Float.isNaN(distance))
+            ret.append(String.format(Locale.getDefault(), ", %.1f km", distance / 1000));
+        return ret.toString();
+    }
+
     @Override
     public int getItemCount() {
         return RecordingManager.getInstance().count();
@@ -2,6 +2,7 @@ package au.com.smarttrace.beacons.transponder.recording;
 
 import android.content.Context;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.SimpleAdapter;
 import android.widget.Spinner;
@@ -13,7 +14,10 @@ import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.IAxisValueFormatter;
+import com.github.mikephil.charting.listener.ChartTouchListener;
+import com.github.mikephil.charting.listener.OnChartGestureListener;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,7 +30,11 @@ import java.util.Locale;
 import java.util.Map;
 
 import au.com.smarttrace.beacons.gps.GPSDevice;
+import au.com.smarttrace.beacons.tracker.Downsampler;
 import au.com.smarttrace.beacons.tracker.Recording;
+import au.com.smarttrace.beacons.tracker.RecordingManager;
+import au.com.smarttrace.beacons.tracker.Rollup;
+import au.com.smarttrace.beacons.tracker.Rollups;
 import au.com.smarttrace.beacons.tracker.Tracking;
 import au.com.smarttrace.beacons.transponder.R;
 
@@ -40,6 +48,23 @@ public class ChartUpdate extends Update implements Runnable {
 
     private Map<String, LineDataSet> dataMap;
 
+    /** Samples of a device key */
+    private static class Series {
+        final String deviceId, key;
+        final Tracking.Data samples;
+        Series(String deviceId, String key, Tracking.Data samples) {
+            this.deviceId = deviceId;
+            this.key = key;
+            this.samples = samples;
+        }
+    }
+
+    /** Samples of each dataset, to downsample again on zoom */
+    private Map<String, List<Series>> seriesMap;
+
+    /** Summaries of the recording, used instead of the samples when zoomed out */
+    private Rollups rollups;
+
     private ArrayList<Map<String, ?>> spinnerList;
 
     private long begin, end;
@@ -50,6 +75,9 @@ public class ChartUpdate extends Update implements Runnable {
     private final static String FROM_LABEL = "label";
     private final static String FROM_COUNT = "count";
 
+    /** Points of a dataset when the chart is not laid out yet */
+    private final static int DEFAULT_POINTS = 500;
+
     public ChartUpdate(Context context) {
         super(context);
     }
@@ -70,6 +98,40 @@ public class ChartUpdate extends Update implements Runnable {
             }
         });
         chart.setNoDataText("No data");
+        chart.setOnChartGestureListener(new OnChartGestureListener() {
+            @Override
+            public void onChartGestureStart(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+            }
+
+            @Override
+            public void onChartGestureEnd(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+                updateVisible();
+            }
+
+            @Override
+            public void onChartLongPressed(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartDoubleTapped(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartSingleTapped(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartFling(MotionEvent me1, MotionEvent me2, float velocityX, float velocityY) {
+            }
+
+            @Override
+            public void onChartScale(MotionEvent me, float scaleX, float scaleY) {
+            }
+
+            @Override
+            public void onChartTranslate(MotionEvent me, float dX, float dY) {
+            }
+        });
         spinner = (Spinner) rootView.findViewById(R.id.recording_dataset);
     }
 
@@ -83,10 +145,19 @@ public class ChartUpdate extends Update implements Runnable {
     public synchronized Update load(Recording rec) {
 
         dataMap = new LinkedHashMap<>();
+        seriesMap = new LinkedHashMap<>();
+        // an active recording has no end yet, and its samples are still changing
+        boolean active = rec.isActive();
         begin = rec.getBegin().getTime();
-        end = rec.getEnd().getTime();
-
-        Map<String, List<Entry>> entryMap = new LinkedHashMap<>();
+        end = active ? System.currentTimeMillis() : rec.getEnd().getTime();
+        // the rollups are built when the recording is stored
+        rollups = null;
+        if (!active)
+            try {
+                rollups = RecordingManager.getInstance().getRollups(begin);
+            } catch (IOException e) {
+                Log.e(Recording.TAG, "No rollups of " + rec, e);
+            }
 
         // browse samples
         for (String id : rec.getDeviceIds()) {
@@ -100,46 +171,97 @@ public class ChartUpdate extends Update implements Runnable {
             for (String key : t.getKeys()) {
 
                 String dataKey = groupingByKey ? key : id + "/" + key;
-                Tracking.Data samples = t.getSamples(key);
+                Tracking.Data samples = t.getSamples(key, begin, end);
+                if (active)
+                    samples = samples.copy();
                 Log.i(Recording.TAG, "- " + key + ": " + samples.size() + " readings");
 
-                List<Entry> entries = entryMap.get(dataKey);
-                if (entries == null) {
-                    entries = new ArrayList<>();
-                    entryMap.put(dataKey, entries);
+                List<Series> series = seriesMap.get(dataKey);
+                if (series == null) {
+                    series = new ArrayList<>();
+                    seriesMap.put(dataKey, series);
                 }
 
-                for (Object obj : samples) {
-                    Tracking.Sample s = (Tracking.Sample) obj;
-                    Log.i("Sample", "  " + (s.time - begin) + "=" + s.data.toString());
-                    try {
-                        float x = s.time - begin;
-                        float y = Float.parseFloat(s.data.toString());
-                        entries.add(new Entry(x, y));
-                    } catch (NumberFormatException e) {
-                        Log.e(Recording.TAG, "Unexpected sample: " + s.data, e);
-                    }
+                if (!samples.isNumeric()) {
+                    Log.e(Recording.TAG, "Unexpected samples: " + samples);
+                    continue;
                 }
 
+                series.add(new Series(id, key, samples));
 
             }
 
         }
 
-        createDatasets(entryMap);
+        createDatasets();
         initSpinner();
         return this;
     }
 
-    private void createDatasets(Map<String, List<Entry>> entryMap) {
-        for (String key: entryMap.keySet()) {
-            List<Entry> entries = entryMap.get(key);
+    /** Maximum number of points of a dataset: one per pixel */
+    private int getThreshold() {
+        int width = chart.getWidth();
+        return width>0 ? width : DEFAULT_POINTS;
+    }
+
+    /**
+     * Points of a dataset in a time window: from the coarsest rollup that is fine enough for
+     * the chart width, otherwise downsampling the samples. The window is clipped to the
+     * recording, and a rollup is only used if the samples in the window are more than the
+     * points to draw; its buckets are limited to the ones of these samples. The points just
+     * outside the window are included to keep the line continuous.
+     */
+    private List<Entry> getEntries(List<Series> series, long from, long to) {
+        List<Entry> entries = new ArrayList<>();
+        from = Math.max(from, begin);
+        to = Math.min(to, end);
+        int threshold = getThreshold() / Math.max(1, series.size());
+        long resolution = (to - from) / Math.max(1, threshold);
+        for (Series s : series) {
+            Tracking.Data samples = s.samples;
+            int i = Math.max(0, samples.indexOf(from) - 1);
+            int j = Math.min(samples.size(), samples.indexOf(to + 1) + 1);
+            Tracking.Data window = samples.subData(i, j);
+            Rollup rollup = rollups!=null && window.size()>threshold
+                    ? rollups.get(s.deviceId, s.key, resolution) : null;
+            if (rollup!=null) {
+                addEntries(entries, rollup, window.getTime(0), window.getTime(window.size()-1));
+                continue;
+            }
+            for (int k : Downsampler.downsample(window, threshold))
+                entries.add(new Entry(window.getTime(k) - begin, window.getFloat(k)));
+        }
+        if (series.size()>1)
             Collections.sort(entries, new Comparator<Entry>() {
                 @Override
                 public int compare(Entry o1, Entry o2) {
-                    return (int) (o1.getX() - o2.getX());
+                    return Float.compare(o1.getX(), o2.getX());
                 }
             });
+        return entries;
+    }
+
+    /**
+     * Minimum and maximum of each bucket, in the order they are likely to be met, for the
+     * buckets of the samples from the first to the last time
+     */
+    private void addEntries(List<Entry> entries, Rollup rollup, long first, long last) {
+        int i = rollup.indexOf(first);
+        int j = Math.min(rollup.size(), rollup.indexOf(last) + 1);
+        long half = rollup.getInterval() / 2;
+        for (int k=i; k<j; k++) {
+            long x = Math.max(rollup.getStart(k), first);
+            boolean rising = rollup.getFirst(k)<=rollup.getLast(k);
+            entries.add(new Entry(x - begin, rising ? rollup.getMin(k) : rollup.getMax(k)));
+            if (rollup.getMin(k)!=rollup.getMax(k))
+                entries.add(new Entry(Math.min(x + half, last) - begin,
+                        rising ? rollup.getMax(k) : rollup.getMin(k)));
+        }
+    }
+
+    private void createDatasets() {
+        for (String key: seriesMap.keySet()) {
+            List<Entry> entries = getEntries(seriesMap.get(key), begin, end);
 
             LineDataSet dataSet = new LineDataSet(entries, key);
 
@@ -180,8 +302,13 @@ public class ChartUpdate extends Update implements Runnable {
                 label = k;
             Map<String, String> item = new HashMap<>();
             item.put(FROM_LABEL, k);
-            item.put(FROM_COUNT, String.valueOf(s.getEntryCount()));
+            int count = 0;
+            for (Series series : seriesMap.get(k))
+                count += series.samples.size();
+            item.put(FROM_COUNT, String.valueOf(count));
             spinnerList.add(item);
+            if (s.getEntryCount()==0)
+                continue;
             Entry last = s.getEntryForIndex(s.getEntryCount()-1);
             if (last.getX()<end)
                 s.addEntry(new Entry(end-begin, last.getY()));
@@ -215,6 +342,25 @@ public class ChartUpdate extends Update implements Runnable {
         return this;
     }
 
+    /**
+     * Downsample again the selected dataset for the visible window, after a zoom or a scroll
+     */
+    public synchronized void updateVisible() {
+        if (label==null || seriesMap==null || chart.getData()==null)
+            return;
+        LineDataSet dataSet = dataMap.get(label);
+        long from = begin + (long) chart.getLowestVisibleX();
+        long to = begin + (long) Math.ceil(chart.getHighestVisibleX());
+        List<Entry> entries = getEntries(seriesMap.get(label), from, to);
+        if (entries.isEmpty())
+            return;
+        dataSet.setValues(entries);
+        dataSet.notifyDataSetChanged();
+        chart.getData().notifyDataChanged();
+        chart.notifyDataSetChanged();
+        chart.invalidate();
+    }
+
     @Override
     public synchronized void run() {
         Log.d("CHART", "Updated");
@@ -224,6 +370,9 @@ public class ChartUpdate extends Update implements Runnable {
                     new String[]{FROM_LABEL, FROM_COUNT},
                     new int[]{R.id.dataset_label, R.id.dataset_count}));
         spinnerList = null;
+        // fixed range: the datasets are replaced by the visible window on zoom
+        chart.getXAxis().setAxisMinimum(0);
+        chart.getXAxis().setAxisMaximum(end - begin);
         chart.setData(label!=null ? new LineData(dataMap.get(label)) : null);
         chart.notifyDataSetChanged();
         chart.invalidate();
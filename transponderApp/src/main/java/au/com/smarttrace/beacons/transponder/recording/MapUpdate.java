@@ -16,6 +16,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 import au.com.smarttrace.beacons.gps.GPSDevice;
+import au.com.smarttrace.beacons.gps.TrackSimplifier;
 import au.com.smarttrace.beacons.tracker.Recording;
 import au.com.smarttrace.beacons.tracker.Tracking;
 import au.com.smarttrace.beacons.transponder.R;
@@ -48,41 +49,52 @@ public class MapUpdate extends Update implements Runnable {
         cos = new LinkedList<>();
         bb = new LatLngBounds.Builder();
 
-        // browse samples
-        for (String id : rec.getDeviceIds()) {
-
-            Tracking t = rec.getTracking(id);
-            if (t==null || t.size()==0)
-                continue;
-
-            //map update
-            if (GPSDevice.IDENTIFIER.equals(id)) {
-
-                Tracking.Data<GPSDevice.Sample> samples =
-                        t.getSamples(GPSDevice.KEY_LOCATION, GPSDevice.Sample.class);
-
-                Log.i(Recording.TAG, "SAMPLES of "+GPSDevice.IDENTIFIER);
-                Log.i(Recording.TAG, "- " + GPSDevice.KEY_LOCATION +
-                        ": " + samples.size() + " readings");
-                for (Tracking.Sample<GPSDevice.Sample> s : samples) {
-                    LatLng ll = new LatLng(s.data.lat, s.data.lng);
-                    po.add(ll);
-                    bb.include(ll);
-                    cos.add(new CircleOptions()
-                            .center(ll)
-                            .clickable(true)
-                            .strokeWidth(0)
-                            .fillColor(gpsColor)
-                            .radius(s.data.acc)
-                            .zIndex(2));
-                }
-
-                po.color(getResources().getColor(R.color.gps_line));
-                po.width(3);
-                po.zIndex(1);
-
+        // an active recording has no end yet, and its samples are still changing
+        boolean active = rec.isActive();
+        long begin = rec.getBegin().getTime();
+        long end = active ? System.currentTimeMillis() : rec.getEnd().getTime();
+        Tracking.Data samples = rec.samples(GPSDevice.IDENTIFIER, GPSDevice.KEY_LOCATION, begin, end);
+        if (active && samples!=null)
+            samples = samples.copy();
+
+        if (samples!=null) {
+
+            Log.i(Recording.TAG, "SAMPLES of "+GPSDevice.IDENTIFIER);
+            Log.i(Recording.TAG, "- " + GPSDevice.KEY_LOCATION +
+                    ": " + samples.size() + " readings");
+
+            // the simplified track, unless missing or incomplete (older or recovered recordings)
+            Tracking.Data track = rec.samples(GPSDevice.IDENTIFIER, GPSDevice.KEY_TRACK, begin, end);
+            if (active && track!=null)
+                track = track.copy();
+            int[] points;
+            if (track!=null && track.size()>0 && samples.size()>0
+                    && track.getTime(track.size()-1)==samples.getTime(samples.size()-1)) {
+                samples = track;
+                points = new int[track.size()];
+                for (int i=0; i<points.length; i++)
+                    points[i] = i;
+            } else
+                points = TrackSimplifier.simplify(samples, TrackSimplifier.TOLERANCE);
+            Log.i(Recording.TAG, "- " + GPSDevice.KEY_TRACK + ": " + points.length + " points");
+
+            for (int i : points) {
+                LatLng ll = new LatLng(samples.getLatitude(i), samples.getLongitude(i));
+                po.add(ll);
+                bb.include(ll);
+                cos.add(new CircleOptions()
+                        .center(ll)
+                        .clickable(true)
+                        .strokeWidth(0)
+                        .fillColor(gpsColor)
+                        .radius(samples.getAccuracy(i))
+                        .zIndex(2));
             }
 
+            po.color(getResources().getColor(R.color.gps_line));
+            po.width(3);
+            po.zIndex(1);
+
         }
 
         return this;
@@ -0,0 +1,253 @@
+package au.com.smarttrace.tzone.humiture;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import android.os.SystemClock;
+
+import au.com.smarttrace.beacons.temperature.TemperatureDevice;
+
+/**
+ * Download of the data logger of a TZone device, streamed from the notifications of the
+ * sync characteristic.
+ * <p>
+ * Each logged record is 6 bytes, a big-endian bit string with the time of the reading
+ * (month, day, hour, minute, second of the current year) followed by the readings, laid out
+ * as in {@code com.TZONE.Bluetooth.Temperature.Model.Device.fromNotificationData} for the
+ * model and firmware of the device. The records are decoded in place into a batch of
+ * primitive arrays, without creating an object for each of them, and only the records after
+ * a time (the start of the trackingOn, or the last record of a previous download) are kept.
+ * The times have a resolution of {@link #RESOLUTION}, so the records that overlap the live
+ * readings are recognised when stored (see {@link TemperatureDevice}).
+ */
+class LoggerDownload {
+
+	/** Number of records stored at once */
+	final static int BATCH = 256;
+
+	/** Size of a logged record */
+	final static int RECORD_SIZE = 6;
+
+	/** Resolution of the time of a logged record, in ms */
+	final static long RESOLUTION = 1000;
+
+	/** Invalid reading, as reported by the TZone library */
+	final static float INVALID = -1000;
+
+	/** Battery, humidity and 8 bits temperature (model 3901, old firmware) */
+	private final static int FORMAT_HUMIDITY_8 = 0;
+
+	/** Humidity and 11 bits temperature (model 3901) */
+	private final static int FORMAT_HUMIDITY_11 = 1;
+
+	/** Battery and 11 bits temperature, no humidity */
+	private final static int FORMAT_TEMPERATURE_11 = 2;
+
+	/** Records in the future by more than this are of the previous year */
+	private final static long MAX_AHEAD = 24 * 3600000l;
+
+	final long[] times = new long[BATCH];
+	final float[] temperatures = new float[BATCH];
+	final float[] humidities = new float[BATCH];
+	/** {@link TemperatureDevice#BATTERY_UNKNOWN} if not reported */
+	final int[] batteries = new int[BATCH];
+	int size;
+
+	private final int format;
+
+	/** The current year (UTC) */
+	private final int year;
+
+	/** Records after this time are of the previous year */
+	private final long latest;
+
+	/** Records up to this time are already stored */
+	private final long since;
+
+	/** Time of the last record kept */
+	private long until;
+
+	private int received, duplicates, invalid, stored;
+
+	private final long started = SystemClock.elapsedRealtime();
+
+	/**
+	 * @param model
+	 * 				the hardware model of the device
+	 * @param firmware
+	 * 				the firmware version of the device
+	 * @param since
+	 * 				the records up to this time are dropped
+	 */
+	LoggerDownload(String model, String firmware, long since) {
+		this(model, firmware, since, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param model
+	 * 				the hardware model of the device
+	 * @param firmware
+	 * 				the firmware version of the device
+	 * @param since
+	 * 				the records up to this time are dropped
+	 * @param now
+	 * 				the current time, that gives the year of the records
+	 */
+	LoggerDownload(String model, String firmware, long since, long now) {
+		int version = 15;
+		if (firmware!=null && !firmware.isEmpty())
+			try {
+				version = Integer.parseInt(firmware.trim());
+			} catch (NumberFormatException e) {
+				// keep the default
+			}
+		if ("3901".equals(model))
+			format = version!=15 && version<18 ? FORMAT_HUMIDITY_8 : FORMAT_HUMIDITY_11;
+		else
+			format = FORMAT_TEMPERATURE_11;
+
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(now);
+		year = calendar.get(Calendar.YEAR);
+		latest = now + MAX_AHEAD;
+		this.since = since;
+		this.until = since;
+	}
+
+	/**
+	 * Days from 1970-01-01 of a date of the proleptic Gregorian calendar
+	 *
+	 * @param y
+	 * 				the year
+	 * @param m
+	 * 				the month, 1 to 12
+	 * @param d
+	 * 				the day of the month
+	 */
+	static long days(int y, int m, int d) {
+		if (m<=2)
+			y--;
+		int era = (y>=0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m + (m>2 ? -3 : 9)) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097l + doe - 719468;
+	}
+
+	private static int bits(long record, int from, int length) {
+		return (int) ((record >>> (RECORD_SIZE * 8 - from - length)) & ((1l << length) - 1));
+	}
+
+	private static float temperature11(int v) {
+		float t = (v<1250 ? v : v - 2048) / 10f;
+		return t<-200 || t>600 ? INVALID : t;
+	}
+
+	/**
+	 * Decode a logged record into the batch
+	 *
+	 * @param bytes
+	 * 				the notification value
+	 * @param offset
+	 * 				the offset of the record
+	 * @return
+	 * 			true if the batch is full, and must be stored
+	 */
+	boolean decode(byte[] bytes, int offset) {
+		long record = 0;
+		for (int i=0; i<RECORD_SIZE; i++)
+			record = record << 8 | (bytes[offset + i] & 0xFF);
+		if (record==0)
+			return false;
+		received++;
+
+		int month = bits(record, 0, 4);
+		int day = bits(record, 4, 5);
+		int hour = bits(record, 9, 5);
+		int minute = bits(record, 14, 6);
+		int second = bits(record, 20, 6);
+		if (month<1 || month>12 || day<1 || hour>23 || minute>59 || second>59) {
+			invalid++;
+			return false;
+		}
+		long time = ((hour * 60 + minute) * 60 + second) * 1000l;
+		if (days(year, month, day) * 86400000l + time>latest)
+			time += days(year - 1, month, day) * 86400000l;
+		else
+			time += days(year, month, day) * 86400000l;
+
+		float temperature, humidity;
+		int battery;
+		switch (format) {
+			case FORMAT_HUMIDITY_8:
+				battery = bits(record, 26, 7);
+				humidity = bits(record, 33, 7);
+				int t = bits(record, 40, 8);
+				temperature = t>128 ? t - 256 : t;
+				break;
+			case FORMAT_HUMIDITY_11:
+				battery = TemperatureDevice.BATTERY_UNKNOWN;
+				humidity = bits(record, 26, 7);
+				if (humidity>100)
+					humidity = INVALID;
+				temperature = temperature11(bits(record, 33, 11));
+				break;
+			default:
+				battery = bits(record, 26, 7);
+				humidity = INVALID;
+				temperature = temperature11(bits(record, 33, 11));
+				break;
+		}
+		if (temperature==INVALID) {
+			invalid++;
+			return false;
+		}
+		if (time<=since) {
+			duplicates++;
+			return false;
+		}
+
+		times[size] = time;
+		temperatures[size] = temperature;
+		humidities[size] = humidity;
+		batteries[size] = battery;
+		size++;
+		until = Math.max(until, time);
+		return size==BATCH;
+	}
+
+	/**
+	 * Clear the batch once stored
+	 *
+	 * @param count
+	 * 				the number of records actually added
+	 */
+	void stored(int count) {
+		stored += count;
+		size = 0;
+	}
+
+	/**
+	 * @return
+	 * 			the number of records received, valid or not
+	 */
+	int getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return
+	 * 			the time of the last record kept, the start of the next download
+	 */
+	long getUntil() {
+		return until;
+	}
+
+	@Override
+	public String toString() {
+		long elapsed = Math.max(SystemClock.elapsedRealtime() - started, 1);
+		return String.format("%d records in %.1fs (%.0f/s): %d stored, %d duplicates, %d invalid",
+				received, elapsed / 1000f, received * 1000f / elapsed, stored, duplicates, invalid);
+	}
+
+}
@@ -109,7 +109,10 @@ public class TZoneActivity extends Activity
 	@Override
 	protected void onResume() {
 		super.onResume();
-		DeviceManager.getInstance().addDeviceListener(this);
+		DeviceManager.getInstance().addDeviceListener(this, device.getId(),
+				DeviceEvent.mask(DeviceEvent.TYPE_DEVICE_UPDATED,
+						DeviceEvent.TYPE_DEVICE_PROGRESS,
+						DeviceEvent.TYPE_DEVICE_ERROR));
 		refreshUI();
 	}
 	
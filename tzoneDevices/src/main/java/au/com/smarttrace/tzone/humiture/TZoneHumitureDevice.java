@@ -1,6 +1,5 @@
 package au.com.smarttrace.tzone.humiture;
 
-import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -19,6 +18,7 @@ import android.widget.TextView;
 
 import au.com.smarttrace.beacons.Utils;
 import au.com.smarttrace.beacons.temperature.TemperatureDevice;
+import au.com.smarttrace.beacons.tracker.Tracking;
 
 import com.TZONE.Bluetooth.Temperature.Model.CharacteristicHandle;
 
@@ -32,6 +32,12 @@ public class TZoneHumitureDevice extends TemperatureDevice implements Runnable{
 	
 	/** Use TZONE library */
 	private com.TZONE.Bluetooth.Temperature.Model.Device tzoneDevice;
+
+	/** Current download of the data logger */
+	private LoggerDownload download;
+
+	/** Time of the last data logger record stored in the current trackingOn */
+	private long loggedUntil = Long.MAX_VALUE;
 	
 	public TZoneHumitureDevice() {
 		tzoneDevice = new com.TZONE.Bluetooth.Temperature.Model.Device();
@@ -127,6 +133,12 @@ public class TZoneHumitureDevice extends TemperatureDevice implements Runnable{
 		
 		if (c==null)
 			return;
+
+		synchronized (this) {
+			finishDownload();
+			if (enable)
+				download = new LoggerDownload(tzoneDevice.HardwareModel, tzoneDevice.Firmware, loggedUntil);
+		}
 			
 		Log.i(toString(), "Enable notifications");
 		gatt.setCharacteristicNotification(c, enable);
@@ -174,17 +186,44 @@ public class TZoneHumitureDevice extends TemperatureDevice implements Runnable{
 		gatt.writeCharacteristic(c);
 	}
 	
-	private void addLoggerEntry(byte[] bytes) {
-		com.TZONE.Bluetooth.Temperature.Model.Device d = new com.TZONE.Bluetooth.Temperature.Model.Device();
-        d.HardwareModel = tzoneDevice.HardwareModel;
-        d.Firmware = tzoneDevice.Firmware;
-		d.fromNotificationData(bytes);
-		Log.i(toString(), 
-				String.format("[%s %d%%]: %2.2f°C %2.2f%%",
-						d.UTCTime,
-						d.Battery,
-						d.Temperature,
-						d.Humidity));
+	private synchronized void addLoggerEntry(byte[] bytes, int offset) {
+		if (download==null)
+			return;
+		if (download.decode(bytes, offset))
+			storeDownload();
+		if (download.getReceived()>=records)
+			finishDownload();
+	}
+
+	/** Store the records of the data logger decoded so far */
+	private synchronized void storeDownload() {
+		if (download==null || download.size==0)
+			return;
+		download.stored(addRecords(download.times, download.temperatures, download.humidities,
+				download.batteries, download.size, LoggerDownload.RESOLUTION));
+		loggedUntil = Math.max(loggedUntil, download.getUntil());
+	}
+
+	private synchronized void finishDownload() {
+		if (download==null)
+			return;
+		storeDownload();
+		Log.i(toString(), "Data logger: " + download);
+		download = null;
+	}
+
+	@Override
+	public synchronized void onTrackingStart(Tracking tracking) {
+		super.onTrackingStart(tracking);
+		// the history before the trackingOn does not belong to it
+		loggedUntil = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void onTrackingStop() {
+		finishDownload();
+		loggedUntil = Long.MAX_VALUE;
+		super.onTrackingStop();
 	}
 
 
@@ -266,6 +305,7 @@ public class TZoneHumitureDevice extends TemperatureDevice implements Runnable{
         // reset connection variables
         if (newState==BluetoothGatt.STATE_DISCONNECTED) {
             authenticated = false;
+            finishDownload();
             trackingOff();
         }
 
@@ -297,14 +337,10 @@ public class TZoneHumitureDevice extends TemperatureDevice implements Runnable{
 		
 		//TODO: CRC
 		byte[] bytes = characteristic.getValue();
-        if (bytes.length >= 9) {
-        	byte[] sub = Arrays.copyOfRange(bytes, 0, 6);
-            addLoggerEntry(sub);
-        }
-        if (bytes.length >= 15) {
-        	byte[] sub = Arrays.copyOfRange(bytes, 6, 12);
-            addLoggerEntry(sub);
-        }
+        if (bytes.length >= 9)
+            addLoggerEntry(bytes, 0);
+        if (bytes.length >= 15)
+            addLoggerEntry(bytes, LoggerDownload.RECORD_SIZE);
 		
 	}
 
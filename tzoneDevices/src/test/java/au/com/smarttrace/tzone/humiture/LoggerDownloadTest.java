@@ -0,0 +1,142 @@
+package au.com.smarttrace.tzone.humiture;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import au.com.smarttrace.beacons.temperature.TemperatureDevice;
+
+import static org.junit.Assert.*;
+
+public class LoggerDownloadTest {
+
+    /** 2017-06-15 12:00:00 UTC */
+    private final static long NOW = 1497528000000L;
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(year, month - 1, day, hour, minute, second);
+        return c.getTimeInMillis();
+    }
+
+    /** A logged record, with the readings in the bits after the time */
+    private static byte[] record(int month, int day, int hour, int minute, int second,
+                                 long readings, int bits) {
+        long r = month;
+        r = r << 5 | day;
+        r = r << 5 | hour;
+        r = r << 6 | minute;
+        r = r << 6 | second;
+        r = r << bits | readings;
+        r <<= 22 - bits;
+        byte[] ret = new byte[LoggerDownload.RECORD_SIZE];
+        for (int i=ret.length-1; i>=0; i--, r >>>= 8)
+            ret[i] = (byte) r;
+        return ret;
+    }
+
+    @Test
+    public void testDays() throws Exception {
+        assertEquals(0, LoggerDownload.days(1970, 1, 1));
+        for (int y=1999; y<=2101; y++)
+            for (int m=1; m<=12; m++)
+                assertEquals(utc(y, m, 28, 0, 0, 0) / 86400000L, LoggerDownload.days(y, m, 28));
+        assertEquals(utc(2016, 2, 29, 0, 0, 0) / 86400000L, LoggerDownload.days(2016, 2, 29));
+    }
+
+    @Test
+    public void testHumidity() throws Exception {
+        LoggerDownload d = new LoggerDownload("3901", "18", 0, NOW);
+        // humidity 55%, temperature -12.3 (11 bits, two's complement above 1250)
+        assertFalse(d.decode(record(6, 14, 23, 59, 58, 55L << 11 | (2048 - 123), 18), 0));
+        // 25.5, invalid humidity
+        assertFalse(d.decode(record(6, 15, 1, 2, 3, 127L << 11 | 255, 18), 0));
+        assertEquals(2, d.size);
+        assertEquals(utc(2017, 6, 14, 23, 59, 58), d.times[0]);
+        assertEquals(-12.3f, d.temperatures[0], 1e-5);
+        assertEquals(55f, d.humidities[0], 0);
+        assertEquals(TemperatureDevice.BATTERY_UNKNOWN, d.batteries[0]);
+        assertEquals(utc(2017, 6, 15, 1, 2, 3), d.times[1]);
+        assertEquals(25.5f, d.temperatures[1], 1e-5);
+        assertEquals(LoggerDownload.INVALID, d.humidities[1], 0);
+        assertEquals(utc(2017, 6, 15, 1, 2, 3), d.getUntil());
+    }
+
+    @Test
+    public void testOldFirmware() throws Exception {
+        LoggerDownload d = new LoggerDownload("3901", "16", 0, NOW);
+        // battery 80%, humidity 60%, temperature -5 (8 bits)
+        d.decode(record(3, 1, 8, 30, 0, 80L << 15 | 60L << 8 | 251, 22), 0);
+        assertEquals(1, d.size);
+        assertEquals(utc(2017, 3, 1, 8, 30, 0), d.times[0]);
+        assertEquals(-5f, d.temperatures[0], 0);
+        assertEquals(60f, d.humidities[0], 0);
+        assertEquals(80, d.batteries[0]);
+    }
+
+    @Test
+    public void testTemperature() throws Exception {
+        LoggerDownload d = new LoggerDownload("3904", "", 0, NOW);
+        // battery 90%, temperature 4.2
+        byte[] bytes = new byte[2 + 2 * LoggerDownload.RECORD_SIZE];
+        System.arraycopy(record(1, 31, 0, 0, 0, 90L << 11 | 42, 18), 0, bytes, 2, LoggerDownload.RECORD_SIZE);
+        System.arraycopy(record(2, 1, 0, 0, 0, 90L << 11 | 43, 18), 0, bytes, 2 + LoggerDownload.RECORD_SIZE,
+                LoggerDownload.RECORD_SIZE);
+        d.decode(bytes, 2);
+        d.decode(bytes, 2 + LoggerDownload.RECORD_SIZE);
+        assertEquals(2, d.size);
+        assertEquals(4.2f, d.temperatures[0], 1e-5);
+        assertEquals(4.3f, d.temperatures[1], 1e-5);
+        assertEquals(LoggerDownload.INVALID, d.humidities[0], 0);
+        assertEquals(90, d.batteries[1]);
+        assertEquals(utc(2017, 2, 1, 0, 0, 0), d.times[1]);
+    }
+
+    @Test
+    public void testPreviousYear() throws Exception {
+        // just after new year, the records of december are of the previous year
+        long now = utc(2018, 1, 1, 0, 30, 0);
+        LoggerDownload d = new LoggerDownload("3901", "18", 0, now);
+        d.decode(record(12, 31, 23, 0, 0, 50L << 11 | 100, 18), 0);
+        d.decode(record(1, 1, 0, 15, 0, 50L << 11 | 100, 18), 0);
+        // up to a day ahead of the clock of the phone, still the current year
+        d.decode(record(1, 1, 23, 0, 0, 50L << 11 | 100, 18), 0);
+        assertEquals(utc(2017, 12, 31, 23, 0, 0), d.times[0]);
+        assertEquals(utc(2018, 1, 1, 0, 15, 0), d.times[1]);
+        assertEquals(utc(2018, 1, 1, 23, 0, 0), d.times[2]);
+    }
+
+    @Test
+    public void testDropped() throws Exception {
+        long since = utc(2017, 6, 1, 12, 0, 0);
+        LoggerDownload d = new LoggerDownload("3901", "18", since, NOW);
+        // empty, not counted
+        d.decode(new byte[LoggerDownload.RECORD_SIZE], 0);
+        assertEquals(0, d.getReceived());
+        // invalid times
+        d.decode(record(13, 1, 0, 0, 0, 50L << 11 | 100, 18), 0);
+        d.decode(record(6, 2, 24, 0, 0, 50L << 11 | 100, 18), 0);
+        d.decode(record(6, 0, 0, 0, 0, 50L << 11 | 100, 18), 0);
+        // already stored
+        d.decode(record(6, 1, 12, 0, 0, 50L << 11 | 100, 18), 0);
+        d.decode(record(6, 1, 12, 0, 1, 50L << 11 | 100, 18), 0);
+        assertEquals(5, d.getReceived());
+        assertEquals(1, d.size);
+        assertEquals(since + 1000, d.getUntil());
+        assertTrue(d.toString(), d.toString().contains("1 duplicates, 3 invalid"));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        LoggerDownload d = new LoggerDownload("3901", "18", 0, NOW);
+        for (int i=0; i<LoggerDownload.BATCH; i++)
+            assertEquals(i==LoggerDownload.BATCH-1,
+                    d.decode(record(5, 1 + i / 60, 0, i % 60, 0, 50L << 11 | i, 18), 0));
+        d.stored(LoggerDownload.BATCH);
+        assertEquals(0, d.size);
+        assertTrue(d.toString().contains(LoggerDownload.BATCH + " stored"));
+    }
+
+}